@@ -1,19 +1,34 @@
 package diarymanagergui;
 
+import diarymanagergui.core.*;
+import javafx.animation.PauseTransition;
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.geometry.Insets;
+import javafx.geometry.Orientation;
 import javafx.geometry.Pos;
 import javafx.scene.Scene;
+import javafx.scene.chart.*;
 import javafx.scene.control.*;
 import javafx.scene.layout.*;
 import javafx.scene.paint.Color;
+import javafx.scene.text.Text;
+import javafx.scene.text.TextFlow;
+import javafx.stage.FileChooser;
 import javafx.stage.Stage;
+import javafx.util.Callback;
+import javafx.util.Duration;
 import java.io.*;
-import java.nio.file.*;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.YearMonth;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import javafx.collections.*;
 
 public class DiaryManagerGUI extends Application {
@@ -32,11 +47,46 @@ public class DiaryManagerGUI extends Application {
     private static final String LIGHT_TEXT = "#212529";
     private static final String LIGHT_TEXT_SECONDARY = "#6C757D";
     
+    // Very large entries are shown one window at a time
+    private static final int READ_WINDOW_BYTES = 64 * 1024;
+    
+    // How many list neighbours of the selection are read ahead
+    private static final int PREFETCH_NEIGHBOURS = 2;
+    
+    // Search-as-you-type: quiet period before a query runs
+    private static final double SEARCH_DEBOUNCE_MS = 250;
+    
+    // Text searches show only this many best matches, each with a snippet
+    private static final int RESULT_LIMIT = 100;
+    
+    // Draft auto-save: at most one journal write (and fsync) per interval while typing
+    private static final double AUTO_SAVE_INTERVAL_MS = 1000;
+    
+    // "No filter" entry in the category and mood filter combos
+    private static final String ANY_FACET = "";
+    
+    // How far back the statistics charts reach
+    private static final int STATS_WEEKS = 12;
+    private static final int STATS_MONTHS = 6;
+    private static final DateTimeFormatter WEEK_LABEL = DateTimeFormatter.ofPattern("MMM d");
+    private static final DateTimeFormatter MONTH_LABEL = DateTimeFormatter.ofPattern("MMM yyyy");
+    
+    // -Ddiary.diagnostics=on adds a tab with the live metrics, refreshed this often while it is shown
+    private static final boolean DIAGNOSTICS = "on".equals(System.getProperty("diary.diagnostics"));
+    private static final double DIAGNOSTICS_REFRESH_MS = 1000;
+    
     // UI Components
     private BorderPane root;
     private TextArea entryContent;
     private ListView<String> entriesListView;
     private TextField searchField;
+    private ListView<String> resultsList;
+    private PauseTransition searchDebounce;
+    private ComboBox<String> categoryFilter;
+    private ComboBox<String> moodFilter;
+    private ComboBox<Integer> dateFilter;
+    private FacetIndex.Result facetCounts;
+    private boolean updatingFacets;
     private TextField titleField;
     private ComboBox<String> categoryCombo;
     private ComboBox<String> moodCombo;
@@ -45,14 +95,44 @@ public class DiaryManagerGUI extends Application {
     private TabPane mainTabPane;
     private TextArea readArea;
     private Label entryTitleLabel;
+    private ScrollBar windowBar;
+    private Tab statsTab;
+    private Tab diagnosticsTab;
+    private TextArea diagnosticsArea;
+    private PauseTransition diagnosticsRefresh;
+    private ProgressBar transferBar;
+    private Stage stage;
+    private Label statEntriesLabel;
+    private Label statWordsLabel;
+    private Label statWeekLabel;
+    private Label statStreakLabel;
+    private BarChart<String, Number> weeklyChart;
+    private StackedBarChart<String, Number> moodChart;
     
     // Data
-    private ObservableList<String> entries = FXCollections.observableArrayList();
+    // Entry ids, newest first; titles are looked up in the catalog only for the rows on screen
+    private ObservableList<String> entryIds = FXCollections.observableArrayList();
     private File diaryDirectory;
+    private DiaryService diary;
+    private int searchGeneration;
+    private final Map<String, Snippet> snippets = new HashMap<>(); // for the rows in resultsList, FX thread only
+    private PauseTransition autoSaveTimer;
+    private boolean draftPending;
+    // Mirrors entryContent edit by edit, so auto-save and checks never rebuild the whole text
+    private final PieceTable contentBuffer = new PieceTable();
+    private boolean draftSnapshotNeeded = true;
+    private DiaryEntry editingEntry; // the stored entry the Write tab edits; null when writing a new one
+    private int editingBaseVersion = -1; // the history version editingEntry replaces; -1 until known
+    private DiaryEntry shownEntry; // what the Read tab shows when it holds a whole entry, maybe an older version
+    private String shownEntryId; // the entry the Read tab shows, whole or mapped; Edit, History and Delete act on it
+    private boolean transferRunning;
+    private MappedEntryReader mappedReader;
+    private String readHeaderText = "";
     private boolean darkMode = true;
     
     @Override
     public void start(Stage primaryStage) {
+        stage = primaryStage;
         primaryStage.setTitle("Personal Diary Manager");
         
         // Create diary directory
@@ -61,6 +141,19 @@ public class DiaryManagerGUI extends Application {
             diaryDirectory.mkdirs();
         }
         
+        // An encrypted diary (or -Ddiary.encryption=on to start encrypting one) needs its passphrase first
+        DiaryCipher cipher = null;
+        if (DiaryCipher.isEncrypted(diaryDirectory) || "on".equals(System.getProperty("diary.encryption"))) {
+            cipher = unlockDiary();
+            if (cipher == null) {
+                Platform.exit();
+                return;
+            }
+        }
+        diary = new DiaryService(diaryDirectory, cipher,
+                                 changes -> Platform.runLater(() -> showExternalChanges(changes)));
+        diary.metrics().watchStalls(Platform::runLater);
+        
         // Initialize UI
         initializeUI();
         
@@ -71,10 +164,28 @@ public class DiaryManagerGUI extends Application {
         
         // Load existing entries
         loadEntries();
+        openSearchIndex();
+        openStatistics();
+        recoverDraft();
         
         primaryStage.show();
     }
     
+    @Override
+    public void stop() {
+        if (draftPending) {
+            flushDraft();
+        }
+        
+        // Queued behind any pending writes
+        if (diary != null) {
+            if (DIAGNOSTICS) {
+                System.out.print(diary.metrics().report());
+            }
+            diary.close(10);
+        }
+    }
+    
     private void initializeUI() {
         root = new BorderPane();
         root.setPadding(new Insets(10));
@@ -128,9 +239,12 @@ public class DiaryManagerGUI extends Application {
                          (darkMode ? DARK_TEXT : LIGHT_TEXT) + ";");
         
         // Entry list
-        entriesListView = new ListView<>(entries);
+        entriesListView = new ListView<>(entryIds);
         entriesListView.setPrefHeight(400);
         entriesListView.setStyle("-fx-background-color: transparent; -fx-border-color: transparent;");
+        entriesListView.setCellFactory(list -> createEntryCell());
+        entriesListView.getSelectionModel().selectedIndexProperty().addListener(
+                (obs, oldVal, newVal) -> prefetchNeighbours(entriesListView, newVal.intValue()));
         
         // Double-click to read
         entriesListView.setOnMouseClicked(event -> {
@@ -148,14 +262,25 @@ public class DiaryManagerGUI extends Application {
         newEntryBtn.setMaxWidth(Double.MAX_VALUE);
         newEntryBtn.setStyle(getButtonStyle(PRIMARY_COLOR));
         newEntryBtn.setOnAction(e -> {
+            editingEntry = null;
             titleField.clear();
-            entryContent.clear();
+            setEntryContent("");
             categoryCombo.setValue("Personal");
             moodCombo.setValue("😊 Happy");
             mainTabPane.getSelectionModel().select(0);
         });
         
-        navigation.getChildren().addAll(navTitle, entriesListView, newEntryBtn);
+        // Backup and restore
+        HBox transferBox = new HBox(10);
+        Button exportBtn = new Button("📤 Export");
+        exportBtn.setStyle(getButtonStyle(ACCENT_COLOR));
+        exportBtn.setOnAction(e -> exportDiary());
+        Button importBtn = new Button("📥 Import");
+        importBtn.setStyle(getButtonStyle(ACCENT_COLOR));
+        importBtn.setOnAction(e -> importDiary());
+        transferBox.getChildren().addAll(exportBtn, importBtn);
+        
+        navigation.getChildren().addAll(navTitle, entriesListView, newEntryBtn, transferBox);
         
         return navigation;
     }
@@ -179,7 +304,19 @@ public class DiaryManagerGUI extends Application {
         Tab searchTab = new Tab("Search");
         searchTab.setContent(createSearchPanel());
         
-        mainTabPane.getTabs().addAll(writeTab, readTab, searchTab);
+        // Statistics Tab
+        statsTab = new Tab("Statistics");
+        statsTab.setContent(createStatisticsPanel());
+        statsTab.setOnSelectionChanged(e -> refreshDashboard());
+        
+        mainTabPane.getTabs().addAll(writeTab, readTab, searchTab, statsTab);
+        
+        if (DIAGNOSTICS) {
+            diagnosticsTab = new Tab("Diagnostics");
+            diagnosticsTab.setContent(createDiagnosticsPanel());
+            diagnosticsTab.setOnSelectionChanged(e -> refreshDiagnostics());
+            mainTabPane.getTabs().add(diagnosticsTab);
+        }
         
         content.setCenter(mainTabPane);
         return content;
@@ -231,6 +368,13 @@ public class DiaryManagerGUI extends Application {
         entryContent.setPromptText("Write your thoughts here...");
         entryContent.setPrefHeight(300);
         entryContent.setStyle(getTextAreaStyle());
+        entryContent.setTextFormatter(new TextFormatter<String>(change -> {
+            if (change.isContentChange()) {
+                contentBuffer.replace(change.getRangeStart(), change.getRangeEnd(), change.getText());
+                scheduleDraft();
+            }
+            return change;
+        }));
         
         // Buttons
         HBox buttonBox = new HBox(15);
@@ -243,12 +387,18 @@ public class DiaryManagerGUI extends Application {
         Button clearBtn = new Button("🗑️ Clear");
         clearBtn.setStyle(getButtonStyle("#FF6B6B"));
         clearBtn.setOnAction(e -> {
+            editingEntry = null;
             titleField.clear();
-            entryContent.clear();
+            setEntryContent("");
         });
         
         buttonBox.getChildren().addAll(clearBtn, saveBtn);
         
+        // Auto-save the draft: the first change arms the timer, later ones ride along with it
+        autoSaveTimer = new PauseTransition(Duration.millis(AUTO_SAVE_INTERVAL_MS));
+        autoSaveTimer.setOnFinished(e -> flushDraft());
+        titleField.textProperty().addListener((obs, oldVal, newVal) -> scheduleDraft());
+        
         writePanel.getChildren().addAll(titleLabel, titleField, optionsBox, contentLabel, entryContent, buttonBox);
         return writePanel;
     }
@@ -282,17 +432,35 @@ public class DiaryManagerGUI extends Application {
         
         scrollPane.setContent(readArea);
         
+        // Position within very large entries, which are decoded one window at a time
+        windowBar = new ScrollBar();
+        windowBar.setOrientation(Orientation.VERTICAL);
+        windowBar.setVisible(false);
+        windowBar.setManaged(false);
+        windowBar.valueProperty().addListener((obs, oldVal, newVal) -> showReadWindow(newVal.longValue()));
+        
+        HBox readBox = new HBox(5, scrollPane, windowBar);
+        HBox.setHgrow(scrollPane, Priority.ALWAYS);
+        
         // Action buttons
         HBox actionBox = new HBox(15);
         actionBox.setAlignment(Pos.CENTER_RIGHT);
         
+        Button editBtn = new Button("✏️ Edit");
+        editBtn.setStyle(getButtonStyle(PRIMARY_COLOR));
+        editBtn.setOnAction(e -> editEntry());
+        
+        Button historyBtn = new Button("🕘 History");
+        historyBtn.setStyle(getButtonStyle(ACCENT_COLOR));
+        historyBtn.setOnAction(e -> showHistory());
+        
         Button deleteBtn = new Button("🗑️ Delete");
         deleteBtn.setStyle(getButtonStyle("#FF6B6B"));
         deleteBtn.setOnAction(e -> deleteEntry());
         
-        actionBox.getChildren().addAll(deleteBtn);
+        actionBox.getChildren().addAll(editBtn, historyBtn, deleteBtn);
         
-        readPanel.getChildren().addAll(infoBox, scrollPane, actionBox);
+        readPanel.getChildren().addAll(infoBox, readBox, actionBox);
         return readPanel;
     }
     
@@ -313,22 +481,157 @@ public class DiaryManagerGUI extends Application {
         
         Button searchBtn = new Button("🔍 Search");
         searchBtn.setStyle(getButtonStyle(PRIMARY_COLOR));
-        searchBtn.setOnAction(e -> performSearch());
+        searchBtn.setOnAction(e -> runSearch(true));
         
         searchBox.getChildren().addAll(searchField, searchBtn);
         
-        // Results
-        ListView<String> resultsList = new ListView<>();
+        // Facet filters; each option shows how many entries it would leave
+        HBox facetBox = new HBox(10);
+        facetBox.setAlignment(Pos.CENTER_LEFT);
+        
+        categoryFilter = new ComboBox<>();
+        categoryFilter.getItems().add(ANY_FACET);
+        categoryFilter.getItems().addAll(categoryCombo.getItems());
+        categoryFilter.setValue(ANY_FACET);
+        categoryFilter.setStyle(getComboBoxStyle());
+        setFacetCells(categoryFilter, key -> key.equals(ANY_FACET) ? "All categories"
+                : key + " (" + facetCount(facetCounts == null ? null : facetCounts.categoryCounts, key) + ")");
+        
+        moodFilter = new ComboBox<>();
+        moodFilter.getItems().add(ANY_FACET);
+        moodFilter.getItems().addAll(moodCombo.getItems());
+        moodFilter.setValue(ANY_FACET);
+        moodFilter.setStyle(getComboBoxStyle());
+        setFacetCells(moodFilter, key -> key.equals(ANY_FACET) ? "All moods"
+                : key + " (" + facetCount(facetCounts == null ? null : facetCounts.moodCounts, key) + ")");
+        
+        dateFilter = new ComboBox<>();
+        dateFilter.getItems().add(0);
+        for (int days : FacetIndex.DATE_RANGES) {
+            dateFilter.getItems().add(days);
+        }
+        dateFilter.setValue(0);
+        dateFilter.setStyle(getComboBoxStyle());
+        setFacetCells(dateFilter, days -> (days == 0 ? "Any time" : "Last " + days + " days") +
+                " (" + facetCount(facetCounts == null ? null : facetCounts.dateCounts, days) + ")");
+        
+        for (ComboBox<?> filter : Arrays.asList(categoryFilter, moodFilter, dateFilter)) {
+            filter.setOnAction(e -> {
+                if (!updatingFacets) {
+                    runSearch(false);
+                }
+            });
+        }
+        facetBox.getChildren().addAll(categoryFilter, moodFilter, dateFilter);
+        
+        // Results (entry ids, filled in as the search streams them)
+        resultsList = new ListView<>();
         resultsList.setPrefHeight(400);
         resultsList.setStyle("-fx-background-color: transparent;");
+        resultsList.setCellFactory(list -> createResultCell());
+        resultsList.getSelectionModel().selectedIndexProperty().addListener(
+                (obs, oldVal, newVal) -> prefetchNeighbours(resultsList, newVal.intValue()));
+        resultsList.setOnMouseClicked(event -> {
+            if (event.getClickCount() == 2) {
+                String selected = resultsList.getSelectionModel().getSelectedItem();
+                if (selected != null) {
+                    loadEntry(selected);
+                    mainTabPane.getSelectionModel().select(1); // Switch to read tab
+                }
+            }
+        });
         
-        // Search when Enter is pressed
-        searchField.setOnAction(e -> performSearch());
+        // Search while typing (debounced), or right away when Enter is pressed
+        searchDebounce = new PauseTransition(Duration.millis(SEARCH_DEBOUNCE_MS));
+        searchDebounce.setOnFinished(e -> runSearch(false));
+        searchField.textProperty().addListener((obs, oldVal, newVal) -> searchDebounce.playFromStart());
+        searchField.setOnAction(e -> runSearch(true));
         
-        searchPanel.getChildren().addAll(searchBox, resultsList);
+        searchPanel.getChildren().addAll(searchBox, facetBox, resultsList);
         return searchPanel;
     }
     
+    private VBox createStatisticsPanel() {
+        VBox statsPanel = new VBox(15);
+        statsPanel.setPadding(new Insets(20));
+        statsPanel.setStyle("-fx-background-color: " + (darkMode ? DARK_CARD : LIGHT_CARD) + 
+                          "; -fx-background-radius: 10px;");
+        
+        // Headline figures
+        HBox cards = new HBox(15);
+        cards.setAlignment(Pos.CENTER_LEFT);
+        statEntriesLabel = new Label("0");
+        statWordsLabel = new Label("0");
+        statWeekLabel = new Label("0");
+        statStreakLabel = new Label("0 days");
+        cards.getChildren().addAll(createStatCard("Entries", statEntriesLabel),
+                                   createStatCard("Words", statWordsLabel),
+                                   createStatCard("This week", statWeekLabel),
+                                   createStatCard("Writing streak", statStreakLabel));
+        
+        // Charts
+        weeklyChart = new BarChart<>(new CategoryAxis(), new NumberAxis());
+        weeklyChart.setTitle("Entries per week");
+        weeklyChart.setLegendVisible(false);
+        weeklyChart.setAnimated(false);
+        
+        moodChart = new StackedBarChart<>(new CategoryAxis(), new NumberAxis());
+        moodChart.setTitle("Mood by month");
+        moodChart.setAnimated(false);
+        
+        HBox charts = new HBox(15);
+        charts.getChildren().addAll(weeklyChart, moodChart);
+        
+        statsPanel.getChildren().addAll(cards, charts);
+        return statsPanel;
+    }
+    
+    private VBox createDiagnosticsPanel() {
+        VBox diagnosticsPanel = new VBox(15);
+        diagnosticsPanel.setPadding(new Insets(20));
+        diagnosticsPanel.setStyle("-fx-background-color: " + (darkMode ? DARK_CARD : LIGHT_CARD) + 
+                                 "; -fx-background-radius: 10px;");
+        
+        Label caption = new Label("Latencies since start (queueing on the I/O thread included), bytes read, " +
+                                  "entry cache hits and FX thread stalls over " + DiaryMetrics.STALL_THRESHOLD_MS + " ms");
+        caption.setStyle("-fx-font-size: 13px; -fx-text-fill: " +
+                         (darkMode ? DARK_TEXT_SECONDARY : LIGHT_TEXT_SECONDARY) + ";");
+        
+        diagnosticsArea = new TextArea();
+        diagnosticsArea.setEditable(false);
+        diagnosticsArea.setPrefHeight(400);
+        diagnosticsArea.setStyle(getTextAreaStyle() + "-fx-font-family: monospace;");
+        
+        diagnosticsRefresh = new PauseTransition(Duration.millis(DIAGNOSTICS_REFRESH_MS));
+        diagnosticsRefresh.setOnFinished(e -> refreshDiagnostics());
+        
+        diagnosticsPanel.getChildren().addAll(caption, diagnosticsArea);
+        return diagnosticsPanel;
+    }
+    
+    // Re-arms itself for as long as the tab stays selected
+    private void refreshDiagnostics() {
+        if (!diagnosticsTab.isSelected()) {
+            diagnosticsRefresh.stop();
+            return;
+        }
+        diagnosticsArea.setText(diary.metrics().report());
+        diagnosticsRefresh.playFromStart();
+    }
+    
+    private VBox createStatCard(String caption, Label value) {
+        VBox card = new VBox(5);
+        card.setPadding(new Insets(10, 20, 10, 20));
+        card.setStyle("-fx-background-color: " + (darkMode ? "#2D3047" : "#FFFFFF") + "; -fx-background-radius: 8px;");
+        
+        value.setStyle("-fx-font-size: 22px; -fx-font-weight: bold; -fx-text-fill: " + PRIMARY_COLOR + ";");
+        Label captionLabel = new Label(caption);
+        captionLabel.setStyle("-fx-text-fill: " + (darkMode ? DARK_TEXT_SECONDARY : LIGHT_TEXT_SECONDARY) + ";");
+        
+        card.getChildren().addAll(value, captionLabel);
+        return card;
+    }
+    
     private HBox createFooter() {
         HBox footer = new HBox(15);
         footer.setPadding(new Insets(10, 20, 10, 20));
@@ -339,7 +642,12 @@ public class DiaryManagerGUI extends Application {
         statusLabel = new Label("Ready");
         statusLabel.setStyle("-fx-text-fill: " + (darkMode ? DARK_TEXT_SECONDARY : LIGHT_TEXT_SECONDARY) + ";");
         
-        footer.getChildren().add(statusLabel);
+        transferBar = new ProgressBar(0);
+        transferBar.setPrefWidth(200);
+        transferBar.setVisible(false);
+        transferBar.setManaged(false);
+        
+        footer.getChildren().addAll(statusLabel, transferBar);
         return footer;
     }
     
@@ -387,23 +695,75 @@ public class DiaryManagerGUI extends Application {
     
     // Core functionality
     private void loadEntries() {
-        File[] files = diaryDirectory.listFiles((dir, name) -> name.endsWith(".txt"));
-        entries.clear();
-        
-        if (files != null) {
-            for (File file : files) {
-                try {
-                    String firstLine = Files.readAllLines(file.toPath()).get(0);
-                    String entryName = firstLine.replace("Title: ", "") + " - " + 
-                                     file.getName().replace("entry_", "").replace(".txt", "");
-                    entries.add(entryName);
-                } catch (IOException e) {
-                    System.out.println("Error reading file: " + file.getName());
-                }
+        statusLabel.setText("Loading entries...");
+        
+        CompletableFuture<List<String>> loaded = diary.open();
+        
+        onFx(loaded, ids -> {
+            entryIds.setAll(ids);
+            refreshFacetCounts();
+            statusLabel.setText("Loaded " + entryIds.size() + " entries");
+        }, e -> statusLabel.setText("Error loading entries: " + e.getMessage()));
+    }
+    
+    private void openSearchIndex() {
+        onFx(diary.openSearchIndex(), ignored -> upgradeEntries(),
+             e -> statusLabel.setText("Error writing search index: " + e.getMessage()));
+    }
+    
+    // Once startup work is done, rewrite old text entries in the binary format
+    private void upgradeEntries() {
+        onFx(diary.upgradeEntries(), upgraded -> {
+            if (upgraded > 0) {
+                statusLabel.setText("Upgraded " + upgraded + " entries to the current format");
             }
+        }, e -> statusLabel.setText("Error upgrading entries: " + e.getMessage()));
+    }
+    
+    private void openStatistics() {
+        onFx(diary.openStatistics(), counted -> refreshDashboard(),
+             e -> statusLabel.setText("Error loading statistics: " + e.getMessage()));
+    }
+    
+    // Reads only the in-memory totals, so it is cheap enough to run on every change
+    private void refreshDashboard() {
+        if (!statsTab.isSelected()) {
+            return;
+        }
+        DiaryStatistics.Summary summary = diary.statistics(STATS_WEEKS, STATS_MONTHS);
+        
+        statEntriesLabel.setText(String.valueOf(summary.entries));
+        statWordsLabel.setText(summary.words + (summary.entries == 0 ? ""
+                : " (" + summary.words / summary.entries + " per entry)"));
+        statWeekLabel.setText(summary.entriesThisWeek + (summary.entriesToday == 0 ? ""
+                : " (" + summary.entriesToday + " today)"));
+        statStreakLabel.setText(summary.currentStreak + (summary.currentStreak == 1 ? " day" : " days") +
+                                " (best " + summary.longestStreak + ")");
+        
+        XYChart.Series<String, Number> weeks = new XYChart.Series<>();
+        for (Map.Entry<LocalDate, Integer> week : summary.entriesPerWeek.entrySet()) {
+            weeks.getData().add(new XYChart.Data<>(week.getKey().format(WEEK_LABEL), week.getValue()));
         }
+        weeklyChart.getData().setAll(Collections.singletonList(weeks));
         
-        statusLabel.setText("Loaded " + entries.size() + " entries");
+        // One stacked series per mood, in the order the Write tab offers them
+        List<String> moods = new ArrayList<>(moodCombo.getItems());
+        for (String mood : summary.moods.keySet()) {
+            if (!moods.contains(mood)) {
+                moods.add(mood);
+            }
+        }
+        List<XYChart.Series<String, Number>> moodSeries = new ArrayList<>();
+        for (String mood : moods) {
+            XYChart.Series<String, Number> series = new XYChart.Series<>();
+            series.setName(mood);
+            for (Map.Entry<YearMonth, Map<String, Integer>> month : summary.moodsPerMonth.entrySet()) {
+                series.getData().add(new XYChart.Data<>(month.getKey().format(MONTH_LABEL),
+                                                        month.getValue().getOrDefault(mood, 0)));
+            }
+            moodSeries.add(series);
+        }
+        moodChart.getData().setAll(moodSeries);
     }
     
     private void saveEntry() {
@@ -412,74 +772,420 @@ public class DiaryManagerGUI extends Application {
             return;
         }
         
-        if (entryContent.getText().isEmpty()) {
+        if (contentBuffer.isEmpty()) {
             showAlert("Error", "Please write some content");
             return;
         }
         
-        try {
-            String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss"));
-            File entryFile = new File(diaryDirectory, "entry_" + timestamp + ".txt");
-            
-            List<String> content = new ArrayList<>();
-            content.add("Title: " + titleField.getText());
-            content.add("Category: " + categoryCombo.getValue());
-            content.add("Mood: " + moodCombo.getValue());
-            content.add("Date: " + LocalDateTime.now().toString());
-            content.add("");
-            content.add(entryContent.getText());
-            
-            Files.write(entryFile.toPath(), content);
-            
+        // Capture the widget state here; the write itself runs on the diary's I/O thread
+        String title = titleField.getText();
+        String text = contentBuffer.toString();
+        statusLabel.setText("Saving entry...");
+        autoSaveTimer.stop();
+        draftPending = false;
+        draftSnapshotNeeded = true; // the save clears the journal the next edits would apply to
+        
+        if (editingEntry != null) {
+            updateEntry(new DiaryEntry(editingEntry.id, title, categoryCombo.getValue(), moodCombo.getValue(),
+                                       editingEntry.date, text));
+            return;
+        }
+        DiaryEntry entry = new DiaryEntry(null, title, categoryCombo.getValue(), moodCombo.getValue(),
+                                          LocalDateTime.now().toString(), text);
+        CompletableFuture<String> saved = diary.save(entry);
+        
+        onFx(saved, id -> {
             // Update UI
-            entries.add(0, titleField.getText() + " - " + timestamp);
+            entryIds.add(0, id);
+            refreshFacetCounts();
+            refreshDashboard();
             statusLabel.setText("Entry saved successfully!");
             
-            // Clear fields
-            titleField.clear();
-            entryContent.clear();
+            // Clear fields, unless the user already started on something else
+            if (title.equals(titleField.getText()) && text.equals(contentBuffer.toString())) {
+                titleField.clear();
+                setEntryContent("");
+            }
+        }, e -> statusLabel.setText("Error saving entry: " + e.getMessage()));
+    }
+    
+    // Saves over the entry being edited; the version it replaces stays in its history
+    private void updateEntry(DiaryEntry entry) {
+        onFx(diary.update(entry), ignored -> {
+            int position = entryIds.indexOf(entry.id);
+            if (position >= 0) {
+                entryIds.set(position, entry.id); // re-renders the row with the new title
+            }
+            refreshFacetCounts();
+            refreshDashboard();
+            statusLabel.setText("Entry updated; the previous version is kept in its history");
             
-        } catch (IOException e) {
-            statusLabel.setText("Error saving entry: " + e.getMessage());
-        }
+            if (editingEntry != null && editingEntry.id.equals(entry.id) && entry.title.equals(titleField.getText())
+                    && entry.body.equals(contentBuffer.toString())) {
+                editingEntry = null;
+                titleField.clear();
+                setEntryContent("");
+            }
+        }, e -> statusLabel.setText("Error updating entry: " + e.getMessage()));
     }
     
-    private void loadEntry(String entryInfo) {
+    private ListCell<String> createEntryCell() {
+        return new ListCell<String>() {
+            @Override
+            protected void updateItem(String id, boolean empty) {
+                super.updateItem(id, empty);
+                setText(empty || id == null ? null : displayName(id));
+            }
+        };
+    }
+    
+    private <T> void setFacetCells(ComboBox<T> combo, Function<T, String> label) {
+        Callback<ListView<T>, ListCell<T>> factory = list -> new ListCell<T>() {
+            @Override
+            protected void updateItem(T item, boolean empty) {
+                super.updateItem(item, empty);
+                setText(empty || item == null ? null : label.apply(item));
+            }
+        };
+        combo.setCellFactory(factory);
+        combo.setButtonCell(factory.call(null));
+    }
+    
+    private static <K> int facetCount(Map<K, Integer> counts, K key) {
+        Integer count = counts == null ? null : counts.get(key);
+        return count == null ? 0 : count;
+    }
+    
+    private static String facetValue(ComboBox<String> filter) {
+        String value = filter.getValue();
+        return value == null || value.equals(ANY_FACET) ? null : value;
+    }
+    
+    private void showFacetCounts(FacetIndex.Result result) {
+        facetCounts = result;
+        updatingFacets = true;
         try {
-            // Parse entry info to get filename
-            String[] parts = entryInfo.split(" - ");
-            String timestamp = parts[parts.length - 1];
-            String filename = "entry_" + timestamp + ".txt";
-            
-            File entryFile = new File(diaryDirectory, filename);
-            if (entryFile.exists()) {
-                List<String> lines = Files.readAllLines(entryFile.toPath());
+            refreshFacetItems(categoryFilter, result.categoryCounts.keySet());
+            refreshFacetItems(moodFilter, result.moodCounts.keySet());
+            refreshFacetItems(dateFilter, Collections.emptySet());
+        } finally {
+            updatingFacets = false;
+        }
+    }
+    
+    // Re-renders the counts, adding values that only exist in stored entries
+    private static <T> void refreshFacetItems(ComboBox<T> combo, Collection<T> values) {
+        T selected = combo.getValue();
+        List<T> items = new ArrayList<>(combo.getItems());
+        for (T value : values) {
+            if (!items.contains(value)) {
+                items.add(value);
+            }
+        }
+        combo.getItems().setAll(items);
+        combo.setValue(null);
+        combo.setValue(selected);
+    }
+    
+    // Counts over all entries; only when no text query is showing, whose counts the next search refreshes
+    private void refreshFacetCounts() {
+        if (searchField.getText().trim().isEmpty()) {
+            int lastDays = dateFilter.getValue() == null ? 0 : dateFilter.getValue();
+            showFacetCounts(diary.facets(facetValue(categoryFilter), facetValue(moodFilter), lastDays));
+        }
+    }
+    
+    private void scheduleDraft() {
+        if (!draftPending) {
+            draftPending = true;
+            autoSaveTimer.playFromStart();
+        }
+    }
+    
+    // Sends only the content edits since the last flush, unless the journal needs the whole text
+    private void flushDraft() {
+        autoSaveTimer.stop();
+        draftPending = false;
+        
+        List<PieceTable.Edit> edits = contentBuffer.takeEdits();
+        String editingId = editingEntry == null ? null : editingEntry.id;
+        DraftJournal.Draft draft = draftSnapshotNeeded
+                                   ? new DraftJournal.Draft(titleField.getText(), categoryCombo.getValue(),
+                                                            moodCombo.getValue(), contentBuffer.toString(), editingId,
+                                                            editingBaseVersion, System.currentTimeMillis())
+                                   : new DraftJournal.Draft(titleField.getText(), categoryCombo.getValue(),
+                                                            moodCombo.getValue(), edits, editingId,
+                                                            editingBaseVersion, System.currentTimeMillis());
+        draftSnapshotNeeded = false;
+        onFx(diary.saveDraft(draft), applied -> {
+            if (!applied) {
+                draftSnapshotNeeded = true;
+                scheduleDraft();
+            }
+        }, e -> {
+            System.out.println("Error auto-saving draft: " + e.getMessage());
+            draftSnapshotNeeded = true;
+        });
+    }
+    
+    // Programmatic replacement of the content; the buffer starts over from it and the next draft is a snapshot
+    private void setEntryContent(String text) {
+        entryContent.setText(text);
+        contentBuffer.reset(text);
+        draftSnapshotNeeded = true;
+    }
+    
+    // A draft of an edit goes back to editing its entry; if that entry is gone, it is saved as a new one
+    private void recoverDraft() {
+        onFx(diary.recoverDraft(), draft -> {
+            if (draft == null) {
+                return;
+            }
+            if (draft.editingId == null) {
+                restoreDraft(draft, null, -1, "Recovered unsaved draft from " + new Date(draft.savedAt));
+                return;
+            }
+            onFx(diary.read(draft.editingId), entry -> {
+                if (entry == null) {
+                    restoreDraft(draft, null, -1, "Recovered unsaved draft from " + new Date(draft.savedAt) +
+                                 "; its entry was deleted, so it will be saved as a new entry");
+                    return;
+                }
+                onFx(diary.currentVersion(entry.id), current -> {
+                    boolean changed = draft.baseVersion >= 0 && current != draft.baseVersion;
+                    restoreDraft(draft, entry, current, "Recovered unsaved edit of " + entry.title + " from " +
+                                 new Date(draft.savedAt) + (changed
+                                 ? "; the entry changed since, and saving keeps that version in its history" : ""));
+                }, e -> statusLabel.setText("Error recovering draft: " + e.getMessage()));
+            }, e -> statusLabel.setText("Error recovering draft: " + e.getMessage()));
+        }, e -> System.out.println("Error recovering draft: " + e.getMessage()));
+    }
+    
+    // Unless the user already started writing while the draft was being looked up
+    private void restoreDraft(DraftJournal.Draft draft, DiaryEntry editing, int baseVersion, String status) {
+        if (!titleField.getText().isEmpty() || !contentBuffer.isEmpty()) {
+            return;
+        }
+        editingEntry = editing;
+        editingBaseVersion = baseVersion;
+        titleField.setText(draft.title);
+        categoryCombo.setValue(draft.category);
+        moodCombo.setValue(draft.mood);
+        setEntryContent(draft.content);
+        statusLabel.setText(status);
+    }
+    
+    
+    // Title line plus, for text searches, the snippet with the matched words in bold
+    private ListCell<String> createResultCell() {
+        return new ListCell<String>() {
+            @Override
+            protected void updateItem(String id, boolean empty) {
+                super.updateItem(id, empty);
+                Snippet snippet = empty || id == null ? null : snippets.get(id);
+                if (snippet == null) {
+                    setGraphic(null);
+                    setText(empty || id == null ? null : displayName(id));
+                    return;
+                }
                 
-                if (lines.size() >= 6) {
-                    entryTitleLabel.setText(lines.get(0).replace("Title: ", ""));
-                    
-                    StringBuilder content = new StringBuilder();
-                    content.append("Category: ").append(lines.get(1).replace("Category: ", "")).append("\n");
-                    content.append("Mood: ").append(lines.get(2).replace("Mood: ", "")).append("\n");
-                    content.append("Date: ").append(lines.get(3).replace("Date: ", "")).append("\n\n");
-                    
-                    for (int i = 5; i < lines.size(); i++) {
-                        content.append(lines.get(i)).append("\n");
-                    }
-                    
-                    readArea.setText(content.toString());
-                    statusLabel.setText("Loaded entry: " + entryTitleLabel.getText());
+                TextFlow flow = new TextFlow();
+                int at = 0;
+                for (int i = 0; i < snippet.highlights.length; i += 2) {
+                    flow.getChildren().add(snippetText(snippet.text.substring(at, snippet.highlights[i]), false));
+                    flow.getChildren().add(snippetText(snippet.text.substring(snippet.highlights[i], snippet.highlights[i + 1]), true));
+                    at = snippet.highlights[i + 1];
                 }
+                flow.getChildren().add(snippetText(snippet.text.substring(at), false));
+                
+                setText(null);
+                setGraphic(new VBox(2, new Label(displayName(id)), flow));
             }
-        } catch (IOException e) {
-            statusLabel.setText("Error loading entry: " + e.getMessage());
+        };
+    }
+    
+    private static Text snippetText(String text, boolean highlighted) {
+        Text node = new Text(text);
+        node.setStyle(highlighted ? "-fx-font-weight: bold;" : "-fx-fill: " + LIGHT_TEXT_SECONDARY + ";");
+        return node;
+    }
+    
+    private String displayName(String id) {
+        EntryCatalog.Record record = diary.header(id);
+        return (record != null ? record.title : "?") + " - " + id;
+    }
+    
+    private void loadEntry(String id) {
+        statusLabel.setText("Loading entry...");
+        onFx(diary.load(id), this::showEntry, e -> statusLabel.setText("Error loading entry: " + e.getMessage()));
+    }
+    
+    // Reads the entries around the selection into the cache, so stepping through the list opens them instantly
+    private void prefetchNeighbours(ListView<String> list, int index) {
+        if (index < 0) {
+            return;
+        }
+        List<String> items = list.getItems();
+        List<String> neighbours = new ArrayList<>();
+        for (int i = Math.max(0, index - PREFETCH_NEIGHBOURS); i <= index + PREFETCH_NEIGHBOURS && i < items.size(); i++) {
+            neighbours.add(items.get(i));
+        }
+        
+        diary.prefetch(neighbours);
+    }
+    
+    private void showEntry(DiaryService.LoadedEntry loaded) {
+        closeMappedReader();
+        EntryCatalog.Record header = loaded.header;
+        shownEntryId = header.id;
+        
+        if (loaded.mapped != null) {
+            shownEntry = null;
+            mappedReader = loaded.mapped;
+            readHeaderText = "Category: " + header.category + "\n" +
+                             "Mood: " + header.mood + "\n" +
+                             "Date: " + header.date + "\n\n";
+            entryTitleLabel.setText(header.title);
+            
+            windowBar.setMax(mappedReader.length());
+            windowBar.setVisibleAmount(READ_WINDOW_BYTES);
+            windowBar.setUnitIncrement(READ_WINDOW_BYTES / 16);
+            windowBar.setBlockIncrement(READ_WINDOW_BYTES / 2);
+            windowBar.setValue(0);
+            windowBar.setVisible(true);
+            windowBar.setManaged(true);
+            
+            showReadWindow(0);
+            statusLabel.setText("Loaded entry: " + header.title + " (" + (mappedReader.length() / 1024) + " KB)");
+            return;
+        }
+        
+        DiaryEntry entry = loaded.entry;
+        if (entry != null) {
+            showWholeEntry(entry, entry.title);
+            statusLabel.setText("Loaded entry: " + entryTitleLabel.getText());
+        }
+    }
+    
+    private void showWholeEntry(DiaryEntry entry, String heading) {
+        shownEntry = entry;
+        shownEntryId = entry.id;
+        entryTitleLabel.setText(heading);
+        
+        StringBuilder content = new StringBuilder();
+        content.append("Category: ").append(entry.category).append("\n");
+        content.append("Mood: ").append(entry.mood).append("\n");
+        content.append("Date: ").append(entry.date).append("\n\n");
+        content.append(entry.body).append("\n");
+        
+        readArea.setText(content.toString());
+    }
+    
+    private void showReadWindow(long position) {
+        if (mappedReader == null) {
+            return;
         }
+        String window = mappedReader.window(position, READ_WINDOW_BYTES);
+        readArea.setText(position == 0 ? readHeaderText + window : window);
     }
     
+    private void closeMappedReader() {
+        windowBar.setVisible(false);
+        windowBar.setManaged(false);
+        
+        if (mappedReader != null) {
+            try {
+                mappedReader.close();
+            } catch (IOException e) {
+                System.out.println("Error closing entry: " + e.getMessage());
+            }
+            mappedReader = null;
+        }
+    }
+    
+    // Opens the shown entry in the Write tab; an older version shown from the history is edited back into place
+    private void editEntry() {
+        String id = shownEntryId;
+        if (id == null) {
+            showAlert("Error", "No entry open");
+            return;
+        }
+        
+        if (shownEntry != null && shownEntry.id.equals(id)) {
+            startEditing(shownEntry);
+            return;
+        }
+        onFx(diary.read(id), entry -> {
+            if (entry != null) {
+                startEditing(entry);
+            } else {
+                statusLabel.setText("Error: the entry no longer exists");
+            }
+        }, e -> statusLabel.setText("Error loading entry: " + e.getMessage()));
+    }
+    
+    private void startEditing(DiaryEntry entry) {
+        editingEntry = entry;
+        editingBaseVersion = -1;
+        onFx(diary.currentVersion(entry.id), current -> {
+            if (editingEntry == entry) {
+                editingBaseVersion = current;
+                draftSnapshotNeeded = true; // so the journal learns the version
+            }
+        }, e -> System.out.println("Error reading history: " + e.getMessage()));
+        titleField.setText(entry.title);
+        categoryCombo.setValue(entry.category);
+        moodCombo.setValue(entry.mood);
+        setEntryContent(entry.body);
+        mainTabPane.getSelectionModel().select(0);
+        statusLabel.setText("Editing: " + entry.title);
+    }
+    
+    private void showHistory() {
+        String id = shownEntryId;
+        if (id == null) {
+            showAlert("Error", "No entry open");
+            return;
+        }
+        
+        onFx(diary.history(id), versions -> {
+            if (versions.size() < 2) {
+                statusLabel.setText("This entry has not been edited");
+                return;
+            }
+            
+            // Newest first; the label maps back to the version number
+            Map<String, Integer> choices = new LinkedHashMap<>();
+            for (int i = versions.size() - 1; i >= 0; i--) {
+                EntryHistory.Version version = versions.get(i);
+                choices.put("Version " + version.number + " - " + new Date(version.savedAt) +
+                            (i == versions.size() - 1 ? " (current)" : ""), version.number);
+            }
+            ChoiceDialog<String> dialog = new ChoiceDialog<>(choices.keySet().iterator().next(), choices.keySet());
+            dialog.setTitle("Entry History");
+            dialog.setHeaderText(displayName(id));
+            dialog.setContentText("Show version:");
+            
+            dialog.showAndWait().ifPresent(choice -> {
+                int number = choices.get(choice);
+                onFx(diary.version(id, number), entry -> {
+                    if (entry == null) {
+                        statusLabel.setText("Error: version " + number + " is gone");
+                        return;
+                    }
+                    closeMappedReader();
+                    showWholeEntry(entry, entry.title + " (version " + number + ")");
+                    statusLabel.setText("Showing version " + number + "; Edit and save to restore it");
+                }, e -> statusLabel.setText("Error loading version: " + e.getMessage()));
+            });
+        }, e -> statusLabel.setText("Error loading history: " + e.getMessage()));
+    }
+    
+    // Deletes the entry the Read tab shows, wherever it was opened from
     private void deleteEntry() {
-        String selected = entriesListView.getSelectionModel().getSelectedItem();
-        if (selected == null) {
-            showAlert("Error", "No entry selected");
+        String id = shownEntryId;
+        if (id == null) {
+            showAlert("Error", "No entry open");
             return;
         }
         
@@ -489,67 +1195,202 @@ public class DiaryManagerGUI extends Application {
         alert.setContentText("This action cannot be undone.");
         
         if (alert.showAndWait().get() == ButtonType.OK) {
-            try {
-                // Parse entry info to get filename
-                String[] parts = selected.split(" - ");
-                String timestamp = parts[parts.length - 1];
-                String filename = "entry_" + timestamp + ".txt";
-                
-                File entryFile = new File(diaryDirectory, filename);
-                if (entryFile.delete()) {
-                    entries.remove(selected);
-                    entryTitleLabel.setText("No entry selected");
-                    readArea.clear();
+            CompletableFuture<Boolean> deleted = diary.delete(id);
+            
+            onFx(deleted, ok -> {
+                if (ok) {
+                    if (id.equals(shownEntryId)) {
+                        clearShownEntry();
+                    }
+                    if (editingEntry != null && editingEntry.id.equals(id)) {
+                        editingEntry = null; // saving now makes a new entry instead
+                    }
+                    entryIds.remove(id);
+                    resultsList.getItems().remove(id);
+                    refreshFacetCounts();
+                    refreshDashboard();
                     statusLabel.setText("Entry deleted successfully");
                 } else {
                     statusLabel.setText("Error deleting entry");
                 }
-            } catch (Exception e) {
-                statusLabel.setText("Error: " + e.getMessage());
+            }, e -> statusLabel.setText("Error: " + e.getMessage()));
+        }
+    }
+    
+    private void clearShownEntry() {
+        closeMappedReader();
+        shownEntry = null;
+        shownEntryId = null;
+        entryTitleLabel.setText("No entry selected");
+        readArea.clear();
+    }
+    
+    // Patches the list in place for entries another program changed
+    private void showExternalChanges(DiaryService.ExternalChanges changes) {
+        for (String id : changes.removed) {
+            entryIds.remove(id);
+            if (id.equals(shownEntryId)) {
+                clearShownEntry();
+            }
+        }
+        for (String id : changes.added) {
+            // Ids sort by time, and the list is newest first
+            int position = Collections.binarySearch(entryIds, id, Comparator.reverseOrder());
+            if (position < 0) {
+                entryIds.add(-position - 1, id);
+            }
+        }
+        for (String id : changes.changed) {
+            int position = entryIds.indexOf(id);
+            if (position >= 0) {
+                entryIds.set(position, id); // re-renders the row with the new title
             }
         }
+        refreshFacetCounts();
+        refreshDashboard();
+        statusLabel.setText("Synced " + changes.size() + " external change" + (changes.size() == 1 ? "" : "s"));
     }
     
-    private void performSearch() {
-        String searchText = searchField.getText().toLowerCase();
-        if (searchText.isEmpty()) {
-            showAlert("Search", "Please enter search text");
+    private void runSearch(boolean explicit) {
+        searchDebounce.stop();
+        String rawText = searchField.getText().trim();
+        String searchText = rawText.toLowerCase();
+        int generation = ++searchGeneration;
+        resultsList.getItems().clear();
+        snippets.clear();
+        
+        String category = facetValue(categoryFilter);
+        String mood = facetValue(moodFilter);
+        int lastDays = dateFilter.getValue() == null ? 0 : dateFilter.getValue();
+        boolean filtered = category != null || mood != null || lastDays > 0;
+        
+        if (searchText.isEmpty() && !filtered) {
+            diary.cancelSearch(); // supersede anything still running
+            if (explicit) {
+                showAlert("Search", "Please enter search text");
+            }
+            refreshFacetCounts();
+            statusLabel.setText("Ready");
             return;
         }
         
-        List<String> results = new ArrayList<>();
-        File[] files = diaryDirectory.listFiles((dir, name) -> name.endsWith(".txt"));
-        
-        if (files != null) {
-            for (File file : files) {
-                try {
-                    List<String> lines = Files.readAllLines(file.toPath());
-                    String content = String.join(" ", lines).toLowerCase();
-                    
-                    if (content.contains(searchText)) {
-                        String entryName = lines.get(0).replace("Title: ", "") + " - " + 
-                                         file.getName().replace("entry_", "").replace(".txt", "");
-                        results.add(entryName);
+        // Results stream in from the search thread; anything a newer search has superseded is dropped
+        DiaryService.SearchListener listener = new DiaryService.SearchListener() {
+            @Override
+            public void facets(FacetIndex.Result counts) {
+                Platform.runLater(() -> {
+                    if (generation == searchGeneration) {
+                        showFacetCounts(counts);
                     }
-                } catch (IOException e) {
-                    System.out.println("Error searching file: " + file.getName());
-                }
+                });
             }
+            
+            @Override
+            public void results(List<String> ids, Map<String, Snippet> found) {
+                Platform.runLater(() -> {
+                    if (generation == searchGeneration) {
+                        snippets.putAll(found);
+                        resultsList.getItems().addAll(ids);
+                    }
+                });
+            }
+        };
+        CompletableFuture<Integer> search = diary.search(rawText, category, mood, lastDays, RESULT_LIMIT, listener);
+        
+        onFx(search, count -> {
+            if (generation == searchGeneration) {
+                int shown = resultsList.getItems().size();
+                statusLabel.setText("Found " + count + " matches" +
+                                    (searchText.isEmpty() ? "" : " for '" + searchText + "'") +
+                                    (shown < count ? ", showing top " + shown : ""));
+            }
+        }, e -> statusLabel.setText("Search failed: " + e.getMessage()));
+    }
+    
+    private FileChooser transferChooser(String title) {
+        FileChooser chooser = new FileChooser();
+        chooser.setTitle(title);
+        for (DiaryTransfer.Format format : DiaryTransfer.Format.values()) {
+            chooser.getExtensionFilters().add(new FileChooser.ExtensionFilter(format.description, format.pattern));
         }
+        return chooser;
+    }
+    
+    private void exportDiary() {
+        if (transferRunning) {
+            return;
+        }
+        File file = transferChooser("Export Diary").showSaveDialog(stage);
+        if (file == null) {
+            return;
+        }
+        DiaryTransfer.Format format = DiaryTransfer.Format.forFile(file);
+        startTransfer("Exporting");
         
-        // Show results in dialog
-        Alert resultsAlert = new Alert(Alert.AlertType.INFORMATION);
-        resultsAlert.setTitle("Search Results");
-        resultsAlert.setHeaderText("Found " + results.size() + " matching entries");
-        
-        TextArea resultsArea = new TextArea(String.join("\n", results));
-        resultsArea.setEditable(false);
-        resultsArea.setPrefSize(400, 300);
-        
-        resultsAlert.getDialogPane().setContent(resultsArea);
-        resultsAlert.showAndWait();
+        CompletableFuture<Long> exported = diary.export(file, format, transferProgress("Exporting"));
         
-        statusLabel.setText("Found " + results.size() + " matches for '" + searchText + "'");
+        onFx(exported, count -> {
+            finishTransfer();
+            statusLabel.setText("Exported " + count + " entries to " + file.getName());
+        }, e -> {
+            finishTransfer();
+            statusLabel.setText("Export failed: " + e.getMessage());
+        });
+    }
+    
+    private void importDiary() {
+        if (transferRunning) {
+            return;
+        }
+        File file = transferChooser("Import Diary").showOpenDialog(stage);
+        if (file == null) {
+            return;
+        }
+        DiaryTransfer.Format format = DiaryTransfer.Format.forFile(file);
+        startTransfer("Importing");
+        
+        CompletableFuture<Long> imported = diary.importFrom(file, format, transferProgress("Importing"));
+        
+        onFx(imported, count -> {
+            finishTransfer();
+            entryIds.setAll(diary.ids());
+            refreshFacetCounts();
+            refreshDashboard();
+            statusLabel.setText("Imported " + count + " entries from " + file.getName());
+        }, e -> {
+            finishTransfer();
+            entryIds.setAll(diary.ids());
+            statusLabel.setText("Import failed: " + e.getMessage());
+        });
+    }
+    
+    private void startTransfer(String verb) {
+        transferRunning = true;
+        transferBar.setProgress(0);
+        transferBar.setVisible(true);
+        transferBar.setManaged(true);
+        statusLabel.setText(verb + "...");
+    }
+    
+    private void finishTransfer() {
+        transferRunning = false;
+        transferBar.setVisible(false);
+        transferBar.setManaged(false);
+    }
+    
+    // Progress arrives once per entry; at most one update is waiting on the FX thread at a time
+    private DiaryTransfer.Progress transferProgress(String verb) {
+        AtomicBoolean posted = new AtomicBoolean();
+        return (done, total) -> {
+            if (posted.compareAndSet(false, true)) {
+                Platform.runLater(() -> {
+                    posted.set(false);
+                    double fraction = total > 0 ? (double) done / total : 0;
+                    transferBar.setProgress(fraction);
+                    statusLabel.setText(verb + "... " + (int) (fraction * 100) + "%");
+                });
+            }
+        };
     }
     
     private void toggleTheme() {
@@ -574,6 +1415,70 @@ public class DiaryManagerGUI extends Application {
         }
     }
     
+    // Hands a diary result back to the FX thread; cancelled work reports nothing
+    private static <T> void onFx(CompletableFuture<T> future, Consumer<T> onSuccess, Consumer<Throwable> onError) {
+        future.whenComplete((value, error) -> {
+            if (future.isCancelled()) {
+                return;
+            }
+            Platform.runLater(() -> {
+                if (error == null) {
+                    onSuccess.accept(value);
+                } else {
+                    onError.accept(error instanceof CompletionException && error.getCause() != null
+                                   ? error.getCause() : error);
+                }
+            });
+        });
+    }
+    
+    // Asks until the passphrase unlocks the diary; null when the user gives up
+    private DiaryCipher unlockDiary() {
+        boolean creating = !DiaryCipher.isEncrypted(diaryDirectory);
+        String header = creating ? "Choose a passphrase to encrypt your diary.\nIt cannot be recovered if you forget it."
+                : "Enter the passphrase for your diary";
+        
+        while (true) {
+            PasswordField passphrase = new PasswordField();
+            PasswordField repeat = new PasswordField();
+            passphrase.setPromptText("Passphrase");
+            repeat.setPromptText("Repeat passphrase");
+            
+            Dialog<char[]> dialog = new Dialog<>();
+            dialog.setTitle(creating ? "Encrypt Diary" : "Unlock Diary");
+            dialog.setHeaderText(header);
+            dialog.getDialogPane().setContent(creating ? new VBox(10, passphrase, repeat) : new VBox(10, passphrase));
+            dialog.getDialogPane().getButtonTypes().addAll(ButtonType.OK, ButtonType.CANCEL);
+            dialog.setResultConverter(button -> button == ButtonType.OK ? passphrase.getText().toCharArray() : null);
+            
+            char[] entered = dialog.showAndWait().orElse(null);
+            if (entered == null) {
+                return null;
+            }
+            if (entered.length == 0) {
+                header = "The passphrase cannot be empty";
+                continue;
+            }
+            if (creating && !repeat.getText().equals(passphrase.getText())) {
+                header = "The passphrases did not match, please try again";
+                continue;
+            }
+            
+            try {
+                DiaryCipher cipher = DiaryCipher.unlock(diaryDirectory, entered);
+                if (cipher != null) {
+                    return cipher;
+                }
+                header = "Wrong passphrase, please try again";
+            } catch (IOException e) {
+                showAlert("Error", "Error opening the diary key: " + e.getMessage());
+                return null;
+            } finally {
+                Arrays.fill(entered, '\0');
+            }
+        }
+    }
+    
     private void showAlert(String title, String message) {
         Alert alert = new Alert(Alert.AlertType.INFORMATION);
         alert.setTitle(title);
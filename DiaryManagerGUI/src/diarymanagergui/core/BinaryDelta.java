@@ -0,0 +1,156 @@
+package diarymanagergui.core;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Copy/insert deltas between two byte arrays, for the version history. The
+ * delta is the target length followed by ops, each a tag byte and varints:
+ * COPY (offset and length in the base) or INSERT (length, then the bytes).
+ * Matches are found the xdelta way: every BLOCK-aligned block of the base is
+ * hashed into a table, the target is probed at every position, and a verified
+ * match is extended in both directions, so an edit costs roughly its own size
+ * plus a few bytes of ops.
+ */
+final class BinaryDelta {
+    
+    private static final int BLOCK = 16;
+    private static final byte COPY = 1;
+    private static final byte INSERT = 2;
+    
+    private BinaryDelta() {
+    }
+    
+    static byte[] diff(byte[] base, byte[] target) {
+        // Open-addressed table of block hash -> base offset + 1 (0 = empty), at most half full
+        int blocks = base.length / BLOCK;
+        int[] table = new int[Integer.highestOneBit(Math.max(1, blocks) * 2) * 2];
+        int mask = table.length - 1;
+        for (int offset = 0; offset + BLOCK <= base.length; offset += BLOCK) {
+            int slot = hash(base, offset) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = offset + 1;
+        }
+        
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        writeVarint(out, target.length);
+        int literalStart = 0;
+        int position = 0;
+        while (position + BLOCK <= target.length) {
+            int match = blocks > 0 ? find(table, mask, base, target, position) : -1;
+            if (match < 0) {
+                position++;
+                continue;
+            }
+            
+            // Grow the match backwards into the pending literal, then forwards as far as it goes
+            int start = position;
+            while (match > 0 && start > literalStart && base[match - 1] == target[start - 1]) {
+                match--;
+                start--;
+            }
+            int length = position - start + BLOCK;
+            while (match + length < base.length && start + length < target.length
+                   && base[match + length] == target[start + length]) {
+                length++;
+            }
+            
+            writeInsert(out, target, literalStart, start);
+            out.write(COPY);
+            writeVarint(out, match);
+            writeVarint(out, length);
+            position = start + length;
+            literalStart = position;
+        }
+        writeInsert(out, target, literalStart, target.length);
+        return out.toByteArray();
+    }
+    
+    static byte[] apply(byte[] base, byte[] delta) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(delta);
+        int length = readVarint(in);
+        if (length < 0) {
+            throw new IOException("Malformed delta");
+        }
+        byte[] target = new byte[length];
+        int position = 0;
+        while (in.available() > 0) {
+            int op = in.read();
+            int first = readVarint(in);
+            if (first < 0) {
+                throw new IOException("Malformed delta");
+            }
+            if (op == COPY) {
+                int count = readVarint(in);
+                if (count < 0 || count > base.length - first || count > length - position) {
+                    throw new IOException("Delta copies past the end of its base");
+                }
+                System.arraycopy(base, first, target, position, count);
+                position += count;
+            } else if (op == INSERT) {
+                if (first > length - position || in.read(target, position, first) != first) {
+                    throw new IOException("Truncated delta");
+                }
+                position += first;
+            } else {
+                throw new IOException("Unknown delta op " + op);
+            }
+        }
+        if (position != length) {
+            throw new IOException("Delta ends short of its target");
+        }
+        return target;
+    }
+    
+    // The base offset of a block equal to target[position..position + BLOCK), or -1
+    private static int find(int[] table, int mask, byte[] base, byte[] target, int position) {
+        for (int slot = hash(target, position) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            int offset = table[slot] - 1;
+            if (Arrays.equals(base, offset, offset + BLOCK, target, position, position + BLOCK)) {
+                return offset;
+            }
+        }
+        return -1;
+    }
+    
+    private static int hash(byte[] data, int offset) {
+        int h = 0;
+        for (int i = offset; i < offset + BLOCK; i++) {
+            h = h * 31 + data[i];
+        }
+        return h ^ (h >>> 16);
+    }
+    
+    private static void writeInsert(ByteArrayOutputStream out, byte[] target, int from, int to) {
+        if (to > from) {
+            out.write(INSERT);
+            writeVarint(out, to - from);
+            out.write(target, from, to - from);
+        }
+    }
+    
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+    
+    private static int readVarint(ByteArrayInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Truncated delta");
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in delta");
+    }
+}
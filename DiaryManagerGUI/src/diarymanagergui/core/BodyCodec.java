@@ -0,0 +1,156 @@
+package diarymanagergui.core;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.*;
+
+/**
+ * Per-entry body codec. A compressed body starts with 0xFF, a byte that never
+ * occurs in UTF-8, followed by the codec id, the raw length and a raw Deflate
+ * stream primed with a shared dictionary of common diary prose, which is what
+ * makes short entries compress well. An encrypted body is 0xFF, the
+ * AES_GCM_V1 codec id and a {@link DiaryCipher} stream of the body as it
+ * would otherwise be stored (so possibly compressed first). Anything else is
+ * a plain UTF-8 body.
+ */
+final class BodyCodec {
+    
+    static final int MARKER = 0xFF;
+    static final int DEFLATE_V1 = 1;
+    static final int AES_GCM_V1 = 2;
+    static final int PREFIX_LENGTH = 6;
+    
+    // Larger bodies stay raw so the Read tab can keep memory-mapping them
+    static final int MAX_COMPRESSED_BODY = 256 * 1024;
+    
+    // Never change these bytes: every DEFLATE_V1 body needs exactly this dictionary to inflate.
+    // Deflate reaches the end of the dictionary most cheaply, so the commonest strings go last.
+    private static final byte[] DICTIONARY_V1 = (
+            "remember wonderful beautiful tomorrow yesterday together conversation appointment " +
+            "exercise morning afternoon evening weekend birthday holiday vacation breakfast lunch dinner " +
+            "coffee walked finally started finished meeting project office school class friends family " +
+            "mother father sister brother husband wife children kids weather raining sunny cold warm " +
+            "tired excited anxious worried stressed grateful happy sad angry calm relaxed proud " +
+            "I felt really I think I need to I want to I have to I was going to I didn't I don't I'm " +
+            "I've I'll it was a today was a long day, and then we went to the, but I still because " +
+            "something nothing everything anything someone everyone should would could about after " +
+            "before again always never little good great better work home time with this that have " +
+            "from they what when which there their been were will just like more some into over " +
+            "and the to of in it for on was is my me we I a . , \n").getBytes(StandardCharsets.UTF_8);
+    
+    private BodyCodec() {
+    }
+    
+    // Compressed or encrypted, so not readable as UTF-8 as it is
+    static boolean isEncoded(byte first) {
+        return (first & 0xFF) == MARKER;
+    }
+    
+    // Wraps an encoded body (compressed or not) in an encrypted stream bound to the entry's id
+    static byte[] encrypt(String id, byte[] body, DiaryCipher cipher) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length + 2 + DiaryCipher.STREAM_PREFIX +
+                                                              DiaryCipher.TAG_LENGTH);
+        out.write(MARKER);
+        out.write(AES_GCM_V1);
+        try (OutputStream encrypted = cipher.encrypt(out, DiaryCipher.Kind.ENTRY_BODY, id)) {
+            encrypted.write(body);
+        }
+        return out.toByteArray();
+    }
+    
+    // Returns the body as stored: compressed when that is allowed and actually smaller
+    static byte[] encode(byte[] body, Compression compression) {
+        if (compression != Compression.DEFLATE || body.length == 0 || body.length > MAX_COMPRESSED_BODY) {
+            return body;
+        }
+        
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            deflater.setDictionary(DICTIONARY_V1);
+            deflater.setInput(body);
+            deflater.finish();
+            
+            ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 2 + PREFIX_LENGTH);
+            out.write(MARKER);
+            out.write(DEFLATE_V1);
+            out.write(body.length >>> 24);
+            out.write(body.length >>> 16);
+            out.write(body.length >>> 8);
+            out.write(body.length);
+            
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+                if (out.size() >= body.length) {
+                    return body; // incompressible: store it raw
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+    
+    // Upper bound on the decoded length, for sizing buffers; only an estimate for encrypted bodies
+    static int rawLength(byte[] data, int offset, int length) {
+        if (length < PREFIX_LENGTH || !isEncoded(data[offset]) || data[offset + 1] != DEFLATE_V1) {
+            return length;
+        }
+        return ((data[offset + 2] & 0xFF) << 24) | ((data[offset + 3] & 0xFF) << 16) |
+               ((data[offset + 4] & 0xFF) << 8) | (data[offset + 5] & 0xFF);
+    }
+    
+    static byte[] decode(String id, byte[] data, int offset, int length, DiaryCipher cipher) throws IOException {
+        if (length == 0 || !isEncoded(data[offset])) {
+            byte[] body = new byte[length];
+            System.arraycopy(data, offset, body, 0, length);
+            return body;
+        }
+        
+        try (InputStream in = open(id, new ByteArrayInputStream(data, offset, length), cipher)) {
+            if (length < PREFIX_LENGTH || data[offset + 1] != DEFLATE_V1) {
+                return in.readAllBytes();
+            }
+            byte[] body = new byte[rawLength(data, offset, length)];
+            new DataInputStream(in).readFully(body);
+            return body;
+        }
+    }
+    
+    // Streams the decoded body of the entry, decrypting and inflating on the fly as needed; cipher may be null for
+    // plain diaries
+    static InputStream open(String id, InputStream stored, DiaryCipher cipher) throws IOException {
+        PushbackInputStream in = new PushbackInputStream(stored, 1);
+        int first = in.read();
+        if (first == -1) {
+            return in;
+        }
+        if (first != MARKER) {
+            in.unread(first);
+            return in;
+        }
+        
+        int codec = in.read();
+        if (codec == AES_GCM_V1) {
+            if (cipher == null) {
+                throw new IOException("Entry is encrypted; the diary has to be unlocked first");
+            }
+            // Nothing inside may be encrypted again
+            return open(id, cipher.decrypt(in, DiaryCipher.Kind.ENTRY_BODY, id), null);
+        }
+        if (codec != DEFLATE_V1) {
+            throw new ZipException("Unknown entry codec " + codec);
+        }
+        new DataInputStream(in).readInt(); // raw length, only needed for sizing buffers
+        
+        Inflater inflater = new Inflater(true);
+        inflater.setDictionary(DICTIONARY_V1);
+        return new InflaterInputStream(in, inflater, 4096) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                inflater.end();
+            }
+        };
+    }
+}
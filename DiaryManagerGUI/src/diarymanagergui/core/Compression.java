@@ -0,0 +1,20 @@
+package diarymanagergui.core;
+
+/**
+ * Whether new entry bodies are stored compressed. Chosen with
+ * -Ddiary.compression=none|deflate (default none). Existing entries are read
+ * in whatever form they were written, so the setting can change at any time.
+ */
+enum Compression {
+    NONE, DEFLATE;
+    
+    static Compression fromProperty() {
+        String value = System.getProperty("diary.compression", "none");
+        try {
+            return valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Unknown compression '" + value + "', storing entries uncompressed");
+            return NONE;
+        }
+    }
+}
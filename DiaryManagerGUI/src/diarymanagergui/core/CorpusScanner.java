@@ -0,0 +1,248 @@
+package diarymanagergui.core;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.*;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.*;
+
+/**
+ * Brute-force scan for queries the term index cannot answer: /regex/,
+ * "exact phrase" and "a NEAR/n b". The entries are split into chunks that
+ * run on a ForkJoinPool; each worker decodes entry bytes into a reused
+ * CharBuffer (decrypting and inflating encoded bodies on the way) and runs
+ * the compiled pattern on it directly.
+ */
+class CorpusScanner {
+    
+    private static final int LEAF_SIZE = 32;
+    private static final Pattern NEAR = Pattern.compile("(?i)^(\\S+)\\s+NEAR/(\\d+)\\s+(\\S+)$");
+    
+    static final class Query {
+        final Pattern pattern;
+        final String indexTerms; // words every match must contain, or null when the index cannot narrow it
+        
+        Query(Pattern pattern, String indexTerms) {
+            this.pattern = pattern;
+            this.indexTerms = indexTerms;
+        }
+    }
+    
+    static final class Target {
+        final String id;
+        final String header;
+        final File file;
+        final long offset;
+        final int length;
+        
+        Target(String id, String header, File file, long offset, int length) {
+            this.id = id;
+            this.header = header;
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+    
+    private final ForkJoinPool pool;
+    
+    CorpusScanner(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+    
+    // Returns null for plain queries, which the term index handles
+    static Query parse(String text) {
+        int flags = Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+        
+        if (text.length() > 2 && text.startsWith("/") && text.endsWith("/")) {
+            return new Query(Pattern.compile(text.substring(1, text.length() - 1), flags), null);
+        }
+        
+        if (text.length() > 2 && text.startsWith("\"") && text.endsWith("\"")) {
+            String phrase = text.substring(1, text.length() - 1).trim();
+            if (phrase.isEmpty()) {
+                return null; // nothing to look for
+            }
+            // Whole words only, so "art" does not match inside "start". The boundaries go by letters and digits in
+            // any script, where \b only knows ASCII ones, and an edge that is punctuation needs none
+            StringBuilder regex = new StringBuilder();
+            if (Character.isLetterOrDigit(phrase.charAt(0))) {
+                regex.append("(?<![\\p{L}\\p{N}])");
+            }
+            String[] words = phrase.split("\\s+");
+            for (int i = 0; i < words.length; i++) {
+                if (i > 0) {
+                    regex.append("\\s+");
+                }
+                regex.append(Pattern.quote(words[i]));
+            }
+            if (Character.isLetterOrDigit(phrase.charAt(phrase.length() - 1))) {
+                regex.append("(?![\\p{L}\\p{N}])");
+            }
+            return new Query(Pattern.compile(regex.toString(), flags), phrase);
+        }
+        
+        Matcher near = NEAR.matcher(text);
+        if (near.matches()) {
+            String a = "\\b" + Pattern.quote(near.group(1)) + "\\w*";
+            String b = "\\b" + Pattern.quote(near.group(3)) + "\\w*";
+            String gap = "(?:\\W+\\w+){0," + near.group(2) + "}?\\W+";
+            return new Query(Pattern.compile(a + gap + b + "|" + b + gap + a, flags),
+                             near.group(1) + " " + near.group(3));
+        }
+        
+        return null;
+    }
+    
+    // Blocks until every target has been checked; interrupting the caller stops the workers
+    List<String> scan(List<Target> targets, Pattern pattern, DiaryCipher cipher) throws InterruptedException {
+        // Keep each file's entries together so a worker opens it once and reads forward
+        List<Target> sorted = new ArrayList<>(targets);
+        sorted.sort(Comparator.comparing((Target t) -> t.file.getPath()).thenComparingLong(t -> t.offset));
+        
+        ScanTask task = new ScanTask(sorted, 0, sorted.size(), pattern, cipher, new AtomicBoolean());
+        ForkJoinTask<List<String>> running = pool.submit(task);
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            task.cancelled.set(true);
+            running.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            throw new CompletionException(e.getCause());
+        }
+    }
+    
+    private static final class ScanTask extends RecursiveTask<List<String>> {
+        private static final long serialVersionUID = 1L;
+        
+        private final List<Target> targets;
+        private final int from;
+        private final int to;
+        private final Pattern pattern;
+        private final DiaryCipher cipher;
+        private final AtomicBoolean cancelled;
+        
+        ScanTask(List<Target> targets, int from, int to, Pattern pattern, DiaryCipher cipher,
+                 AtomicBoolean cancelled) {
+            this.targets = targets;
+            this.from = from;
+            this.to = to;
+            this.pattern = pattern;
+            this.cipher = cipher;
+            this.cancelled = cancelled;
+        }
+        
+        @Override
+        protected List<String> compute() {
+            if (to - from > LEAF_SIZE) {
+                int mid = (from + to) >>> 1;
+                ScanTask left = new ScanTask(targets, from, mid, pattern, cipher, cancelled);
+                left.fork();
+                List<String> right = new ScanTask(targets, mid, to, pattern, cipher, cancelled).compute();
+                List<String> result = left.join();
+                result.addAll(right);
+                return result;
+            }
+            return scanLeaf();
+        }
+        
+        private List<String> scanLeaf() {
+            List<String> matches = new ArrayList<>();
+            CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            ByteBuffer bytes = ByteBuffer.allocate(8192);
+            CharBuffer chars = CharBuffer.allocate(8192);
+            Matcher matcher = pattern.matcher("");
+            
+            File openFile = null;
+            FileChannel channel = null;
+            for (int i = from; i < to && !cancelled.get(); i++) {
+                Target target = targets.get(i);
+                if (matcher.reset(target.header).find()) {
+                    matches.add(target.id);
+                    continue;
+                }
+                
+                try {
+                    if (!target.file.equals(openFile)) {
+                        closeQuietly(channel);
+                        openFile = null;
+                        channel = FileChannel.open(target.file.toPath(), StandardOpenOption.READ);
+                        openFile = target.file;
+                    }
+                    
+                    if (bytes.capacity() < target.length) {
+                        bytes = ByteBuffer.allocate(target.length);
+                        chars = CharBuffer.allocate(target.length);
+                    }
+                    bytes.clear().limit(target.length);
+                    while (bytes.hasRemaining() && channel.read(bytes, target.offset + bytes.position()) >= 0) {
+                        // keep reading until the whole body is in
+                    }
+                    bytes.flip();
+                    
+                    if (bytes.hasRemaining() && BodyCodec.isEncoded(bytes.get(0))) {
+                        chars = decodeEncoded(target.id, bytes, chars, cipher);
+                    } else {
+                        chars.clear();
+                        decoder.reset();
+                        decoder.decode(bytes, chars, true);
+                        decoder.flush(chars);
+                        chars.flip();
+                    }
+                    
+                    if (matcher.reset(chars).find()) {
+                        matches.add(target.id);
+                    }
+                } catch (IOException e) {
+                    // Entry removed or unreadable since the scan started: skip it
+                    System.out.println("Error scanning entry " + target.id + ": " + e.getMessage());
+                }
+            }
+            closeQuietly(channel);
+            return matches;
+        }
+        
+        // Streams an encoded body through the decryption and inflater straight into the reused char buffer
+        private static CharBuffer decodeEncoded(String id, ByteBuffer bytes, CharBuffer chars, DiaryCipher cipher)
+                throws IOException {
+            int rawLength = BodyCodec.rawLength(bytes.array(), 0, bytes.limit());
+            if (chars.capacity() < rawLength) {
+                chars = CharBuffer.allocate(rawLength);
+            }
+            chars.clear();
+            
+            try (Reader reader = new InputStreamReader(
+                    BodyCodec.open(id, new ByteArrayInputStream(bytes.array(), 0, bytes.limit()), cipher),
+                    StandardCharsets.UTF_8)) {
+                while (reader.read(chars) >= 0) {
+                    if (!chars.hasRemaining()) {
+                        // Only possible when rawLength was an estimate (encrypted and compressed)
+                        CharBuffer larger = CharBuffer.allocate(chars.capacity() * 2);
+                        chars.flip();
+                        chars = larger.put(chars);
+                    }
+                }
+            }
+            chars.flip();
+            return chars;
+        }
+        
+        private static void closeQuietly(FileChannel channel) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // nothing useful to do
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package diarymanagergui.core;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.file.*;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Measures the diary hot paths on generated diaries of a given size: opening
+ * the store and catalog, reading one entry, index and scan searches,
+ * saving, editing and reading old versions. Run it from the command line:
+ *
+ *   java -cp DiaryManagerGUI.jar diarymanagergui.core.DiaryBenchmark [entries...] [--segments]
+ *        [--encrypted] [--dir=path]
+ *
+ * The default sizes are 1000 and 100000 entries; ask for 1000000 explicitly.
+ * A generated diary is kept under the directory and reused by later runs.
+ * --encrypted runs every size twice, plain and then as an encrypted diary,
+ * with raw AES-GCM throughput first, so the overhead can be read off.
+ * -Ddiary.durability, -Ddiary.compression and -Ddiary.format apply as in
+ * the application; a reused diary keeps the format it was generated in.
+ */
+final class DiaryBenchmark {
+    
+    private static final long SEED = 42;
+    private static final int VOCABULARY = 8000;
+    private static final int GENERATE_BATCH = 1000;
+    private static final int RESULT_LIMIT = 100;
+    private static final char[] PASSPHRASE = "benchmark".toCharArray();
+    
+    private static final String[] CATEGORIES = {"Personal", "Work", "Travel", "Ideas", "Goals", "Reflections"};
+    private static final String[] MOODS = {"😊 Happy", "😢 Sad", "😡 Angry", "🤔 Thoughtful", "🎉 Excited", "😌 Peaceful"};
+    
+    private interface Operation {
+        void run(Random random) throws Exception;
+    }
+    
+    private final int entries;
+    private final boolean segments;
+    private final File directory;
+    private final DiaryCipher cipher;
+    private final String[] words = new String[VOCABULARY];
+    
+    private EntryStore store;
+    private EntryCatalog catalog;
+    private SearchIndex searchIndex;
+    private DiaryStatistics statistics;
+    private List<String> ids;
+    
+    private DiaryBenchmark(int entries, boolean segments, File directory, DiaryCipher cipher) {
+        this.entries = entries;
+        this.segments = segments;
+        this.directory = directory;
+        this.cipher = cipher;
+        
+        Random random = new Random(SEED);
+        for (int i = 0; i < words.length; i++) {
+            StringBuilder word = new StringBuilder();
+            for (int n = 3 + random.nextInt(7); n > 0; n--) {
+                word.append((char) ('a' + random.nextInt(26)));
+            }
+            words[i] = word.toString();
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        List<Integer> sizes = new ArrayList<>();
+        boolean segments = false;
+        boolean encrypted = false;
+        File base = new File(System.getProperty("java.io.tmpdir"), "diary-benchmark");
+        
+        for (String arg : args) {
+            if (arg.equals("--segments")) {
+                segments = true;
+            } else if (arg.equals("--encrypted")) {
+                encrypted = true;
+            } else if (arg.startsWith("--dir=")) {
+                base = new File(arg.substring("--dir=".length()));
+            } else {
+                sizes.add(Integer.parseInt(arg));
+            }
+        }
+        if (sizes.isEmpty()) {
+            sizes.addAll(Arrays.asList(1000, 100000));
+        }
+        
+        System.out.printf("%-22s %9s %12s %10s %10s %10s %10s %12s%n", "Benchmark", "Entries", "Ops/s",
+                          "p50 ms", "p90 ms", "p99 ms", "max ms", "Alloc B/op");
+        for (int size : sizes) {
+            String name = (segments ? "segments-" : "files-") + size;
+            new DiaryBenchmark(size, segments, new File(base, name), null).run();
+            if (encrypted) {
+                File directory = new File(base, "encrypted-" + name);
+                directory.mkdirs();
+                DiaryCipher cipher = DiaryCipher.unlock(directory, PASSPHRASE);
+                if (cipher == null) {
+                    throw new IOException(directory + " was encrypted with another passphrase; remove it first");
+                }
+                new DiaryBenchmark(size, segments, directory, cipher).run();
+            }
+        }
+    }
+    
+    private void run() throws Exception {
+        System.out.println("# " + directory.getName());
+        generate();
+        
+        if (cipher != null) {
+            // The cipher on its own, a 64 KB chunk at a time: the ceiling for every encrypted path below
+            byte[] chunk = new byte[DiaryCipher.CHUNK];
+            new Random(SEED).nextBytes(chunk);
+            byte[] sealed = cipher.seal(chunk, DiaryCipher.Kind.ENTRY_BODY, "benchmark");
+            measure("aes-gcm seal 64 KB", 5000, random -> cipher.seal(chunk, DiaryCipher.Kind.ENTRY_BODY, "benchmark"));
+            measure("aes-gcm open 64 KB", 5000,
+                    random -> cipher.open(sealed, DiaryCipher.Kind.ENTRY_BODY, "benchmark"));
+        }
+        
+        // Cold start: no catalog, every header is read (what loadEntries does on first launch)
+        measure("load (no catalog)", entries >= 100000 ? 1 : 3, random -> {
+            Files.deleteIfExists(catalogFile());
+            openDiary();
+        });
+        measure("load (catalog)", 10, random -> openDiary());
+        
+        ids = catalog.ids();
+        searchIndex = new SearchIndex(new File(directory, ".index").toPath(), cipher);
+        measure("index rebuild", entries >= 100000 ? 1 : 3, random -> searchIndex.rebuild(catalog, store));
+        
+        // The Read tab's disk path: header, then the whole entry (cache bypassed)
+        measure("loadEntry", 2000, random -> {
+            String id = ids.get(random.nextInt(ids.size()));
+            store.readHeader(id);
+            store.read(id);
+        });
+        
+        // What runSearch does for a plain query: index lookup, facets, BM25 top-K
+        measure("search (index)", 1000, random -> {
+            String query = word(random) + (random.nextBoolean() ? " " + word(random).substring(0, 2) : "");
+            Set<String> matches = searchIndex.search(query);
+            FacetIndex.Result result = catalog.facets().query(null, null, 0, matches);
+            searchIndex.rank(result.ids, query, RESULT_LIMIT);
+        });
+        
+        // The same with one letter of a word swapped, so it goes through the trigram index
+        measure("search (misspelled)", 1000, random -> {
+            char[] typo = word(random).toCharArray();
+            typo[random.nextInt(typo.length)] = (char) ('a' + random.nextInt(26));
+            String query = new String(typo);
+            Set<String> matches = searchIndex.search(query);
+            FacetIndex.Result result = catalog.facets().query(null, null, 0, matches);
+            searchIndex.rank(result.ids, query, RESULT_LIMIT);
+        });
+        
+        ForkJoinPool pool = new ForkJoinPool();
+        CorpusScanner scanner = new CorpusScanner(pool);
+        List<CorpusScanner.Target> targets = new ArrayList<>();
+        for (EntryCatalog.Record record : catalog.records()) {
+            targets.add(new CorpusScanner.Target(record.id, EntryFormat.headerText(record), store.fileOf(record.id),
+                                                 record.bodyOffset, (int) record.bodyLength));
+        }
+        measure("search (regex scan)", entries >= 100000 ? 5 : 20, random -> {
+            scanner.scan(targets, CorpusScanner.parse("/" + word(random) + "\\s+" + word(random) + "/").pattern,
+                         cipher);
+        });
+        pool.shutdown();
+        
+        // What saveEntry does on the I/O thread; the entries are deleted again so the next run finds the same diary
+        statistics = new DiaryStatistics(new File(directory, ".index/stats.bin").toPath(), cipher);
+        List<String> saved = new ArrayList<>();
+        measure("saveEntry", 500, random -> {
+            DiaryEntry entry = entry(random);
+            String id = store.create(entry);
+            EntryCatalog.Record record = store.readHeader(id);
+            searchIndex.add(id, EntryFormat.searchText(entry), record.modified);
+            catalog.put(record);
+            statistics.put(record, DiaryStatistics.countWords(entry.body));
+            saved.add(id);
+        });
+        
+        // What an edit does: the replaced version goes into the history as a delta, then the entry is rewritten
+        EntryHistory history = new EntryHistory(new File(directory, ".history").toPath(), cipher);
+        measure("updateEntry", 500, random -> {
+            String id = saved.get(random.nextInt(saved.size()));
+            DiaryEntry previous = store.read(id);
+            int at = random.nextInt(previous.body.length() + 1);
+            DiaryEntry entry = new DiaryEntry(id, previous.title, previous.category, previous.mood, previous.date,
+                                              previous.body.substring(0, at) + word(random) + " " +
+                                              previous.body.substring(at));
+            history.record(previous, entry);
+            store.put(entry);
+            EntryCatalog.Record record = store.readHeader(id);
+            searchIndex.add(id, EntryFormat.searchText(entry), record.modified);
+            catalog.put(record);
+            statistics.put(record, DiaryStatistics.countWords(entry.body));
+        });
+        measure("read old version", 500, random -> {
+            String id = saved.get(random.nextInt(saved.size()));
+            List<EntryHistory.Version> versions = history.versions(id);
+            if (!versions.isEmpty()) {
+                history.read(id, versions.get(random.nextInt(versions.size())).number);
+            }
+        });
+        for (String id : saved) {
+            store.delete(id);
+            history.delete(id);
+        }
+        
+        store.flush();
+        store.close();
+    }
+    
+    private void openDiary() throws IOException {
+        if (store != null) {
+            store.close();
+        }
+        store = openStore(Durability.fromProperty());
+        catalog = new EntryCatalog(catalogFile(), cipher);
+        catalog.load();
+        catalog.reconcile(store);
+        catalog.save(store);
+    }
+    
+    private EntryStore openStore(Durability durability) throws IOException {
+        Compression compression = Compression.fromProperty();
+        int version = cipher != null ? EntryFormat.V2 : EntryFormat.versionFromProperty();
+        return segments
+                ? new SegmentLogStore(new File(directory, "segments"), durability, compression, version, cipher)
+                : new FileEntryStore(directory, durability, compression, version, cipher);
+    }
+    
+    private Path catalogFile() {
+        return new File(directory, ".index/catalog.bin").toPath();
+    }
+    
+    // Writes the diary unless an earlier run left one of the right size; generation is not measured
+    private void generate() throws IOException {
+        directory.mkdirs();
+        try (EntryStore generated = openStore(Durability.FAST)) {
+            int existing = generated.stamps().size();
+            if (existing == entries) {
+                return;
+            }
+            if (existing != 0) {
+                throw new IOException(directory + " holds a diary of another size; remove it first");
+            }
+            
+            System.out.println("Generating " + entries + " entries in " + directory);
+            Random random = new Random(SEED);
+            List<DiaryEntry> batch = new ArrayList<>(GENERATE_BATCH);
+            LocalDateTime start = LocalDateTime.now().minusYears(3);
+            for (int i = 0; i < entries; i++) {
+                // Spread over three years, with ids taken from the dates like real saves
+                LocalDateTime date = start.plusSeconds((long) i * 3 * 365 * 24 * 3600 / entries);
+                DiaryEntry entry = entry(random);
+                entry = new DiaryEntry(null, entry.title, entry.category, entry.mood, date.toString(), entry.body);
+                batch.add(entry.withId(DiaryTransfer.baseId(entry)));
+                if (batch.size() == GENERATE_BATCH) {
+                    generated.putAll(batch);
+                    batch.clear();
+                }
+            }
+            generated.putAll(batch);
+            generated.flush();
+        }
+    }
+    
+    // Body lengths are log-normal (median about 150 words, a long tail to thousands); words Zipf-like
+    private DiaryEntry entry(Random random) {
+        int length = (int) Math.min(20000, Math.max(5, Math.exp(5 + random.nextGaussian())));
+        StringBuilder body = new StringBuilder(length * 7);
+        for (int i = 0; i < length; i++) {
+            body.append(word(random)).append(i % 15 == 14 ? ".\n" : " ");
+        }
+        return new DiaryEntry(null, word(random) + " " + word(random), CATEGORIES[random.nextInt(CATEGORIES.length)],
+                              MOODS[random.nextInt(MOODS.length)], LocalDateTime.now().toString(), body.toString());
+    }
+    
+    private String word(Random random) {
+        double r = random.nextDouble();
+        return words[(int) (r * r * r * VOCABULARY)];
+    }
+    
+    // A few untimed warm-up runs, then per-operation latencies and the calling thread's allocations
+    private void measure(String name, int operations, Operation operation) throws Exception {
+        Random random = new Random(SEED);
+        for (int i = 0; i < Math.max(1, operations / 10); i++) {
+            operation.run(random);
+        }
+        
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long[] nanos = new long[operations];
+        long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+        long started = System.nanoTime();
+        for (int i = 0; i < operations; i++) {
+            long t = System.nanoTime();
+            operation.run(random);
+            nanos[i] = System.nanoTime() - t;
+        }
+        long elapsed = System.nanoTime() - started;
+        long allocated = threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+        
+        Arrays.sort(nanos);
+        System.out.printf("%-22s %9d %12.1f %10.3f %10.3f %10.3f %10.3f %12d%n", name, entries,
+                          operations * 1e9 / elapsed, percentile(nanos, 0.50), percentile(nanos, 0.90),
+                          percentile(nanos, 0.99), nanos[operations - 1] / 1e6, allocated / operations);
+    }
+    
+    private static double percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)] / 1e6;
+    }
+}
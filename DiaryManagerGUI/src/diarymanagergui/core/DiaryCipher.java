@@ -0,0 +1,376 @@
+package diarymanagergui.core;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.*;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES-256-GCM for an encrypted diary. A random data key lives in diary.key in
+ * the diary directory, wrapped under a key derived from the passphrase with
+ * PBKDF2, so losing that file loses the diary. Small records (entry headers,
+ * the catalog, statistics, drafts, search journal records) are sealed whole
+ * under a random nonce. Bodies and the search index snapshot are chunked
+ * streams: 64 KB chunks, each with its own tag and a nonce made of a random
+ * stream prefix, the chunk number and a last-chunk flag, so they decrypt
+ * incrementally and a truncated stream fails to authenticate. Every record
+ * and stream is bound to what it holds through its AAD: the kind of record
+ * and, for per-entry data, the entry id, so one moved into another entry or
+ * read as another kind of record fails to authenticate. The JDK's GCM
+ * implementation uses the AES and carry-less multiply instructions of the CPU
+ * where it has them; large chunks and reused Cipher objects keep it there.
+ */
+public final class DiaryCipher {
+    
+    static final int NONCE_LENGTH = 12;
+    static final int TAG_LENGTH = 16;
+    static final int SEAL_OVERHEAD = NONCE_LENGTH + TAG_LENGTH;
+    static final int CHUNK = 64 * 1024;
+    static final int STREAM_PREFIX = 7;
+    
+    private static final String KEY_FILE = "diary.key";
+    private static final int KEY_MAGIC = 0x444B4559; // "DKEY"
+    private static final int KEY_VERSION = 1;
+    private static final int KEY_HEADER = 4 + 4 + 4 + 16;
+    private static final int PBKDF2_ITERATIONS = 310_000;
+    private static final SecureRandom RANDOM = new SecureRandom();
+    
+    // What a sealed record or stream holds; part of its AAD
+    enum Kind {
+        ENTRY_HEADER, ENTRY_BODY, CATALOG, STATISTICS, SEARCH_INDEX, SEARCH_JOURNAL, DRAFT, HISTORY
+    }
+    
+    private final SecretKey key;
+    
+    // Cipher objects are not thread-safe but are expensive to create, so each thread keeps one
+    private final ThreadLocal<Cipher> ciphers = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES/GCM is not available", e);
+        }
+    });
+    
+    private DiaryCipher(SecretKey key) {
+        this.key = key;
+    }
+    
+    public static boolean isEncrypted(File directory) {
+        return new File(directory, KEY_FILE).exists();
+    }
+    
+    /**
+     * Unlocks the diary in directory, creating a new key for it on first use.
+     * Returns null when the passphrase does not unlock the existing key. This
+     * runs PBKDF2 and takes a noticeable fraction of a second.
+     */
+    public static DiaryCipher unlock(File directory, char[] passphrase) throws IOException {
+        Path keyFile = new File(directory, KEY_FILE).toPath();
+        if (!Files.exists(keyFile)) {
+            return create(keyFile, passphrase);
+        }
+        
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(keyFile));
+        if (in.remaining() < KEY_HEADER + SEAL_OVERHEAD || in.getInt() != KEY_MAGIC || in.getInt() != KEY_VERSION) {
+            throw new IOException("Unrecognised key file " + keyFile);
+        }
+        int iterations = in.getInt();
+        byte[] salt = new byte[16];
+        in.get(salt);
+        
+        byte[] data = in.array();
+        DiaryCipher wrapping = new DiaryCipher(deriveKey(passphrase, salt, iterations));
+        try {
+            byte[] dataKey = wrapping.open(data, KEY_HEADER, data.length - KEY_HEADER,
+                                           Arrays.copyOf(data, KEY_HEADER));
+            return new DiaryCipher(new SecretKeySpec(dataKey, "AES"));
+        } catch (IOException e) {
+            return null; // wrong passphrase (or a damaged key file, which looks the same)
+        }
+    }
+    
+    private static DiaryCipher create(Path keyFile, char[] passphrase) throws IOException {
+        byte[] dataKey = new byte[32];
+        byte[] salt = new byte[16];
+        RANDOM.nextBytes(dataKey);
+        RANDOM.nextBytes(salt);
+        
+        ByteBuffer header = ByteBuffer.allocate(KEY_HEADER);
+        header.putInt(KEY_MAGIC);
+        header.putInt(KEY_VERSION);
+        header.putInt(PBKDF2_ITERATIONS);
+        header.put(salt);
+        byte[] wrapped = new DiaryCipher(deriveKey(passphrase, salt, PBKDF2_ITERATIONS))
+                .seal(dataKey, header.array());
+        
+        byte[] data = new byte[KEY_HEADER + wrapped.length];
+        System.arraycopy(header.array(), 0, data, 0, KEY_HEADER);
+        System.arraycopy(wrapped, 0, data, KEY_HEADER, wrapped.length);
+        new DurableWriter(Durability.SAFE).write(keyFile, data);
+        return new DiaryCipher(new SecretKeySpec(dataKey, "AES"));
+    }
+    
+    private static SecretKey deriveKey(char[] passphrase, byte[] salt, int iterations) throws IOException {
+        PBEKeySpec spec = new PBEKeySpec(passphrase, salt, iterations, 256);
+        try {
+            byte[] derived = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+            return new SecretKeySpec(derived, "AES");
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot derive the diary key: " + e.getMessage(), e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+    
+    // The AAD for a record of that kind: its name, then the entry id for per-entry data (null otherwise),
+    // then any extra bytes (such as a header stored in the clear) the record must stay with
+    static byte[] aad(Kind kind, String id, byte[] extra) {
+        byte[] name = kind.name().getBytes(StandardCharsets.US_ASCII);
+        byte[] entry = id == null ? new byte[0] : id.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer aad = ByteBuffer.allocate(2 + name.length + 4 + entry.length + extra.length);
+        aad.put((byte) name.length).put(name).put((byte) (id == null ? 0 : 1)).putInt(entry.length).put(entry);
+        aad.put(extra);
+        return aad.array();
+    }
+    
+    static byte[] aad(Kind kind, String id) {
+        return aad(kind, id, new byte[0]);
+    }
+    
+    byte[] seal(byte[] plain, Kind kind, String id) throws IOException {
+        return seal(plain, aad(kind, id));
+    }
+    
+    // nonce, then ciphertext and tag; aad is authenticated but not stored
+    byte[] seal(byte[] plain, byte[] aad) throws IOException {
+        byte[] sealed = new byte[NONCE_LENGTH + plain.length + TAG_LENGTH];
+        byte[] nonce = new byte[NONCE_LENGTH];
+        RANDOM.nextBytes(nonce);
+        System.arraycopy(nonce, 0, sealed, 0, NONCE_LENGTH);
+        
+        Cipher cipher = ciphers.get();
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+            cipher.updateAAD(aad);
+            cipher.doFinal(plain, 0, plain.length, sealed, NONCE_LENGTH);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Encryption failed: " + e.getMessage(), e);
+        }
+        return sealed;
+    }
+    
+    byte[] open(byte[] sealed, Kind kind, String id) throws IOException {
+        return open(sealed, 0, sealed.length, aad(kind, id));
+    }
+    
+    // Throws when the data was changed, truncated or sealed under another key
+    byte[] open(byte[] sealed, int offset, int length, byte[] aad) throws IOException {
+        if (length < SEAL_OVERHEAD) {
+            throw new EOFException("Encrypted record is truncated");
+        }
+        Cipher cipher = ciphers.get();
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, sealed, offset, NONCE_LENGTH));
+            cipher.updateAAD(aad);
+            return cipher.doFinal(sealed, offset + NONCE_LENGTH, length - NONCE_LENGTH);
+        } catch (AEADBadTagException e) {
+            throw new IOException("Encrypted record failed authentication", e);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Decryption failed: " + e.getMessage(), e);
+        }
+    }
+    
+    // Chunked stream; nothing is written until the first chunk fills or the stream is closed
+    OutputStream encrypt(OutputStream out, Kind kind, String id) {
+        return new EncryptingStream(out, aad(kind, id));
+    }
+    
+    InputStream decrypt(InputStream in, Kind kind, String id) {
+        return new DecryptingStream(in, aad(kind, id));
+    }
+    
+    private byte[] chunkNonce(byte[] prefix, int chunk, boolean last) {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        System.arraycopy(prefix, 0, nonce, 0, STREAM_PREFIX);
+        nonce[7] = (byte) (chunk >>> 24);
+        nonce[8] = (byte) (chunk >>> 16);
+        nonce[9] = (byte) (chunk >>> 8);
+        nonce[10] = (byte) chunk;
+        nonce[11] = (byte) (last ? 1 : 0);
+        return nonce;
+    }
+    
+    private final class EncryptingStream extends FilterOutputStream {
+        private final byte[] aad;
+        private final byte[] prefix = new byte[STREAM_PREFIX];
+        private final byte[] plain = new byte[CHUNK];
+        private final byte[] sealed = new byte[CHUNK + TAG_LENGTH];
+        private int buffered;
+        private int chunk;
+        private boolean closed;
+        
+        EncryptingStream(OutputStream out, byte[] aad) {
+            super(out);
+            this.aad = aad;
+            RANDOM.nextBytes(prefix);
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+        
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            while (length > 0) {
+                // A full chunk is only written once more data shows it is not the last one
+                if (buffered == CHUNK) {
+                    writeChunk(false);
+                }
+                int n = Math.min(length, CHUNK - buffered);
+                System.arraycopy(data, offset, plain, buffered, n);
+                buffered += n;
+                offset += n;
+                length -= n;
+            }
+        }
+        
+        private void writeChunk(boolean last) throws IOException {
+            if (chunk == 0) {
+                out.write(prefix);
+            }
+            Cipher cipher = ciphers.get();
+            try {
+                cipher.init(Cipher.ENCRYPT_MODE, key,
+                            new GCMParameterSpec(TAG_LENGTH * 8, chunkNonce(prefix, chunk, last)));
+                cipher.updateAAD(aad);
+                int n = cipher.doFinal(plain, 0, buffered, sealed, 0);
+                out.write(sealed, 0, n);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Encryption failed: " + e.getMessage(), e);
+            }
+            chunk++;
+            buffered = 0;
+        }
+        
+        @Override
+        public void flush() throws IOException {
+            out.flush(); // a partial chunk stays buffered: only close() may end the stream
+        }
+        
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                writeChunk(true);
+            } finally {
+                out.close();
+            }
+        }
+    }
+    
+    private final class DecryptingStream extends FilterInputStream {
+        private final PushbackInputStream source;
+        private final byte[] aad;
+        private byte[] prefix;
+        private final byte[] sealed = new byte[CHUNK + TAG_LENGTH];
+        private byte[] plain = new byte[0];
+        private int position;
+        private int chunk;
+        private boolean finished;
+        
+        DecryptingStream(InputStream in, byte[] aad) {
+            super(new PushbackInputStream(in, 1));
+            source = (PushbackInputStream) this.in;
+            this.aad = aad;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+        
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            while (position == plain.length) {
+                if (finished) {
+                    return -1;
+                }
+                nextChunk();
+            }
+            int n = Math.min(length, plain.length - position);
+            System.arraycopy(plain, position, buffer, offset, n);
+            position += n;
+            return n;
+        }
+        
+        private void nextChunk() throws IOException {
+            if (prefix == null) {
+                prefix = source.readNBytes(STREAM_PREFIX);
+                if (prefix.length < STREAM_PREFIX) {
+                    throw new EOFException("Encrypted stream is truncated");
+                }
+            }
+            int n = source.readNBytes(sealed, 0, sealed.length);
+            
+            // The last chunk is the one nothing follows; the writer flagged it in its nonce
+            boolean last = n < sealed.length;
+            if (!last) {
+                int next = source.read();
+                if (next == -1) {
+                    last = true;
+                } else {
+                    source.unread(next);
+                }
+            }
+            
+            Cipher cipher = ciphers.get();
+            try {
+                cipher.init(Cipher.DECRYPT_MODE, key,
+                            new GCMParameterSpec(TAG_LENGTH * 8, chunkNonce(prefix, chunk, last)));
+                cipher.updateAAD(aad);
+                plain = cipher.doFinal(sealed, 0, n);
+            } catch (AEADBadTagException e) {
+                throw new IOException("Encrypted stream failed authentication (changed or truncated)", e);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Decryption failed: " + e.getMessage(), e);
+            }
+            position = 0;
+            chunk++;
+            finished = last;
+        }
+        
+        @Override
+        public int available() {
+            return plain.length - position;
+        }
+        
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] discard = new byte[(int) Math.min(n, 8192)];
+            long skipped = 0;
+            while (skipped < n) {
+                int r = read(discard, 0, (int) Math.min(discard.length, n - skipped));
+                if (r == -1) {
+                    break;
+                }
+                skipped += r;
+            }
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package diarymanagergui.core;
+
+/**
+ * A diary entry as stored: the header fields plus the body text.
+ */
+public final class DiaryEntry {
+    
+    public final String id;
+    public final String title;
+    public final String category;
+    public final String mood;
+    public final String date;
+    public final String body;
+    
+    public DiaryEntry(String id, String title, String category, String mood, String date, String body) {
+        this.id = id;
+        this.title = title;
+        this.category = category;
+        this.mood = mood;
+        this.date = date;
+        this.body = body;
+    }
+    
+    DiaryEntry withId(String newId) {
+        return new DiaryEntry(newId, title, category, mood, date, body);
+    }
+}
@@ -0,0 +1,290 @@
+package diarymanagergui.core;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.Supplier;
+import jdk.jfr.*;
+
+/**
+ * Built-in instrumentation: a latency histogram per diary operation (timed
+ * from the call until its future completes, so waiting behind other I/O
+ * counts), bytes read from entry files, the entry cache hit rate and stalls of
+ * the FX thread. Recording is lock-free, so it is always on. Operations and
+ * stalls are also emitted as JDK Flight Recorder events, and the counters as
+ * a periodic one, all in the "Diary" category; they cost nothing unless a
+ * recording is running (e.g. java -XX:StartFlightRecording=filename=diary.jfr).
+ */
+public final class DiaryMetrics {
+    
+    // A UI thread busy for longer than this misses frames the user notices
+    public static final long STALL_THRESHOLD_MS = 100;
+    private static final long PROBE_INTERVAL_MS = 100;
+    
+    public enum Operation {
+        OPEN, LOAD, SAVE, UPDATE, DELETE, SEARCH
+    }
+    
+    @Name("diarymanagergui.Operation")
+    @Label("Diary Operation")
+    @Category("Diary")
+    @StackTrace(false)
+    static final class OperationEvent extends Event {
+        @Label("Operation")
+        String operation;
+        
+        @Label("Failed")
+        boolean failed;
+    }
+    
+    @Name("diarymanagergui.FxStall")
+    @Label("FX Thread Stall")
+    @Category("Diary")
+    @Description("The FX thread ran nothing else for this long")
+    @StackTrace(false)
+    static final class StallEvent extends Event {
+    }
+    
+    @Name("diarymanagergui.Counters")
+    @Label("Diary Counters")
+    @Category("Diary")
+    @Period("1 s")
+    @StackTrace(false)
+    static final class CountersEvent extends Event {
+        @Label("Bytes Read")
+        @DataAmount
+        long bytesRead;
+        
+        @Label("Cache Hits")
+        long cacheHits;
+        
+        @Label("Cache Misses")
+        long cacheMisses;
+        
+        @Label("FX Stalls")
+        long stalls;
+    }
+    
+    /**
+     * Log-linear histogram of microseconds: exact below 4, then four buckets
+     * per power of two, so any percentile is within a quarter of the true
+     * value.
+     */
+    static final class Histogram {
+        private static final int BUCKETS = 4 + 4 * 40;
+        
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalMicros = new LongAdder();
+        private final LongAccumulator maxMicros = new LongAccumulator(Math::max, 0);
+        
+        void record(long micros) {
+            counts.incrementAndGet(bucket(micros));
+            count.increment();
+            totalMicros.add(micros);
+            maxMicros.accumulate(micros);
+        }
+        
+        private static int bucket(long micros) {
+            if (micros < 4) {
+                return (int) Math.max(0, micros);
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            int sub = (int) ((micros >>> (exponent - 2)) & 3);
+            return Math.min(BUCKETS - 1, 4 + (exponent - 2) * 4 + sub);
+        }
+        
+        private static long upperBound(int bucket) {
+            if (bucket < 4) {
+                return bucket + 1;
+            }
+            int exponent = (bucket - 4) / 4 + 2;
+            int sub = (bucket - 4) % 4;
+            return (long) (5 + sub) << (exponent - 2);
+        }
+        
+        long count() {
+            return count.sum();
+        }
+        
+        // The bucket bound at or below which the fraction of samples falls, capped at the largest sample
+        long percentile(double fraction) {
+            long total = count.sum();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(fraction * total);
+            long seen = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                seen += counts.get(b);
+                if (seen >= rank) {
+                    return Math.min(upperBound(b), maxMicros.get());
+                }
+            }
+            return maxMicros.get();
+        }
+    }
+    
+    /** What one operation's histogram says, in milliseconds. */
+    public static final class Stats {
+        public final String name;
+        public final long count;
+        public final double mean;
+        public final double p50;
+        public final double p90;
+        public final double p99;
+        public final double max;
+        
+        Stats(String name, Histogram histogram) {
+            this.name = name;
+            this.count = histogram.count();
+            this.mean = count == 0 ? 0 : histogram.totalMicros.sum() / 1000.0 / count;
+            this.p50 = histogram.percentile(0.50) / 1000.0;
+            this.p90 = histogram.percentile(0.90) / 1000.0;
+            this.p99 = histogram.percentile(0.99) / 1000.0;
+            this.max = histogram.maxMicros.get() / 1000.0;
+        }
+    }
+    
+    private final Map<Operation, Histogram> latencies = new EnumMap<>(Operation.class);
+    private final Histogram stalls = new Histogram();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final Runnable countersHook = this::emitCounters;
+    private ScheduledExecutorService stallProbe;
+    
+    DiaryMetrics() {
+        for (Operation operation : Operation.values()) {
+            latencies.put(operation, new Histogram());
+        }
+        FlightRecorder.addPeriodicEvent(CountersEvent.class, countersHook);
+    }
+    
+    // Times the operation from now until the future it starts completes; cancelled ones are left out
+    <T> CompletableFuture<T> time(Operation operation, Supplier<CompletableFuture<T>> start) {
+        OperationEvent event = new OperationEvent();
+        event.begin();
+        long started = System.nanoTime();
+        
+        CompletableFuture<T> future = start.get();
+        future.whenComplete((value, error) -> {
+            if (future.isCancelled()) {
+                return;
+            }
+            latencies.get(operation).record((System.nanoTime() - started) / 1000);
+            event.end();
+            if (event.shouldCommit()) {
+                event.operation = operation.name();
+                event.failed = error != null;
+                event.commit();
+            }
+        });
+        return future;
+    }
+    
+    void bytesRead(long bytes) {
+        bytesRead.add(bytes);
+    }
+    
+    void cacheHit() {
+        cacheHits.increment();
+    }
+    
+    void cacheMiss() {
+        cacheMisses.increment();
+    }
+    
+    /**
+     * Starts probing the UI thread: every PROBE_INTERVAL_MS a no-op is posted
+     * through uiExecutor (e.g. Platform::runLater), and one that waits
+     * STALL_THRESHOLD_MS or longer to run counts as a stall of that length.
+     * Only one probe is outstanding at a time, so a long stall counts once.
+     */
+    public synchronized void watchStalls(Executor uiExecutor) {
+        if (stallProbe != null) {
+            return;
+        }
+        stallProbe = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "fx-stall-probe");
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicBoolean outstanding = new AtomicBoolean();
+        stallProbe.scheduleWithFixedDelay(() -> {
+            if (!outstanding.compareAndSet(false, true)) {
+                return;
+            }
+            StallEvent event = new StallEvent();
+            event.begin();
+            long posted = System.nanoTime();
+            uiExecutor.execute(() -> {
+                long waited = System.nanoTime() - posted;
+                outstanding.set(false);
+                if (waited >= TimeUnit.MILLISECONDS.toNanos(STALL_THRESHOLD_MS)) {
+                    stalls.record(waited / 1000);
+                    event.commit();
+                }
+            });
+        }, PROBE_INTERVAL_MS, PROBE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+    
+    synchronized void close() {
+        if (stallProbe != null) {
+            stallProbe.shutdownNow();
+            stallProbe = null;
+        }
+        FlightRecorder.removePeriodicEvent(countersHook);
+    }
+    
+    private void emitCounters() {
+        CountersEvent event = new CountersEvent();
+        event.bytesRead = bytesRead.sum();
+        event.cacheHits = cacheHits.sum();
+        event.cacheMisses = cacheMisses.sum();
+        event.stalls = stalls.count();
+        event.commit();
+    }
+    
+    public List<Stats> operations() {
+        List<Stats> stats = new ArrayList<>();
+        for (Map.Entry<Operation, Histogram> entry : latencies.entrySet()) {
+            stats.add(new Stats(entry.getKey().name().toLowerCase(), entry.getValue()));
+        }
+        return stats;
+    }
+    
+    public Stats stalls() {
+        return new Stats("fx stall", stalls);
+    }
+    
+    public long bytesRead() {
+        return bytesRead.sum();
+    }
+    
+    // Of entry loads that could have come from the cache; NaN before the first one
+    public double cacheHitRate() {
+        long hits = cacheHits.sum();
+        long total = hits + cacheMisses.sum();
+        return total == 0 ? Double.NaN : (double) hits / total;
+    }
+    
+    // Plain-text table of everything above, for the diagnostics panel and logs
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-10s %8s %10s %10s %10s %10s %10s%n",
+                                    "Operation", "Count", "Mean ms", "p50 ms", "p90 ms", "p99 ms", "Max ms"));
+        List<Stats> rows = operations();
+        rows.add(stalls());
+        for (Stats row : rows) {
+            report.append(String.format("%-10s %8d %10.2f %10.2f %10.2f %10.2f %10.2f%n",
+                                        row.name, row.count, row.mean, row.p50, row.p90, row.p99, row.max));
+        }
+        report.append(String.format("%nBytes read: %,d%n", bytesRead()));
+        double hitRate = cacheHitRate();
+        report.append("Entry cache hit rate: ").append(Double.isNaN(hitRate) ? "-"
+                : String.format("%.1f%% of %d loads", hitRate * 100, cacheHits.sum() + cacheMisses.sum()))
+              .append(System.lineSeparator());
+        return report.toString();
+    }
+}
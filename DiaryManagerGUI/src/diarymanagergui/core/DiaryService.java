@@ -0,0 +1,696 @@
+package diarymanagergui.core;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * The diary without a user interface: entry store, catalog, search index,
+ * statistics and drafts behind one asynchronous API. Store and index work
+ * runs on a single ordered I/O thread, searches on their own thread and bulk
+ * transfers on a third, so no method blocks on the disk. Futures complete on
+ * those threads; a UI hands the results over to its own thread.
+ */
+public final class DiaryService {
+    
+    // Entries with bodies larger than this are memory-mapped and read one window at a time
+    public static final long MAPPED_READ_THRESHOLD = 256 * 1024;
+    
+    // Parsed entries kept for reading again, and how many search results go to the listener per call
+    private static final long ENTRY_CACHE_BYTES = 16 * 1024 * 1024;
+    private static final int RESULT_CHUNK = 200;
+    
+    // Entries rewritten per I/O task by the upgrader, so user requests never wait behind all of them
+    private static final int UPGRADE_BATCH = 32;
+    
+    // Result of a load: either the whole entry or a mapping of its (large) body
+    public static final class LoadedEntry {
+        public final EntryCatalog.Record header;
+        public final DiaryEntry entry;
+        public final MappedEntryReader mapped;
+        
+        LoadedEntry(EntryCatalog.Record header, DiaryEntry entry, MappedEntryReader mapped) {
+            this.header = header;
+            this.entry = entry;
+            this.mapped = mapped;
+        }
+    }
+    
+    // Entries another program added, changed or removed in the diary directory
+    public static final class ExternalChanges {
+        public final List<String> added = new ArrayList<>();
+        public final List<String> changed = new ArrayList<>();
+        public final List<String> removed = new ArrayList<>();
+        
+        public int size() {
+            return added.size() + changed.size() + removed.size();
+        }
+    }
+    
+    // Called on the search thread, facets first, then the results a chunk at a time in display order
+    public interface SearchListener {
+        void facets(FacetIndex.Result counts);
+        
+        // Snippets are only extracted for text searches; the map is empty otherwise
+        void results(List<String> ids, Map<String, Snippet> snippets);
+    }
+    
+    // Last completed query and its matches, reused when the next query only extends it
+    private static final class SearchResult {
+        final String query;
+        final Set<String> ids;
+        
+        SearchResult(String query, Set<String> ids) {
+            this.query = query;
+            this.ids = ids;
+        }
+    }
+    
+    private final File directory;
+    private final DiaryCipher cipher;
+    private final Consumer<ExternalChanges> externalChanges;
+    private final IoScheduler io = new IoScheduler();
+    private final ForkJoinPool workers = new ForkJoinPool();
+    private final CorpusScanner scanner = new CorpusScanner(workers);
+    private final DiaryTransfer transfer = new DiaryTransfer(workers, workers.getParallelism());
+    private final EntryCatalog catalog;
+    private final SearchIndex searchIndex;
+    private final DiaryStatistics statistics;
+    private final DraftJournal drafts;
+    private final EntryHistory history;
+    private final EntryCache entryCache = new EntryCache(ENTRY_CACHE_BYTES);
+    private final DiaryMetrics metrics = new DiaryMetrics();
+    private final AtomicBoolean flushQueued = new AtomicBoolean();
+    private EntryStore store; // only touched on the I/O thread
+    private DirectoryWatcher watcher; // only touched on the I/O thread
+    private CompletableFuture<Void> indexReady;
+    private volatile SearchResult lastSearch;
+    
+    /**
+     * Nothing is read until {@link #open()}. externalChanges is called on the
+     * I/O thread whenever another program changed entry files, once they have
+     * been applied.
+     */
+    public DiaryService(File directory, Consumer<ExternalChanges> externalChanges) {
+        this(directory, null, externalChanges);
+    }
+    
+    /**
+     * An encrypted diary, unlocked with {@link DiaryCipher#unlock}. Entries,
+     * the catalog, the search index, statistics and drafts are all encrypted;
+     * entries written before encryption was turned on stay readable until
+     * {@link #upgradeEntries()} rewrites them.
+     */
+    public DiaryService(File directory, DiaryCipher cipher, Consumer<ExternalChanges> externalChanges) {
+        this.directory = directory;
+        this.cipher = cipher;
+        this.externalChanges = externalChanges;
+        catalog = new EntryCatalog(new File(directory, ".index/catalog.bin").toPath(), cipher);
+        searchIndex = new SearchIndex(new File(directory, ".index").toPath(), cipher);
+        statistics = new DiaryStatistics(new File(directory, ".index/stats.bin").toPath(), cipher);
+        drafts = new DraftJournal(new File(directory, ".drafts/draft.journal").toPath(), cipher);
+        history = new EntryHistory(new File(directory, ".history").toPath(), cipher);
+    }
+    
+    private EntryStore openStore() {
+        Durability durability = Durability.fromProperty();
+        Compression compression = Compression.fromProperty();
+        int version = cipher != null ? EntryFormat.V2 : EntryFormat.versionFromProperty();
+        
+        // -Ddiary.store=segments selects the append-only log (import old files with StoreMigration)
+        if ("segments".equals(System.getProperty("diary.store"))) {
+            try {
+                return new SegmentLogStore(new File(directory, "segments"), durability, compression, version,
+                                           cipher);
+            } catch (IOException e) {
+                System.out.println("Error opening segment store, using entry files: " + e.getMessage());
+            }
+        }
+        return new FileEntryStore(directory, durability, compression, version, cipher);
+    }
+    
+    // Opens the store and catalog; completes with every entry id, newest first
+    public CompletableFuture<List<String>> open() {
+        return metrics.time(DiaryMetrics.Operation.OPEN, () -> io.submit(() -> {
+            store = openStore();
+            store.setRelocationListener(this::relocated);
+            entryCache.clear();
+            
+            // Catalog is one sequential read; only entries changed since it was written get their header re-read
+            catalog.load();
+            catalog.reconcile(store);
+            catalog.save(store);
+            
+            // Entry files can also change under us (sync tools); the segment log is only written by us
+            if (store instanceof FileEntryStore) {
+                try {
+                    watcher = new DirectoryWatcher(directory.toPath(), FileEntryStore::idOfName, this::watched);
+                } catch (IOException e) {
+                    System.out.println("Error watching diary directory: " + e.getMessage());
+                }
+            }
+            return catalog.ids();
+        }));
+    }
+    
+    // Text searches wait for this
+    public CompletableFuture<Void> openSearchIndex() {
+        indexReady = io.submit(() -> {
+            if (!searchIndex.load()) {
+                searchIndex.rebuild(catalog, store); // first run, or an unreadable index
+            } else {
+                // Entries synced in, changed or deleted while the diary was closed
+                searchIndex.reconcile(catalog, store);
+            }
+            return null;
+        });
+        return indexReady;
+    }
+    
+    // Completes with how many entries had to be counted again
+    public CompletableFuture<Integer> openStatistics() {
+        return io.submit(() -> {
+            // Only entries added or changed since the figures were last saved get counted
+            statistics.load();
+            int counted = statistics.reconcile(catalog, store);
+            statistics.save();
+            return counted;
+        });
+    }
+    
+    // Queued behind any pending writes; waits up to timeoutSeconds for them
+    public void close(long timeoutSeconds) {
+        io.submit(() -> {
+            if (watcher != null) {
+                watcher.close();
+            }
+            catalog.save(store);
+            statistics.save();
+            store.close();
+            drafts.close();
+            return null;
+        }).exceptionally(e -> {
+            System.out.println("Error closing diary store: " + e.getMessage());
+            return null;
+        });
+        io.shutdown(timeoutSeconds);
+        workers.shutdown();
+        metrics.close();
+    }
+    
+    // The in-memory views below are safe to call from any thread
+    
+    public DiaryMetrics metrics() {
+        return metrics;
+    }
+    
+    public EntryCatalog.Record header(String id) {
+        return catalog.get(id);
+    }
+    
+    // Newest first
+    public List<String> ids() {
+        return catalog.ids();
+    }
+    
+    public FacetIndex.Result facets(String category, String mood, int lastDays) {
+        return catalog.facets().query(category, mood, lastDays, null);
+    }
+    
+    public DiaryStatistics.Summary statistics(int weeks, int months) {
+        return statistics.summary(weeks, months);
+    }
+    
+    // Completes with the new entry's id; the draft it came from is cleared
+    public CompletableFuture<String> save(DiaryEntry entry) {
+        return metrics.time(DiaryMetrics.Operation.SAVE, () -> io.submit(() -> {
+            String id = store.create(entry);
+            entryCache.invalidate(id);
+            drafts.clear();
+            EntryCatalog.Record record = store.readHeader(id);
+            searchIndex.add(id, EntryFormat.searchText(entry), record.modified);
+            catalog.put(record);
+            statistics.put(record, DiaryStatistics.countWords(entry.body));
+            lastSearch = null;
+            requestFlush();
+            return id;
+        }));
+    }
+    
+    /**
+     * Replaces a stored entry in place, keeping its id (the entry's own). The
+     * version it replaces goes into the entry's history first; the draft it
+     * came from is cleared.
+     */
+    public CompletableFuture<Void> update(DiaryEntry entry) {
+        return metrics.time(DiaryMetrics.Operation.UPDATE, () -> io.submit(() -> {
+            DiaryEntry previous = store.read(entry.id);
+            if (previous == null) {
+                throw new FileNotFoundException("Entry " + entry.id + " no longer exists");
+            }
+            history.record(previous, entry);
+            store.put(entry);
+            entryCache.invalidate(entry.id);
+            drafts.clear();
+            EntryCatalog.Record record = store.readHeader(entry.id);
+            searchIndex.add(entry.id, EntryFormat.searchText(entry), record.modified);
+            catalog.put(record);
+            statistics.put(record, DiaryStatistics.countWords(entry.body));
+            lastSearch = null;
+            requestFlush();
+            return null;
+        }));
+    }
+    
+    // The whole entry however large (load() maps large ones instead); null if there is no such entry
+    public CompletableFuture<DiaryEntry> read(String id) {
+        return io.submit(() -> store.read(id));
+    }
+    
+    // Oldest first, the last being the current version; empty for an entry that was never edited
+    public CompletableFuture<List<EntryHistory.Version>> history(String id) {
+        return io.submit(() -> history.versions(id));
+    }
+    
+    // The number of the entry's current version in its history; 0 for an entry that was never edited
+    public CompletableFuture<Integer> currentVersion(String id) {
+        return io.submit(() -> history.currentVersion(id));
+    }
+    
+    // The entry as it was at that version of its history, or null when there is no such version
+    public CompletableFuture<DiaryEntry> version(String id, int number) {
+        return io.submit(() -> history.read(id, number));
+    }
+    
+    // Completes with false if there was no such entry; its history goes with it
+    public CompletableFuture<Boolean> delete(String id) {
+        return metrics.time(DiaryMetrics.Operation.DELETE, () -> io.submit(() -> {
+            entryCache.invalidate(id);
+            if (!store.delete(id)) {
+                return false;
+            }
+            history.delete(id);
+            searchIndex.remove(id);
+            catalog.remove(id);
+            statistics.remove(id);
+            lastSearch = null;
+            requestFlush();
+            return true;
+        }));
+    }
+    
+    // I/O thread, inside the store write that moved them: catalog offsets must follow before anything reads a body
+    private void relocated(Collection<String> ids) {
+        for (String id : ids) {
+            entryCache.invalidate(id);
+            try {
+                EntryCatalog.Record record = store.readHeader(id);
+                catalog.put(record);
+                statistics.moved(record);
+                searchIndex.moved(id, record.modified);
+            } catch (IOException e) {
+                System.out.println("Error reading moved entry " + id + ": " + e.getMessage());
+            }
+        }
+    }
+    
+    // Group commit: saves queued back to back share one flush, which runs after all of them
+    private void requestFlush() {
+        if (flushQueued.compareAndSet(false, true)) {
+            io.submit(() -> {
+                flushQueued.set(false);
+                store.flush();
+                return null;
+            });
+        }
+    }
+    
+    // The caller owns (and closes) a mapped reader it gets back
+    public CompletableFuture<LoadedEntry> load(String id) {
+        return metrics.time(DiaryMetrics.Operation.LOAD, () -> io.submit(() -> {
+            EntryCache.Cached cached = entryCache.get(id);
+            if (cached != null) {
+                metrics.cacheHit();
+                return new LoadedEntry(cached.header, cached.entry, null);
+            }
+            metrics.cacheMiss();
+            
+            // Encrypted bodies cannot be mapped; they are decrypted whole instead
+            EntryCatalog.Record header = store.readHeader(id);
+            if (header.bodyLength > MAPPED_READ_THRESHOLD && cipher == null) {
+                return new LoadedEntry(header, null, new MappedEntryReader(store.fileOf(id), header.bodyOffset,
+                                                                           header.bodyLength));
+            }
+            DiaryEntry entry = store.read(id);
+            if (entry != null) {
+                metrics.bytesRead(header.bodyLength);
+                entryCache.put(header, entry);
+            }
+            return new LoadedEntry(header, entry, null);
+        }));
+    }
+    
+    // Reads entries the user is likely to open next into the cache, in the background
+    public void prefetch(Collection<String> ids) {
+        io.submit(() -> {
+            for (String id : ids) {
+                EntryCatalog.Record header = catalog.get(id);
+                if (header == null || header.bodyLength > MAPPED_READ_THRESHOLD || entryCache.contains(id)) {
+                    continue;
+                }
+                try {
+                    DiaryEntry entry = store.read(id);
+                    if (entry != null) {
+                        metrics.bytesRead(header.bodyLength);
+                        entryCache.put(store.readHeader(id), entry);
+                    }
+                } catch (IOException e) {
+                    System.out.println("Error prefetching entry " + id + ": " + e.getMessage());
+                }
+            }
+            return null;
+        });
+    }
+    
+    // Completes with false when the draft only had edits and the journal had nothing to apply them to;
+    // the next draft should then carry the whole content
+    public CompletableFuture<Boolean> saveDraft(DraftJournal.Draft draft) {
+        return io.submit(() -> drafts.append(draft));
+    }
+    
+    // Completes with null when there is no draft to recover
+    public CompletableFuture<DraftJournal.Draft> recoverDraft() {
+        return io.submit(drafts::recover);
+    }
+    
+    /**
+     * Rewrites entries still stored in an older layout in the store's write
+     * version (or still in plaintext in an encrypted diary), in the
+     * background, and in an encrypted diary seals histories begun before
+     * encryption was turned on. It works through the catalog a small batch
+     * per I/O task, so saves, loads and searches interleave with it. Content
+     * is unchanged, so only the catalog and statistics stamps are updated.
+     * Completes with how many entries had their file or history rewritten.
+     */
+    public CompletableFuture<Integer> upgradeEntries() {
+        return io.submit(catalog::ids).thenCompose(ids -> upgradeBatch(ids, 0, 0));
+    }
+    
+    private CompletableFuture<Integer> upgradeBatch(List<String> ids, int from, int upgraded) {
+        if (from >= ids.size()) {
+            return CompletableFuture.completedFuture(upgraded);
+        }
+        return io.submit(() -> {
+            int count = 0;
+            for (String id : ids.subList(from, Math.min(ids.size(), from + UPGRADE_BATCH))) {
+                try {
+                    if (catalog.get(id) == null) {
+                        continue;
+                    }
+                    boolean rewritten = history.upgrade(id);
+                    DiaryEntry entry = store.needsUpgrade(id) ? store.read(id) : null;
+                    if (entry != null) {
+                        store.put(entry);
+                        entryCache.invalidate(id);
+                        EntryCatalog.Record record = store.readHeader(id);
+                        catalog.put(record);
+                        statistics.put(record, DiaryStatistics.countWords(entry.body));
+                        rewritten = true;
+                    }
+                    if (rewritten) {
+                        count++;
+                    }
+                } catch (IOException e) {
+                    System.out.println("Error upgrading entry " + id + ": " + e.getMessage());
+                }
+            }
+            if (count > 0) {
+                requestFlush();
+            }
+            return count;
+        }).thenCompose(count -> upgradeBatch(ids, from + UPGRADE_BATCH, upgraded + count));
+    }
+    
+    // Watcher thread: hand the coalesced batch to the I/O thread
+    private void watched(Set<String> ids, boolean overflow) {
+        io.submit(() -> {
+            ExternalChanges changes = applyExternalChanges(ids, overflow);
+            if (changes.size() > 0) {
+                externalChanges.accept(changes);
+            }
+            return null;
+        }).exceptionally(e -> {
+            System.out.println("Error applying external changes: " + e.getMessage());
+            return null;
+        });
+    }
+    
+    // I/O thread. Our own saves and deletes also raise events; they already match the catalog and are skipped
+    private ExternalChanges applyExternalChanges(Set<String> ids, boolean overflow) throws IOException {
+        Set<String> candidates = new HashSet<>(ids);
+        if (overflow) {
+            candidates.addAll(store.stamps().keySet());
+            candidates.addAll(catalog.ids());
+        }
+        
+        ExternalChanges changes = new ExternalChanges();
+        for (String id : candidates) {
+            entryCache.invalidate(id);
+            EntryCatalog.Record known = catalog.get(id);
+            File file = store.fileOf(id);
+            
+            if (!file.exists()) {
+                if (known != null) {
+                    searchIndex.remove(id);
+                    catalog.remove(id);
+                    statistics.remove(id);
+                    changes.removed.add(id);
+                }
+                continue;
+            }
+            if (known != null && known.modified == file.lastModified()) {
+                continue;
+            }
+            
+            try {
+                DiaryEntry entry = store.read(id);
+                EntryCatalog.Record record = store.readHeader(id);
+                if (entry == null) {
+                    continue;
+                }
+                searchIndex.add(id, EntryFormat.searchText(entry), record.modified);
+                catalog.put(record);
+                statistics.put(record, DiaryStatistics.countWords(entry.body));
+                (known == null ? changes.added : changes.changed).add(id);
+            } catch (IOException e) {
+                // Probably still being written; its next event brings it in
+                System.out.println("Error reading changed entry " + id + ": " + e.getMessage());
+            }
+        }
+        
+        if (changes.size() > 0) {
+            lastSearch = null;
+        }
+        return changes;
+    }
+    
+    /**
+     * Searches for text (plain words, /regex/, "phrase" or "a NEAR/n b")
+     * within the entries the facet filters leave; null filters and zero days
+     * mean no filter. Filters alone list every entry newest first; text
+     * searches keep only the best limit by BM25 and come with snippets.
+     * Plain words that match nothing are looked up as likely misspellings.
+     * Starting a search cancels the one still running. Completes with the
+     * total number of matches.
+     */
+    public CompletableFuture<Integer> search(String text, String category, String mood, int lastDays, int limit,
+                                             SearchListener listener) {
+        String rawText = text.trim();
+        String searchText = rawText.toLowerCase();
+        
+        return metrics.time(DiaryMetrics.Operation.SEARCH, () -> io.submitSearch(() -> {
+            Set<String> matches = null; // filters alone: every entry is a candidate
+            CorpusScanner.Query scanQuery = null;
+            if (!searchText.isEmpty()) {
+                indexReady.get();
+                
+                SearchResult previous = lastSearch;
+                scanQuery = CorpusScanner.parse(rawText);
+                if (scanQuery != null) {
+                    matches = scanEntries(scanQuery);
+                    lastSearch = null;
+                } else if (previous != null && searchText.startsWith(previous.query)) {
+                    matches = searchIndex.refine(previous.ids, searchText);
+                    lastSearch = new SearchResult(searchText, matches);
+                } else {
+                    matches = searchIndex.search(searchText);
+                    lastSearch = new SearchResult(searchText, matches);
+                }
+            }
+            
+            FacetIndex.Result facets = catalog.facets().query(category, mood, lastDays, matches);
+            listener.facets(facets);
+            
+            // Scan queries are ranked by their index words, if they have any
+            List<String> shown = facets.ids;
+            Pattern highlight = null;
+            if (!searchText.isEmpty()) {
+                String rankBy = scanQuery != null ? scanQuery.indexTerms : searchText;
+                shown = rankBy != null
+                        ? searchIndex.rank(facets.ids, rankBy, limit)
+                        : facets.ids.subList(0, Math.min(facets.ids.size(), limit));
+                highlight = scanQuery != null ? scanQuery.pattern : Snippet.highlighter(searchIndex.matchedTerms(searchText));
+            }
+            
+            // In chunks, so the first results can show immediately
+            for (int from = 0; from < shown.size(); from += RESULT_CHUNK) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new CancellationException();
+                }
+                List<String> chunk = new ArrayList<>(shown.subList(from, Math.min(shown.size(), from + RESULT_CHUNK)));
+                listener.results(chunk, highlight == null
+                                        ? Collections.emptyMap()
+                                        : extractSnippets(chunk, highlight));
+            }
+            return facets.ids.size();
+        }));
+    }
+    
+    // Supersedes a search that is still running
+    public void cancelSearch() {
+        io.submitSearch(() -> null);
+    }
+    
+    // Regex, phrase and proximity queries: narrow with the index where possible, then scan in parallel
+    private Set<String> scanEntries(CorpusScanner.Query query) throws Exception {
+        Collection<String> candidates = query.indexTerms != null
+                ? searchIndex.search(query.indexTerms.toLowerCase())
+                : catalog.ids();
+        
+        try (Pinned<List<CorpusScanner.Target>> targets = targets(candidates)) {
+            for (CorpusScanner.Target target : targets.value) {
+                metrics.bytesRead(target.length);
+            }
+            return new HashSet<>(scanner.scan(targets.value, query.pattern, cipher));
+        }
+    }
+    
+    // Entry locations resolved on the I/O thread, with their files kept on disk until the reader is done
+    private static final class Pinned<T> implements AutoCloseable {
+        final T value;
+        private final EntryStore.Pin pin;
+        
+        Pinned(T value, EntryStore.Pin pin) {
+            this.value = value;
+            this.pin = pin;
+        }
+        
+        @Override
+        public void close() {
+            pin.close();
+        }
+    }
+    
+    // Resolved on the I/O thread so readers see every write queued before them
+    private Pinned<List<CorpusScanner.Target>> targets(Collection<String> ids) throws Exception {
+        return io.submit(() -> {
+            List<CorpusScanner.Target> list = new ArrayList<>();
+            for (String id : ids) {
+                EntryCatalog.Record record = catalog.get(id);
+                if (record != null) {
+                    list.add(new CorpusScanner.Target(id, EntryFormat.headerText(record), store.fileOf(id),
+                                                      record.bodyOffset, (int) record.bodyLength));
+                }
+            }
+            return new Pinned<>(list, store.pin());
+        }).get();
+    }
+    
+    // Search thread: each body is read through its own channel, and only as far as the snippet needs
+    private Map<String, Snippet> extractSnippets(List<String> ids, Pattern highlight) throws Exception {
+        Map<String, Snippet> extracted = new HashMap<>();
+        try (Pinned<List<CorpusScanner.Target>> targets = targets(ids)) {
+            for (CorpusScanner.Target target : targets.value) {
+                try (Reader body = EntryFormat.openBody(target.id, target.file, target.offset, target.length,
+                                                        cipher)) {
+                    extracted.put(target.id, Snippet.extract(body, highlight));
+                } catch (IOException e) {
+                    System.out.println("Error reading entry: " + target.id);
+                }
+            }
+        }
+        return extracted;
+    }
+    
+    // Completes with the number of entries written
+    public CompletableFuture<Long> export(File file, DiaryTransfer.Format format, DiaryTransfer.Progress progress) {
+        // Entry locations are resolved on the I/O thread; the export itself only reads files
+        return io.submit(() -> {
+            List<DiaryTransfer.Source> sources = new ArrayList<>();
+            for (EntryCatalog.Record record : catalog.records()) {
+                sources.add(new DiaryTransfer.Source(record, store.fileOf(record.id), cipher));
+            }
+            Collections.reverse(sources); // oldest first
+            return new Pinned<>(sources, store.pin());
+        }).thenCompose(sources -> io.submitTransfer(() -> {
+            // Written next to the target and moved over it, so a failed export never clobbers an old backup
+            Path part = file.toPath().resolveSibling(file.getName() + ".part");
+            long count;
+            try (OutputStream out = Files.newOutputStream(part)) {
+                count = transfer.export(sources.value, format, out, progress);
+            }
+            Files.move(part, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return count;
+        }).whenComplete((count, error) -> sources.close()));
+    }
+    
+    // Completes with the number of entries read; batches stored before a failure stay stored
+    public CompletableFuture<Long> importFrom(File file, DiaryTransfer.Format format, DiaryTransfer.Progress progress) {
+        // Parsed on the transfer thread, stored on the I/O thread a batch at a time
+        return io.submitTransfer(() -> {
+            try (InputStream in = Files.newInputStream(file.toPath())) {
+                return transfer.importFrom(in, file.length(), format, batch -> io.submit(() -> storeImported(batch)),
+                                           progress);
+            }
+        });
+    }
+    
+    // I/O thread: one group commit per batch, then the index, catalog and statistics catch up
+    private Void storeImported(List<DiaryEntry> batch) throws IOException {
+        List<DiaryEntry> entries = new ArrayList<>(batch.size());
+        Set<String> assigned = new HashSet<>();
+        for (DiaryEntry entry : batch) {
+            String id = entry.id;
+            if (id == null) {
+                String base = DiaryTransfer.baseId(entry);
+                id = base;
+                for (int n = 2; catalog.get(id) != null || assigned.contains(id); n++) {
+                    id = base + "_" + n;
+                }
+                assigned.add(id);
+            }
+            entries.add(entry.withId(id));
+        }
+        store.putAll(entries);
+        for (DiaryEntry entry : entries) {
+            entryCache.invalidate(entry.id);
+        }
+        
+        Map<String, String> documents = new LinkedHashMap<>();
+        Map<String, Long> stamps = new HashMap<>();
+        for (DiaryEntry entry : entries) {
+            documents.put(entry.id, EntryFormat.searchText(entry));
+            EntryCatalog.Record record = store.readHeader(entry.id);
+            stamps.put(entry.id, record.modified);
+            catalog.put(record);
+            statistics.put(record, DiaryStatistics.countWords(entry.body));
+        }
+        searchIndex.addAll(documents, stamps);
+        lastSearch = null;
+        return null;
+    }
+}
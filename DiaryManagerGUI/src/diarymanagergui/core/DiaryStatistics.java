@@ -0,0 +1,323 @@
+package diarymanagergui.core;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+
+/**
+ * Writing statistics kept up to date one entry at a time. Each entry
+ * contributes its day, mood and word count to per-day totals; saves and
+ * deletes adjust those totals, so queries never touch entry files. The
+ * per-entry figures are persisted so deletes can be subtracted after a
+ * restart and only entries changed since are counted again.
+ */
+public class DiaryStatistics {
+    
+    private static final int MAGIC = 0x44535441; // "DSTA"
+    private static final int VERSION = 1;
+    
+    private static final class Contribution {
+        final LocalDate day;
+        final String mood;
+        final int words;
+        final long modified;
+        
+        Contribution(LocalDate day, String mood, int words, long modified) {
+            this.day = day;
+            this.mood = mood;
+            this.words = words;
+            this.modified = modified;
+        }
+    }
+    
+    private static final class DayTotals {
+        int entries;
+        long words;
+        final Map<String, Integer> moods = new HashMap<>();
+    }
+    
+    public static final class Summary {
+        public final int entries;
+        public final long words;
+        public final int entriesToday;
+        public final int entriesThisWeek;
+        public final int currentStreak;
+        public final int longestStreak;
+        public final LinkedHashMap<LocalDate, Integer> entriesPerWeek; // week start (Monday) to count, oldest first
+        public final LinkedHashMap<LocalDate, Long> wordsPerWeek;
+        public final Map<String, Integer> moods;
+        public final LinkedHashMap<YearMonth, Map<String, Integer>> moodsPerMonth; // oldest first
+        
+        Summary(int entries, long words, int entriesToday, int entriesThisWeek, int currentStreak,
+                int longestStreak, LinkedHashMap<LocalDate, Integer> entriesPerWeek,
+                LinkedHashMap<LocalDate, Long> wordsPerWeek, Map<String, Integer> moods,
+                LinkedHashMap<YearMonth, Map<String, Integer>> moodsPerMonth) {
+            this.entries = entries;
+            this.words = words;
+            this.entriesToday = entriesToday;
+            this.entriesThisWeek = entriesThisWeek;
+            this.currentStreak = currentStreak;
+            this.longestStreak = longestStreak;
+            this.entriesPerWeek = entriesPerWeek;
+            this.wordsPerWeek = wordsPerWeek;
+            this.moods = moods;
+            this.moodsPerMonth = moodsPerMonth;
+        }
+    }
+    
+    private final Path statsFile;
+    private final DiaryCipher cipher;
+    private final Map<String, Contribution> contributions = new HashMap<>();
+    private final TreeMap<LocalDate, DayTotals> days = new TreeMap<>();
+    private final Map<String, Integer> moods = new HashMap<>();
+    private long totalWords;
+    private boolean dirty;
+    
+    // cipher is null for a plain diary; otherwise the file is sealed whole
+    DiaryStatistics(Path statsFile, DiaryCipher cipher) {
+        this.statsFile = statsFile;
+        this.cipher = cipher;
+    }
+    
+    synchronized void load() {
+        clear();
+        if (!Files.exists(statsFile)) {
+            return;
+        }
+        
+        try {
+            byte[] data = Files.readAllBytes(statsFile);
+            ByteBuffer in = ByteBuffer.wrap(cipher != null ? cipher.open(data, DiaryCipher.Kind.STATISTICS, null)
+                                                           : data);
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+                return;
+            }
+            int count = in.getInt();
+            for (int i = 0; i < count; i++) {
+                String id = readString(in);
+                long epochDay = in.getLong();
+                String mood = readString(in);
+                int words = in.getInt();
+                long modified = in.getLong();
+                add(id, new Contribution(epochDay == Long.MIN_VALUE ? null : LocalDate.ofEpochDay(epochDay),
+                                         mood, words, modified));
+            }
+        } catch (IOException | RuntimeException e) {
+            clear();
+        }
+        dirty = false;
+    }
+    
+    /**
+     * Brings the figures in line with the catalog. Only entries that are new
+     * or changed since the statistics were saved have their body read (once,
+     * streamed, to count words); returns how many that was.
+     */
+    int reconcile(EntryCatalog catalog, EntryStore store) {
+        Set<String> live = new HashSet<>();
+        int counted = 0;
+        
+        for (EntryCatalog.Record record : catalog.records()) {
+            live.add(record.id);
+            synchronized (this) {
+                Contribution known = contributions.get(record.id);
+                if (known != null && known.modified == record.modified) {
+                    continue;
+                }
+            }
+            try (Reader body = EntryFormat.openBody(record.id, store.fileOf(record.id), record.bodyOffset,
+                                                    record.bodyLength, store.cipher())) {
+                put(record, countWords(body));
+                counted++;
+            } catch (IOException e) {
+                System.out.println("Error reading entry: " + record.id);
+            }
+        }
+        
+        synchronized (this) {
+            for (String id : new ArrayList<>(contributions.keySet())) {
+                if (!live.contains(id)) {
+                    remove(id);
+                }
+            }
+        }
+        return counted;
+    }
+    
+    synchronized void put(EntryCatalog.Record record, int words) {
+        remove(record.id);
+        add(record.id, new Contribution(FacetIndex.dayOf(record), record.mood, words, record.modified));
+        dirty = true;
+    }
+    
+    // The entry's bytes moved without changing; keeps its counts under the new stamp so they are not redone
+    synchronized void moved(EntryCatalog.Record record) {
+        Contribution known = contributions.get(record.id);
+        if (known != null && known.modified != record.modified) {
+            contributions.put(record.id, new Contribution(known.day, known.mood, known.words, record.modified));
+            dirty = true;
+        }
+    }
+    
+    synchronized void remove(String id) {
+        Contribution old = contributions.remove(id);
+        if (old == null) {
+            return;
+        }
+        
+        totalWords -= old.words;
+        decrement(moods, old.mood);
+        if (old.day != null) {
+            DayTotals totals = days.get(old.day);
+            totals.entries--;
+            totals.words -= old.words;
+            decrement(totals.moods, old.mood);
+            if (totals.entries == 0) {
+                days.remove(old.day);
+            }
+        }
+        dirty = true;
+    }
+    
+    private void add(String id, Contribution contribution) {
+        contributions.put(id, contribution);
+        totalWords += contribution.words;
+        moods.merge(contribution.mood, 1, Integer::sum);
+        if (contribution.day != null) {
+            DayTotals totals = days.computeIfAbsent(contribution.day, k -> new DayTotals());
+            totals.entries++;
+            totals.words += contribution.words;
+            totals.moods.merge(contribution.mood, 1, Integer::sum);
+        }
+    }
+    
+    private static void decrement(Map<String, Integer> counts, String key) {
+        counts.computeIfPresent(key, (k, n) -> n > 1 ? n - 1 : null);
+    }
+    
+    private void clear() {
+        contributions.clear();
+        days.clear();
+        moods.clear();
+        totalWords = 0;
+    }
+    
+    // Everything the dashboard shows, for the given number of weeks and months back from today
+    synchronized Summary summary(int weeks, int months) {
+        LocalDate today = LocalDate.now();
+        LocalDate thisWeek = today.with(DayOfWeek.MONDAY);
+        
+        LinkedHashMap<LocalDate, Integer> entriesPerWeek = new LinkedHashMap<>();
+        LinkedHashMap<LocalDate, Long> wordsPerWeek = new LinkedHashMap<>();
+        for (int i = weeks - 1; i >= 0; i--) {
+            LocalDate start = thisWeek.minusWeeks(i);
+            int entries = 0;
+            long words = 0;
+            for (DayTotals totals : days.subMap(start, true, start.plusDays(6), true).values()) {
+                entries += totals.entries;
+                words += totals.words;
+            }
+            entriesPerWeek.put(start, entries);
+            wordsPerWeek.put(start, words);
+        }
+        
+        LinkedHashMap<YearMonth, Map<String, Integer>> moodsPerMonth = new LinkedHashMap<>();
+        YearMonth thisMonth = YearMonth.from(today);
+        for (int i = months - 1; i >= 0; i--) {
+            YearMonth month = thisMonth.minusMonths(i);
+            Map<String, Integer> counts = new HashMap<>();
+            for (DayTotals totals : days.subMap(month.atDay(1), true, month.atEndOfMonth(), true).values()) {
+                for (Map.Entry<String, Integer> mood : totals.moods.entrySet()) {
+                    counts.merge(mood.getKey(), mood.getValue(), Integer::sum);
+                }
+            }
+            moodsPerMonth.put(month, counts);
+        }
+        
+        // Streaks: consecutive days with at least one entry; the current one may end today or yesterday
+        int longest = 0;
+        int run = 0;
+        LocalDate previous = null;
+        for (LocalDate day : days.keySet()) {
+            run = previous != null && previous.plusDays(1).equals(day) ? run + 1 : 1;
+            longest = Math.max(longest, run);
+            previous = day;
+        }
+        int current = previous != null && !previous.isBefore(today.minusDays(1)) ? run : 0;
+        
+        DayTotals todayTotals = days.get(today);
+        return new Summary(contributions.size(), totalWords, todayTotals == null ? 0 : todayTotals.entries,
+                           entriesPerWeek.get(thisWeek), current, longest, entriesPerWeek, wordsPerWeek,
+                           new HashMap<>(moods), moodsPerMonth);
+    }
+    
+    synchronized void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + contributions.size() * 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(contributions.size());
+        for (Map.Entry<String, Contribution> entry : contributions.entrySet()) {
+            Contribution contribution = entry.getValue();
+            writeString(out, entry.getKey());
+            out.writeLong(contribution.day == null ? Long.MIN_VALUE : contribution.day.toEpochDay());
+            writeString(out, contribution.mood);
+            out.writeInt(contribution.words);
+            out.writeLong(contribution.modified);
+        }
+        out.flush();
+        
+        Files.createDirectories(statsFile.getParent());
+        Path temp = statsFile.resolveSibling(statsFile.getFileName() + ".tmp");
+        Files.write(temp, cipher != null ? cipher.seal(bytes.toByteArray(), DiaryCipher.Kind.STATISTICS, null)
+                                         : bytes.toByteArray());
+        Files.move(temp, statsFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        dirty = false;
+    }
+    
+    static int countWords(String text) {
+        try {
+            return countWords(new StringReader(text));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    // Whitespace-separated words, like wc -w
+    static int countWords(Reader text) throws IOException {
+        char[] buffer = new char[4096];
+        int words = 0;
+        boolean inWord = false;
+        
+        int n;
+        while ((n = text.read(buffer)) != -1) {
+            for (int i = 0; i < n; i++) {
+                boolean space = Character.isWhitespace(buffer[i]);
+                if (!space && !inWord) {
+                    words++;
+                }
+                inWord = !space;
+            }
+        }
+        return words;
+    }
+    
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] data = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(data.length);
+        out.write(data);
+    }
+    
+    private static String readString(ByteBuffer in) {
+        byte[] data = new byte[in.getInt()];
+        in.get(data);
+        return new String(data, StandardCharsets.UTF_8);
+    }
+}
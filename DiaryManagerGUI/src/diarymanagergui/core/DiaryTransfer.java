@@ -0,0 +1,590 @@
+package diarymanagergui.core;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Pattern;
+import java.util.zip.*;
+
+/**
+ * Streaming export and import of the whole diary as JSON Lines, CSV or a zip
+ * of Markdown files. Export reads and encodes entries on a worker pool but
+ * writes them strictly in order, with only a bounded window of encoded
+ * entries in flight; import parses one entry at a time and hands them on in
+ * batches.
+ */
+public final class DiaryTransfer {
+    
+    private static final int WINDOW_PER_THREAD = 16;
+    private static final int IMPORT_BATCH = 1000;
+    private static final Pattern VALID_ID = Pattern.compile("\\d{8}_\\d{6}(_\\d+)?");
+    private static final DateTimeFormatter ID_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss");
+    private static final String[] CSV_COLUMNS = {"id", "title", "category", "mood", "date", "body"};
+    
+    public enum Format {
+        JSONL("JSON Lines", "*.jsonl"),
+        CSV("CSV", "*.csv"),
+        MARKDOWN_ZIP("Markdown (zip)", "*.zip");
+        
+        public final String description;
+        public final String pattern;
+        
+        Format(String description, String pattern) {
+            this.description = description;
+            this.pattern = pattern;
+        }
+        
+        public static Format forFile(File file) {
+            String name = file.getName().toLowerCase();
+            for (Format format : values()) {
+                if (name.endsWith(format.pattern.substring(1))) {
+                    return format;
+                }
+            }
+            return JSONL;
+        }
+    }
+    
+    // Where an entry's header and body live; resolved by the caller so the export never touches the store
+    static final class Source {
+        final EntryCatalog.Record record;
+        final File file;
+        final DiaryCipher cipher;
+        
+        Source(EntryCatalog.Record record, File file, DiaryCipher cipher) {
+            this.record = record;
+            this.file = file;
+            this.cipher = cipher;
+        }
+    }
+    
+    public interface Progress {
+        void update(long done, long total);
+    }
+    
+    interface BatchSink {
+        // May hand the batch to another thread; the import waits for one batch before sending the next but one
+        Future<?> accept(List<DiaryEntry> batch) throws IOException;
+    }
+    
+    private final ExecutorService encoders;
+    private final int window;
+    
+    DiaryTransfer(ExecutorService encoders, int threads) {
+        this.encoders = encoders;
+        this.window = Math.max(1, threads) * WINDOW_PER_THREAD;
+    }
+    
+    // Returns how many entries were written
+    long export(List<Source> sources, Format format, OutputStream target, Progress progress)
+            throws IOException, InterruptedException {
+        OutputStream out = new BufferedOutputStream(target, 64 * 1024);
+        ZipOutputStream zip = format == Format.MARKDOWN_ZIP ? new ZipOutputStream(out, StandardCharsets.UTF_8) : null;
+        if (format == Format.CSV) {
+            out.write((String.join(",", CSV_COLUMNS) + "\r\n").getBytes(StandardCharsets.UTF_8));
+        }
+        
+        ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<>(window);
+        int next = 0;
+        long written = 0;
+        try {
+            while (next < sources.size() || !inFlight.isEmpty()) {
+                // Keep the window full, then write the oldest one: output order is input order
+                while (next < sources.size() && inFlight.size() < window) {
+                    Source source = sources.get(next++);
+                    inFlight.add(encoders.submit(() -> encode(format, read(source))));
+                }
+                
+                byte[] encoded = inFlight.poll().get();
+                if (zip != null) {
+                    zip.putNextEntry(new ZipEntry(sources.get((int) written).record.id + ".md"));
+                    zip.write(encoded);
+                    zip.closeEntry();
+                } else {
+                    out.write(encoded);
+                }
+                written++;
+                progress.update(written, sources.size());
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } finally {
+            for (Future<byte[]> pending : inFlight) {
+                pending.cancel(true);
+            }
+        }
+        
+        if (zip != null) {
+            zip.finish();
+        }
+        out.flush();
+        return written;
+    }
+    
+    // Fails rather than export a body cut short, so a damaged entry never turns into an empty one in a backup
+    private static DiaryEntry read(Source source) throws IOException {
+        EntryCatalog.Record record = source.record;
+        try {
+            return new DiaryEntry(record.id, record.title, record.category, record.mood, record.date,
+                                  EntryFormat.readBody(record.id, source.file, record.bodyOffset, record.bodyLength,
+                                                       source.cipher));
+        } catch (IOException e) {
+            throw new IOException("Error reading entry " + record.id + ": " + e.getMessage(), e);
+        }
+    }
+    
+    static byte[] encode(Format format, DiaryEntry entry) {
+        StringBuilder text = new StringBuilder(entry.body.length() + 256);
+        switch (format) {
+            case JSONL:
+                text.append("{\"id\":").append(jsonString(entry.id))
+                    .append(",\"title\":").append(jsonString(entry.title))
+                    .append(",\"category\":").append(jsonString(entry.category))
+                    .append(",\"mood\":").append(jsonString(entry.mood))
+                    .append(",\"date\":").append(jsonString(entry.date))
+                    .append(",\"body\":").append(jsonString(entry.body))
+                    .append("}\n");
+                break;
+            case CSV:
+                String[] values = {entry.id, entry.title, entry.category, entry.mood, entry.date, entry.body};
+                for (int i = 0; i < values.length; i++) {
+                    if (i > 0) {
+                        text.append(',');
+                    }
+                    text.append('"').append(values[i].replace("\"", "\"\"")).append('"');
+                }
+                text.append("\r\n");
+                break;
+            default:
+                // Front matter values are JSON strings, which YAML also reads as double-quoted scalars
+                text.append("---\n")
+                    .append("id: ").append(jsonString(entry.id)).append('\n')
+                    .append("title: ").append(jsonString(entry.title)).append('\n')
+                    .append("category: ").append(jsonString(entry.category)).append('\n')
+                    .append("mood: ").append(jsonString(entry.mood)).append('\n')
+                    .append("date: ").append(jsonString(entry.date)).append('\n')
+                    .append("---\n\n")
+                    .append(entry.body).append('\n');
+                break;
+        }
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Parses entries one at a time and passes them to the sink in batches.
+     * Entries keep their id when it is a valid diary id (so restoring a backup
+     * replaces entries rather than duplicating them); otherwise the id is null
+     * and the sink assigns one. Progress is reported in bytes of input.
+     */
+    long importFrom(InputStream source, long sourceLength, Format format, BatchSink sink, Progress progress)
+            throws IOException, InterruptedException {
+        CountingInputStream counted = new CountingInputStream(new BufferedInputStream(source, 64 * 1024));
+        List<DiaryEntry> batch = new ArrayList<>(IMPORT_BATCH);
+        Future<?> previous = null;
+        long imported = 0;
+        
+        try (EntryReader entries = openReader(format, counted)) {
+            DiaryEntry entry;
+            while ((entry = entries.next()) != null) {
+                batch.add(entry);
+                imported++;
+                if (batch.size() == IMPORT_BATCH) {
+                    previous = send(sink, batch, previous);
+                    batch = new ArrayList<>(IMPORT_BATCH);
+                    progress.update(counted.count, sourceLength);
+                }
+            }
+        }
+        
+        if (!batch.isEmpty()) {
+            previous = send(sink, batch, previous);
+        }
+        await(previous);
+        progress.update(sourceLength, sourceLength);
+        return imported;
+    }
+    
+    // At most two batches outstanding: the one being stored and the one just handed over
+    private static Future<?> send(BatchSink sink, List<DiaryEntry> batch, Future<?> previous)
+            throws IOException, InterruptedException {
+        Future<?> next = sink.accept(batch);
+        await(previous);
+        return next;
+    }
+    
+    private static void await(Future<?> future) throws IOException, InterruptedException {
+        if (future == null) {
+            return;
+        }
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+    
+    private interface EntryReader extends Closeable {
+        DiaryEntry next() throws IOException;
+    }
+    
+    private static EntryReader openReader(Format format, InputStream in) throws IOException {
+        switch (format) {
+            case JSONL: {
+                BufferedReader lines = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+                return new EntryReader() {
+                    @Override
+                    public DiaryEntry next() throws IOException {
+                        String line;
+                        while ((line = lines.readLine()) != null) {
+                            if (!line.trim().isEmpty()) {
+                                return toEntry(new JsonReader(line).readObject());
+                            }
+                        }
+                        return null;
+                    }
+                    
+                    @Override
+                    public void close() throws IOException {
+                        lines.close();
+                    }
+                };
+            }
+            case CSV: {
+                CsvReader csv = new CsvReader(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)));
+                List<String> header = csv.readRecord();
+                return new EntryReader() {
+                    @Override
+                    public DiaryEntry next() throws IOException {
+                        List<String> values;
+                        while ((values = csv.readRecord()) != null) {
+                            if (values.size() > 1 || !values.get(0).isEmpty()) {
+                                Map<String, String> fields = new HashMap<>();
+                                for (int i = 0; i < header.size() && i < values.size(); i++) {
+                                    fields.put(header.get(i).trim().toLowerCase(), values.get(i));
+                                }
+                                return toEntry(fields);
+                            }
+                        }
+                        return null;
+                    }
+                    
+                    @Override
+                    public void close() throws IOException {
+                        csv.close();
+                    }
+                };
+            }
+            default: {
+                ZipInputStream zip = new ZipInputStream(in, StandardCharsets.UTF_8);
+                return new EntryReader() {
+                    @Override
+                    public DiaryEntry next() throws IOException {
+                        ZipEntry file;
+                        while ((file = zip.getNextEntry()) != null) {
+                            if (!file.isDirectory() && file.getName().toLowerCase().endsWith(".md")) {
+                                return parseMarkdown(new String(zip.readAllBytes(), StandardCharsets.UTF_8));
+                            }
+                        }
+                        return null;
+                    }
+                    
+                    @Override
+                    public void close() throws IOException {
+                        zip.close();
+                    }
+                };
+            }
+        }
+    }
+    
+    // Starting point for the id of an imported entry that has none: its date when that parses, else now
+    static String baseId(DiaryEntry entry) {
+        try {
+            return LocalDateTime.parse(entry.date).format(ID_FORMAT);
+        } catch (DateTimeParseException e) {
+            return LocalDateTime.now().format(ID_FORMAT);
+        }
+    }
+    
+    private static DiaryEntry toEntry(Map<String, String> fields) {
+        String id = fields.get("id");
+        return new DiaryEntry(id != null && VALID_ID.matcher(id).matches() ? id : null,
+                              fields.getOrDefault("title", ""), fields.getOrDefault("category", ""),
+                              fields.getOrDefault("mood", ""), fields.getOrDefault("date", ""),
+                              fields.getOrDefault("body", ""));
+    }
+    
+    private static DiaryEntry parseMarkdown(String text) throws IOException {
+        Map<String, String> fields = new HashMap<>();
+        int pos = 0;
+        
+        // Front matter lines may end in \r\n (files edited elsewhere); the body is kept byte for byte
+        if (text.startsWith("---\n") || text.startsWith("---\r\n")) {
+            pos = text.indexOf('\n') + 1;
+            while (true) {
+                int lineEnd = text.indexOf('\n', pos);
+                if (lineEnd < 0) {
+                    throw new IOException("Unterminated front matter");
+                }
+                String line = text.substring(pos, lineEnd);
+                line = line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+                pos = lineEnd + 1;
+                if (line.equals("---")) {
+                    break;
+                }
+                
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    String value = line.substring(colon + 1).trim();
+                    fields.put(line.substring(0, colon).trim().toLowerCase(),
+                               value.startsWith("\"") ? new JsonReader(value).readString() : value);
+                }
+            }
+            if (text.startsWith("\r\n", pos)) {
+                pos += 2;
+            } else if (text.startsWith("\n", pos)) {
+                pos++;
+            }
+        }
+        
+        String body = text.substring(pos);
+        if (body.endsWith("\n")) {
+            body = body.substring(0, body.length() - 1);
+        }
+        fields.put("body", body);
+        return toEntry(fields);
+    }
+    
+    static String jsonString(String value) {
+        StringBuilder out = new StringBuilder(value.length() + 16);
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '\t': out.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        return out.append('"').toString();
+    }
+    
+    // Just enough JSON for flat objects of strings (numbers, booleans and null are kept as text)
+    private static final class JsonReader {
+        private final String text;
+        private int pos;
+        
+        JsonReader(String text) {
+            this.text = text;
+        }
+        
+        Map<String, String> readObject() throws IOException {
+            Map<String, String> fields = new HashMap<>();
+            expect('{');
+            skipSpace();
+            if (peek() == '}') {
+                pos++;
+                return fields;
+            }
+            while (true) {
+                skipSpace();
+                String key = readString();
+                skipSpace();
+                expect(':');
+                skipSpace();
+                fields.put(key, peek() == '"' ? readString() : readBare());
+                skipSpace();
+                if (peek() == ',') {
+                    pos++;
+                } else {
+                    expect('}');
+                    return fields;
+                }
+            }
+        }
+        
+        String readString() throws IOException {
+            expect('"');
+            StringBuilder out = new StringBuilder();
+            while (true) {
+                char c = next();
+                if (c == '"') {
+                    return out.toString();
+                }
+                if (c != '\\') {
+                    out.append(c);
+                    continue;
+                }
+                char escaped = next();
+                switch (escaped) {
+                    case 'n': out.append('\n'); break;
+                    case 'r': out.append('\r'); break;
+                    case 't': out.append('\t'); break;
+                    case 'b': out.append('\b'); break;
+                    case 'f': out.append('\f'); break;
+                    case 'u':
+                        if (pos + 4 > text.length()) {
+                            throw new IOException("Bad \\u escape in JSON");
+                        }
+                        out.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                        pos += 4;
+                        break;
+                    default: out.append(escaped); break;
+                }
+            }
+        }
+        
+        private String readBare() {
+            int start = pos;
+            while (pos < text.length() && ",}".indexOf(text.charAt(pos)) < 0) {
+                pos++;
+            }
+            String value = text.substring(start, pos).trim();
+            return value.equals("null") ? "" : value;
+        }
+        
+        private void skipSpace() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+        
+        private char peek() throws IOException {
+            if (pos >= text.length()) {
+                throw new IOException("Unexpected end of JSON");
+            }
+            return text.charAt(pos);
+        }
+        
+        private char next() throws IOException {
+            char c = peek();
+            pos++;
+            return c;
+        }
+        
+        private void expect(char c) throws IOException {
+            if (next() != c) {
+                throw new IOException("Expected '" + c + "' at position " + (pos - 1) + " of JSON line");
+            }
+        }
+    }
+    
+    // RFC 4180: quoted fields may contain commas, doubled quotes and line breaks
+    private static final class CsvReader implements Closeable {
+        private final Reader in;
+        private int pending = -2;
+        
+        CsvReader(Reader in) {
+            this.in = in;
+        }
+        
+        List<String> readRecord() throws IOException {
+            int c = read();
+            if (c == -1) {
+                return null;
+            }
+            
+            List<String> values = new ArrayList<>();
+            StringBuilder value = new StringBuilder();
+            boolean quoted = false;
+            while (true) {
+                if (quoted) {
+                    if (c == -1) {
+                        throw new IOException("Unterminated quoted CSV field");
+                    }
+                    if (c == '"') {
+                        int after = read();
+                        if (after == '"') {
+                            value.append('"');
+                        } else {
+                            quoted = false;
+                            c = after;
+                            continue;
+                        }
+                    } else {
+                        value.append((char) c);
+                    }
+                } else if (c == '"') {
+                    quoted = true;
+                } else if (c == ',') {
+                    values.add(value.toString());
+                    value.setLength(0);
+                } else if (c == '\n' || c == -1) {
+                    values.add(value.toString());
+                    return values;
+                } else if (c == '\r') {
+                    int after = read();
+                    if (after != '\n') {
+                        pending = after;
+                    }
+                    values.add(value.toString());
+                    return values;
+                } else {
+                    value.append((char) c);
+                }
+                c = read();
+            }
+        }
+        
+        private int read() throws IOException {
+            if (pending != -2) {
+                int c = pending;
+                pending = -2;
+                return c;
+            }
+            return in.read();
+        }
+        
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+    
+    private static final class CountingInputStream extends FilterInputStream {
+        long count;
+        
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+        
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+        
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+        
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package diarymanagergui.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Watches the diary directory for entry files created, changed or removed by
+ * other programs (sync tools, editors). Events are coalesced: a batch is
+ * delivered once the directory has been quiet for a moment, or after a
+ * bounded delay while a bulk sync keeps it busy, and lists each entry id once.
+ */
+final class DirectoryWatcher implements Closeable {
+    
+    private static final long QUIET_MILLIS = 300;
+    private static final long MAX_DELAY_MILLIS = 2000;
+    
+    interface Listener {
+        // overflow means events were lost and the whole directory has to be rechecked
+        void changed(Set<String> ids, boolean overflow);
+    }
+    
+    private final WatchService watchService;
+    private final Function<String, String> idOfName;
+    private final Listener listener;
+    private final Thread thread;
+    
+    DirectoryWatcher(Path directory, Function<String, String> idOfName, Listener listener) throws IOException {
+        this.watchService = directory.getFileSystem().newWatchService();
+        this.idOfName = idOfName;
+        this.listener = listener;
+        directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                           StandardWatchEventKinds.ENTRY_DELETE);
+        
+        thread = new Thread(this::run, "diary-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    private void run() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Set<String> ids = new HashSet<>();
+                boolean overflow = false;
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MAX_DELAY_MILLIS);
+                
+                // Keep collecting until the directory goes quiet or the batch has waited long enough
+                while (key != null) {
+                    overflow |= drain(key, ids);
+                    if (!key.reset()) {
+                        deliver(ids, overflow);
+                        return; // directory is gone
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    key = watchService.poll(Math.min(TimeUnit.MILLISECONDS.toNanos(QUIET_MILLIS), remaining),
+                                            TimeUnit.NANOSECONDS);
+                }
+                deliver(ids, overflow);
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closed
+        }
+    }
+    
+    private boolean drain(WatchKey key, Set<String> ids) {
+        boolean overflow = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflow = true;
+                continue;
+            }
+            String id = idOfName.apply(event.context().toString());
+            if (id != null) {
+                ids.add(id);
+            }
+        }
+        return overflow;
+    }
+    
+    private void deliver(Set<String> ids, boolean overflow) {
+        if (ids.isEmpty() && !overflow) {
+            return;
+        }
+        try {
+            listener.changed(ids, overflow);
+        } catch (RuntimeException e) {
+            System.out.println("Error applying directory changes: " + e.getMessage());
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        thread.interrupt();
+        watchService.close();
+    }
+}
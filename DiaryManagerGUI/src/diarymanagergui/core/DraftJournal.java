@@ -0,0 +1,278 @@
+package diarymanagergui.core;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal for the unsaved draft in the Write tab. Each record
+ * (length, CRC, payload, then one fsync) is either a full snapshot of the
+ * draft or just the content edits since the previous record, so auto-saving
+ * a long entry costs what was typed rather than the whole text; callers
+ * coalesce keystrokes so only a few records per second are written. The
+ * journal keeps its own piece table of the content to apply edits to and to
+ * compact from. Recovery replays the intact records from the newest snapshot
+ * on. Every record also names the stored entry the draft edits, if any, and
+ * the version of it the edit started from. In an encrypted diary each payload
+ * is sealed.
+ */
+public class DraftJournal implements Closeable {
+    
+    private static final long COMPACT_SIZE = 1024 * 1024;
+    
+    // The first byte of a payload, which the rest of it depends on
+    private static final byte SNAPSHOT = 1;
+    private static final byte EDITS = 2;
+    
+    // Carries either the whole content or only the edits to it since the previous draft
+    public static final class Draft {
+        public final String title;
+        public final String category;
+        public final String mood;
+        public final String content;
+        public final List<PieceTable.Edit> edits;
+        public final String editingId; // the stored entry this edits; null for a new entry
+        public final int baseVersion; // its history version when the edit started; 0 if never edited, -1 unknown
+        public final long savedAt;
+        
+        public Draft(String title, String category, String mood, String content, String editingId, int baseVersion,
+                     long savedAt) {
+            this(title, category, mood, content, null, editingId, baseVersion, savedAt);
+        }
+        
+        public Draft(String title, String category, String mood, List<PieceTable.Edit> edits, String editingId,
+                     int baseVersion, long savedAt) {
+            this(title, category, mood, null, edits, editingId, baseVersion, savedAt);
+        }
+        
+        private Draft(String title, String category, String mood, String content, List<PieceTable.Edit> edits,
+                      String editingId, int baseVersion, long savedAt) {
+            this.title = title;
+            this.category = category;
+            this.mood = mood;
+            this.content = content;
+            this.edits = edits;
+            this.editingId = editingId;
+            this.baseVersion = baseVersion;
+            this.savedAt = savedAt;
+        }
+        
+        boolean isEmpty() {
+            return title.isEmpty() && content.isEmpty();
+        }
+    }
+    
+    private final Path file;
+    private final DiaryCipher cipher;
+    private FileChannel channel;
+    private PieceTable content; // as of the last record; null until a snapshot is written
+    
+    DraftJournal(Path file, DiaryCipher cipher) {
+        this.file = file;
+        this.cipher = cipher;
+    }
+    
+    /**
+     * Appends the draft, or clears the journal once the draft is empty.
+     * Returns false, writing nothing, when the draft only has edits and there
+     * is no snapshot they apply to (none yet, the journal was cleared by a
+     * save, or the edits do not fit); the caller should send the whole
+     * content next.
+     */
+    synchronized boolean append(Draft draft) throws IOException {
+        boolean snapshot = draft.edits == null;
+        if (snapshot) {
+            content = new PieceTable(draft.content);
+        } else if (content == null) {
+            return false;
+        } else {
+            try {
+                for (PieceTable.Edit edit : draft.edits) {
+                    content.apply(edit);
+                }
+            } catch (IndexOutOfBoundsException e) {
+                content = null;
+                return false;
+            }
+        }
+        content.takeEdits(); // only the caller's edit list is journaled
+        
+        if (draft.title.isEmpty() && content.isEmpty()) {
+            clear();
+            return true;
+        }
+        if (channel != null && channel.size() > COMPACT_SIZE) {
+            // Only the newest state matters; start a fresh journal with a snapshot of it
+            close();
+            Files.deleteIfExists(file);
+            snapshot = true;
+        }
+        if (channel == null) {
+            Files.createDirectories(file.getParent());
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                       StandardOpenOption.APPEND);
+        }
+        
+        byte[] plain = snapshot
+                       ? encode(new Draft(draft.title, draft.category, draft.mood, content.toString(),
+                                          draft.editingId, draft.baseVersion, draft.savedAt))
+                       : encodeEdits(draft);
+        byte[] payload = cipher != null ? cipher.seal(plain, DiaryCipher.Kind.DRAFT, null) : plain;
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        
+        ByteBuffer record = ByteBuffer.allocate(8 + payload.length);
+        record.putInt(payload.length);
+        record.putInt((int) crc.getValue());
+        record.put(payload);
+        record.flip();
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+        channel.force(false);
+        return true;
+    }
+    
+    synchronized Draft recover() {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        
+        Draft latest = null;
+        PieceTable text = null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            while (true) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length < 0 || length > 64 * 1024 * 1024) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    break; // torn write from a crash; everything before it is still good
+                }
+                
+                Draft draft = decode(cipher != null ? cipher.open(payload, DiaryCipher.Kind.DRAFT, null) : payload);
+                if (draft.edits == null) {
+                    text = new PieceTable(draft.content);
+                } else if (text != null) {
+                    for (PieceTable.Edit edit : draft.edits) {
+                        text.apply(edit);
+                    }
+                } else {
+                    continue; // edits whose snapshot was lost
+                }
+                latest = new Draft(draft.title, draft.category, draft.mood, text.toString(), draft.editingId,
+                                   draft.baseVersion, draft.savedAt);
+            }
+        } catch (EOFException e) {
+            // End of journal
+        } catch (IOException e) {
+            System.out.println("Error reading draft journal: " + e.getMessage());
+        } catch (IndexOutOfBoundsException e) {
+            // Edits that do not fit their snapshot; the draft as of the record before is kept
+            System.out.println("Error replaying draft journal: " + e.getMessage());
+        }
+        
+        return latest != null && !latest.isEmpty() ? latest : null;
+    }
+    
+    synchronized void clear() throws IOException {
+        content = null;
+        close();
+        Files.deleteIfExists(file);
+    }
+    
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+    
+    private static byte[] encode(Draft draft) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(draft.content.length() + 128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(SNAPSHOT);
+        out.writeLong(draft.savedAt);
+        out.writeUTF(draft.title);
+        out.writeUTF(draft.category);
+        out.writeUTF(draft.mood);
+        writeEditing(out, draft);
+        byte[] content = draft.content.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(content.length);
+        out.write(content);
+        out.flush();
+        return bytes.toByteArray();
+    }
+    
+    private static byte[] encodeEdits(Draft draft) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(EDITS);
+        out.writeLong(draft.savedAt);
+        out.writeUTF(draft.title);
+        out.writeUTF(draft.category);
+        out.writeUTF(draft.mood);
+        writeEditing(out, draft);
+        out.writeInt(draft.edits.size());
+        for (PieceTable.Edit edit : draft.edits) {
+            out.writeInt(edit.position);
+            out.writeInt(edit.removed);
+            byte[] inserted = edit.inserted.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(inserted.length);
+            out.write(inserted);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+    
+    // An empty id stands for a new entry
+    private static void writeEditing(DataOutputStream out, Draft draft) throws IOException {
+        out.writeUTF(draft.editingId == null ? "" : draft.editingId);
+        out.writeInt(draft.baseVersion);
+    }
+    
+    private static Draft decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte mark = in.readByte();
+        if (mark != SNAPSHOT && mark != EDITS) {
+            throw new IOException("Unknown draft record " + mark);
+        }
+        long savedAt = in.readLong();
+        String title = in.readUTF();
+        String category = in.readUTF();
+        String mood = in.readUTF();
+        String editingId = in.readUTF();
+        if (editingId.isEmpty()) {
+            editingId = null;
+        }
+        int baseVersion = in.readInt();
+        
+        if (mark == SNAPSHOT) {
+            byte[] content = new byte[in.readInt()];
+            in.readFully(content);
+            return new Draft(title, category, mood, new String(content, StandardCharsets.UTF_8), editingId,
+                             baseVersion, savedAt);
+        }
+        int count = in.readInt();
+        List<PieceTable.Edit> edits = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int position = in.readInt();
+            int removed = in.readInt();
+            byte[] inserted = new byte[in.readInt()];
+            in.readFully(inserted);
+            edits.add(new PieceTable.Edit(position, removed, new String(inserted, StandardCharsets.UTF_8)));
+        }
+        return new Draft(title, category, mood, edits, editingId, baseVersion, savedAt);
+    }
+}
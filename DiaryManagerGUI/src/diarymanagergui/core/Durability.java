@@ -0,0 +1,23 @@
+package diarymanagergui.core;
+
+/**
+ * How hard entry writes try to survive a crash or power loss. Chosen with
+ * -Ddiary.durability=fast|safe|batched (default safe).
+ *
+ * FAST     write to a temp file and rename it, no fsync
+ * SAFE     fsync the file before the rename and the directory after it
+ * BATCHED  fsync each file, but sync the directory once per group of writes
+ */
+enum Durability {
+    FAST, SAFE, BATCHED;
+    
+    static Durability fromProperty() {
+        String value = System.getProperty("diary.durability", "safe");
+        try {
+            return valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Unknown durability mode '" + value + "', using safe");
+            return SAFE;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package diarymanagergui.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Replaces files atomically: the data goes to a temp file next to the target,
+ * is forced to disk, and is then renamed over the target. In batched mode the
+ * directory syncs that make the renames durable are grouped and done by
+ * {@link #commit()}.
+ */
+final class DurableWriter {
+    
+    private static final int BATCH_SIZE = 64;
+    
+    private final Durability mode;
+    private final Set<Path> dirtyDirectories = new HashSet<>();
+    private int pending;
+    
+    DurableWriter(Durability mode) {
+        this.mode = mode;
+    }
+    
+    Durability mode() {
+        return mode;
+    }
+    
+    synchronized void write(Path target, byte[] data) throws IOException {
+        replace(target, data);
+        directoryChanged(target.getParent());
+    }
+    
+    // A bulk write still forces each file, but the whole batch shares one directory sync
+    synchronized void writeAll(Map<Path, byte[]> files) throws IOException {
+        Set<Path> directories = new HashSet<>();
+        for (Map.Entry<Path, byte[]> file : files.entrySet()) {
+            replace(file.getKey(), file.getValue());
+            directories.add(file.getKey().getParent());
+        }
+        for (Path directory : directories) {
+            directoryChanged(directory);
+        }
+    }
+    
+    private void replace(Path target, byte[] data) throws IOException {
+        Path temp = target.resolveSibling("." + target.getFileName() + ".tmp");
+        
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (mode != Durability.FAST) {
+                channel.force(true);
+            }
+        }
+        
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+    
+    synchronized boolean delete(Path target) throws IOException {
+        boolean deleted = Files.deleteIfExists(target);
+        if (deleted) {
+            directoryChanged(target.getParent());
+        }
+        return deleted;
+    }
+    
+    private void directoryChanged(Path directory) throws IOException {
+        if (mode == Durability.SAFE) {
+            syncDirectory(directory);
+        } else if (mode == Durability.BATCHED) {
+            dirtyDirectories.add(directory);
+            if (++pending >= BATCH_SIZE) {
+                commit();
+            }
+        }
+    }
+    
+    // Group commit point: one directory sync covers every rename since the last commit
+    synchronized void commit() throws IOException {
+        for (Path directory : dirtyDirectories) {
+            syncDirectory(directory);
+        }
+        dirtyDirectories.clear();
+        pending = 0;
+    }
+    
+    static void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Directories cannot be opened for sync on every platform (e.g. Windows); the rename still happened
+        }
+    }
+}
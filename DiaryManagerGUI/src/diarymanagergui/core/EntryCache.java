@@ -0,0 +1,76 @@
+package diarymanagergui.core;
+
+import java.util.*;
+
+/**
+ * Recently read entries, parsed and ready to show. The least recently used
+ * are evicted once the estimated size of everything held passes the byte
+ * budget. The cache never looks at the disk: whoever changes an entry file
+ * invalidates its id.
+ */
+class EntryCache {
+    
+    // Rough per-entry cost of the objects around the strings (entry, record, map node)
+    private static final int ENTRY_OVERHEAD = 256;
+    
+    static final class Cached {
+        final EntryCatalog.Record header;
+        final DiaryEntry entry;
+        final long bytes;
+        
+        Cached(EntryCatalog.Record header, DiaryEntry entry) {
+            this.header = header;
+            this.entry = entry;
+            this.bytes = ENTRY_OVERHEAD + 2L * (length(entry.id) + length(entry.title) + length(entry.category) +
+                                                length(entry.mood) + length(entry.date) + length(entry.body));
+        }
+    }
+    
+    private final long maxBytes;
+    private final LinkedHashMap<String, Cached> entries = new LinkedHashMap<>(64, 0.75f, true); // access order
+    private long bytes;
+    
+    EntryCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+    
+    synchronized Cached get(String id) {
+        return entries.get(id);
+    }
+    
+    // Unlike get, does not count as a use
+    synchronized boolean contains(String id) {
+        return entries.containsKey(id);
+    }
+    
+    synchronized void put(EntryCatalog.Record header, DiaryEntry entry) {
+        Cached cached = new Cached(header, entry);
+        if (cached.bytes > maxBytes) {
+            invalidate(header.id);
+            return;
+        }
+        
+        Cached old = entries.put(header.id, cached);
+        bytes += cached.bytes - (old == null ? 0 : old.bytes);
+        for (Iterator<Cached> eldest = entries.values().iterator(); bytes > maxBytes && eldest.hasNext(); ) {
+            bytes -= eldest.next().bytes;
+            eldest.remove();
+        }
+    }
+    
+    synchronized void invalidate(String id) {
+        Cached old = entries.remove(id);
+        if (old != null) {
+            bytes -= old.bytes;
+        }
+    }
+    
+    synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+    
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
+}
@@ -0,0 +1,204 @@
+package diarymanagergui.core;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Compact binary catalog of entry headers (title, category, mood, date, body
+ * position and change stamp). It is loaded with a single read at startup and
+ * reconciled against the entry store, so only new or changed entries have
+ * their header lines read again. The facet bitmaps are kept in step with
+ * every change. In an encrypted diary the file is sealed whole, so listing
+ * the diary decrypts one small file and no entry bodies.
+ */
+public class EntryCatalog {
+    
+    private static final int MAGIC = 0x44434154; // "DCAT"
+    private static final int VERSION = 1;
+    
+    public static final class Record {
+        public final String id;
+        public final String title;
+        public final String category;
+        public final String mood;
+        public final String date;
+        public final long bodyOffset;
+        public final long bodyLength;
+        public final long modified;
+        
+        Record(String id, String title, String category, String mood, String date,
+               long bodyOffset, long bodyLength, long modified) {
+            this.id = id;
+            this.title = title;
+            this.category = category;
+            this.mood = mood;
+            this.date = date;
+            this.bodyOffset = bodyOffset;
+            this.bodyLength = bodyLength;
+            this.modified = modified;
+        }
+    }
+    
+    private final Path catalogFile;
+    private final DiaryCipher cipher;
+    private final TreeMap<String, Record> records = new TreeMap<>();
+    private final FacetIndex facets = new FacetIndex();
+    private long storeStamp;
+    private boolean dirty;
+    
+    EntryCatalog(Path catalogFile, DiaryCipher cipher) {
+        this.catalogFile = catalogFile;
+        this.cipher = cipher;
+    }
+    
+    synchronized boolean load() {
+        records.clear();
+        facets.clear();
+        storeStamp = 0;
+        
+        if (!Files.exists(catalogFile)) {
+            return false;
+        }
+        
+        try {
+            byte[] data = Files.readAllBytes(catalogFile);
+            ByteBuffer in = ByteBuffer.wrap(cipher != null ? cipher.open(data, DiaryCipher.Kind.CATALOG, null) : data);
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+                return false;
+            }
+            storeStamp = in.getLong();
+            int count = in.getInt();
+            for (int i = 0; i < count; i++) {
+                Record record = new Record(readString(in), readString(in), readString(in), readString(in),
+                                           readString(in), in.getLong(), in.getLong(), in.getLong());
+                records.put(record.id, record);
+                facets.put(record);
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            records.clear();
+            facets.clear();
+            storeStamp = 0;
+            return false;
+        }
+    }
+    
+    // Brings the catalog in line with the store; returns how many entry headers had to be read
+    synchronized int reconcile(EntryStore store) throws IOException {
+        long stamp = store.stamp();
+        if (stamp == storeStamp && !records.isEmpty()) {
+            return 0;
+        }
+        
+        Map<String, Long> stamps = store.stamps();
+        int reads = 0;
+        
+        for (Map.Entry<String, Long> entry : stamps.entrySet()) {
+            Record known = records.get(entry.getKey());
+            if (known != null && known.modified == entry.getValue()) {
+                continue;
+            }
+            try {
+                Record record = store.readHeader(entry.getKey());
+                records.put(record.id, record);
+                facets.put(record);
+                reads++;
+            } catch (IOException e) {
+                System.out.println("Error reading entry: " + entry.getKey());
+            }
+        }
+        
+        for (Iterator<String> ids = records.keySet().iterator(); ids.hasNext(); ) {
+            String id = ids.next();
+            if (!stamps.containsKey(id)) {
+                ids.remove();
+                facets.remove(id);
+            }
+        }
+        storeStamp = stamp;
+        dirty = true;
+        return reads;
+    }
+    
+    synchronized void put(Record record) {
+        records.put(record.id, record);
+        facets.put(record);
+        dirty = true;
+    }
+    
+    synchronized void remove(String id) {
+        if (records.remove(id) != null) {
+            facets.remove(id);
+            dirty = true;
+        }
+    }
+    
+    // Synchronized on its own, so searches can query it without holding the catalog
+    FacetIndex facets() {
+        return facets;
+    }
+    
+    synchronized Record get(String id) {
+        return records.get(id);
+    }
+    
+    synchronized int size() {
+        return records.size();
+    }
+    
+    // Newest first, which is also the order entry ids sort in
+    synchronized List<Record> records() {
+        return new ArrayList<>(records.descendingMap().values());
+    }
+    
+    // Newest first; just the ids, the list view resolves headers per visible row
+    synchronized List<String> ids() {
+        return new ArrayList<>(records.descendingKeySet());
+    }
+    
+    synchronized void save(EntryStore store) throws IOException {
+        if (!dirty) {
+            return;
+        }
+        
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + records.size() * 96);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(store.stamp());
+        out.writeInt(records.size());
+        for (Record record : records.values()) {
+            writeString(out, record.id);
+            writeString(out, record.title);
+            writeString(out, record.category);
+            writeString(out, record.mood);
+            writeString(out, record.date);
+            out.writeLong(record.bodyOffset);
+            out.writeLong(record.bodyLength);
+            out.writeLong(record.modified);
+        }
+        out.flush();
+        
+        Files.createDirectories(catalogFile.getParent());
+        Path temp = catalogFile.resolveSibling(catalogFile.getFileName() + ".tmp");
+        Files.write(temp, cipher != null ? cipher.seal(bytes.toByteArray(), DiaryCipher.Kind.CATALOG, null)
+                                         : bytes.toByteArray());
+        Files.move(temp, catalogFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        dirty = false;
+    }
+    
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] data = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(data.length);
+        out.write(data);
+    }
+    
+    private static String readString(ByteBuffer in) {
+        byte[] data = new byte[in.getInt()];
+        in.get(data);
+        return new String(data, StandardCharsets.UTF_8);
+    }
+}
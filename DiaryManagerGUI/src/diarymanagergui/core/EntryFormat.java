@@ -0,0 +1,429 @@
+package diarymanagergui.core;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The layouts of a stored entry. Version 1 is text: "Title: ", "Category: ",
+ * "Mood: " and "Date: " lines, a blank line, then the body. Version 2 is
+ * binary: a fixed 32-byte header (magic, version, the UTF-8 lengths of the
+ * four fields and the stored body length), the fields, then the body, so the
+ * metadata comes from one small positional read. In both the body may be
+ * compressed (see {@link BodyCodec}). Either version is read transparently.
+ * Encrypted entries are always version 2 with the ENCRYPTED flag: the fields
+ * (and their lengths) are then one sealed block, authenticated together with
+ * the fixed header, and the body is an encrypted stream, so a header never
+ * needs the body decrypted. Both are bound to the entry id, so an encrypted
+ * entry only opens under the id it was written for.
+ */
+final class EntryFormat {
+    
+    static final int HEADER_LINES = 5;
+    
+    static final int V1 = 1;
+    static final int V2 = 2;
+    
+    // 0x89 never starts a UTF-8 text, so a version 1 entry can never look like this
+    static final int V2_MAGIC = 0x89445259; // "\x89DRY"
+    static final int V2_HEADER_SIZE = 32;
+    static final int FLAG_ENCRYPTED = 1;
+    
+    // Leading bytes read first for a header: all of it for nearly every entry in either version
+    static final int HEADER_PROBE = 1024;
+    
+    private EntryFormat() {
+    }
+    
+    // -Ddiary.format=text|binary (default binary) picks the version new and upgraded entries are written in
+    static int versionFromProperty() {
+        String value = System.getProperty("diary.format", "binary").trim();
+        if (value.equalsIgnoreCase("text")) {
+            return V1;
+        }
+        if (!value.equalsIgnoreCase("binary")) {
+            System.out.println("Unknown entry format '" + value + "', writing binary entries");
+        }
+        return V2;
+    }
+    
+    static byte[] encode(DiaryEntry entry) throws IOException {
+        return encode(entry, Compression.NONE, V1, null);
+    }
+    
+    // cipher is null for a plain diary; with one the entry is always written as version 2
+    static byte[] encode(DiaryEntry entry, Compression compression, int version, DiaryCipher cipher)
+            throws IOException {
+        if (cipher != null && entry.id == null) {
+            throw new IllegalArgumentException("An encrypted entry is bound to its id, so it needs one first");
+        }
+        String nl = System.lineSeparator();
+        byte[] body = BodyCodec.encode((entry.body + nl).getBytes(StandardCharsets.UTF_8), compression);
+        if (cipher != null) {
+            body = BodyCodec.encrypt(entry.id, body, cipher);
+        }
+        byte[] header = version == V2 || cipher != null ? binaryHeader(entry, body.length, cipher)
+                : ("Title: " + entry.title + nl +
+                   "Category: " + entry.category + nl +
+                   "Mood: " + entry.mood + nl +
+                   "Date: " + entry.date + nl +
+                   nl).getBytes(StandardCharsets.UTF_8);
+        
+        byte[] data = new byte[header.length + body.length];
+        System.arraycopy(header, 0, data, 0, header.length);
+        System.arraycopy(body, 0, data, header.length, body.length);
+        return data;
+    }
+    
+    private static byte[] binaryHeader(DiaryEntry entry, int bodyLength, DiaryCipher cipher) throws IOException {
+        byte[][] fields = {
+            entry.title.getBytes(StandardCharsets.UTF_8),
+            entry.category.getBytes(StandardCharsets.UTF_8),
+            entry.mood.getBytes(StandardCharsets.UTF_8),
+            entry.date.getBytes(StandardCharsets.UTF_8)
+        };
+        int fieldsLength = 0;
+        for (byte[] field : fields) {
+            fieldsLength += field.length;
+        }
+        
+        ByteBuffer header = ByteBuffer.allocate(V2_HEADER_SIZE);
+        header.putInt(V2_MAGIC);
+        header.put((byte) V2);
+        header.put((byte) (cipher != null ? FLAG_ENCRYPTED : 0));
+        header.putShort((short) 0);
+        if (cipher != null) {
+            // The sealed block counts as the first field so the header length works out the same way
+            header.putInt(16 + fieldsLength + DiaryCipher.SEAL_OVERHEAD);
+            header.putInt(0);
+            header.putInt(0);
+            header.putInt(0);
+        } else {
+            for (byte[] field : fields) {
+                header.putInt(field.length);
+            }
+        }
+        header.putLong(bodyLength);
+        
+        ByteBuffer block = ByteBuffer.allocate((cipher != null ? 16 : 0) + fieldsLength);
+        if (cipher != null) {
+            for (byte[] field : fields) {
+                block.putInt(field.length);
+            }
+        }
+        for (byte[] field : fields) {
+            block.put(field);
+        }
+        byte[] stored = cipher != null
+                ? cipher.seal(block.array(), DiaryCipher.aad(DiaryCipher.Kind.ENTRY_HEADER, entry.id, header.array()))
+                : block.array();
+        
+        byte[] data = new byte[V2_HEADER_SIZE + stored.length];
+        System.arraycopy(header.array(), 0, data, 0, V2_HEADER_SIZE);
+        System.arraycopy(stored, 0, data, V2_HEADER_SIZE, stored.length);
+        return data;
+    }
+    
+    // Which layout the stored bytes use; the first four bytes are enough
+    static int version(byte[] data, int offset, int length) {
+        if (length >= 4 && ByteBuffer.wrap(data, offset, 4).getInt() == V2_MAGIC) {
+            return V2;
+        }
+        return V1;
+    }
+    
+    // Whether an entry, given at least its first 8 bytes, is already stored the way the store writes entries
+    static boolean isCurrent(byte[] head, int writeVersion, boolean encrypted) {
+        boolean binary = version(head, 0, head.length) == V2 && head.length >= 6;
+        if (encrypted) {
+            return binary && (head[5] & FLAG_ENCRYPTED) != 0;
+        }
+        return binary || writeVersion == V1;
+    }
+    
+    static DiaryEntry decode(String id, byte[] data, DiaryCipher cipher) throws IOException {
+        return decode(id, data, 0, data.length, cipher);
+    }
+    
+    static DiaryEntry decode(String id, byte[] data, int offset, int length, DiaryCipher cipher)
+            throws IOException {
+        if (version(data, offset, length) == V2) {
+            EntryCatalog.Record header = binaryHeader(id, data, offset, length, 0, length, 0, cipher);
+            int bodyStart = offset + (int) header.bodyOffset;
+            return new DiaryEntry(id, header.title, header.category, header.mood, header.date,
+                                  bodyText(BodyCodec.decode(id, data, bodyStart, (int) header.bodyLength, cipher)));
+        }
+        
+        ByteArrayInputStream in = new ByteArrayInputStream(data, offset, length);
+        String[] header = readHeaderLines(in);
+        int bodyStart = length - in.available();
+        
+        return new DiaryEntry(id, field(header[0], "Title: "), field(header[1], "Category: "),
+                              field(header[2], "Mood: "), field(header[3], "Date: "),
+                              bodyText(BodyCodec.decode(id, data, offset + bodyStart, length - bodyStart, cipher)));
+    }
+    
+    private static String bodyText(byte[] stored) {
+        String body = new String(stored, StandardCharsets.UTF_8);
+        if (body.endsWith("\n")) {
+            body = body.substring(0, body.length() - (body.endsWith("\r\n") ? 2 : 1));
+        }
+        return body;
+    }
+    
+    /**
+     * How many leading bytes of an entry readHeader needs, given the first
+     * bytes of it (usually HEADER_PROBE of them). A version 2 header states its
+     * own size; a version 1 header is only known to be complete once all its
+     * lines are in, so without them the whole entry is needed.
+     */
+    static int headerLength(byte[] head, long totalLength) {
+        if (version(head, 0, head.length) == V2) {
+            if (head.length < V2_HEADER_SIZE) {
+                return V2_HEADER_SIZE;
+            }
+            ByteBuffer in = ByteBuffer.wrap(head);
+            long size = V2_HEADER_SIZE;
+            for (int i = 0; i < 4; i++) {
+                size += in.getInt(8 + 4 * i) & 0xFFFFFFFFL;
+            }
+            return (int) Math.min(size, Integer.MAX_VALUE);
+        }
+        
+        int lines = 0;
+        for (byte b : head) {
+            if (b == '\n' && ++lines == HEADER_LINES) {
+                return head.length;
+            }
+        }
+        return (int) Math.min(totalLength, Integer.MAX_VALUE);
+    }
+    
+    // Reads just the header from the leading bytes of an entry; the body is located by offset and never decoded here
+    static EntryCatalog.Record readHeader(String id, byte[] head, long baseOffset, long totalLength,
+                                          long stamp, DiaryCipher cipher) throws IOException {
+        if (version(head, 0, head.length) == V2) {
+            return binaryHeader(id, head, 0, head.length, baseOffset, totalLength, stamp, cipher);
+        }
+        return readHeader(id, new ByteArrayInputStream(head), baseOffset, totalLength, stamp);
+    }
+    
+    private static EntryCatalog.Record binaryHeader(String id, byte[] data, int offset, int length,
+                                                    long baseOffset, long totalLength, long stamp,
+                                                    DiaryCipher cipher) throws IOException {
+        if (length < V2_HEADER_SIZE) {
+            throw new EOFException("Truncated header in entry " + id);
+        }
+        ByteBuffer in = ByteBuffer.wrap(data, offset, length);
+        in.getInt();
+        int version = in.get();
+        int flags = in.get();
+        in.getShort();
+        if (version != V2) {
+            throw new IOException("Unknown entry version " + version + " in entry " + id);
+        }
+        
+        int[] sizes = new int[4];
+        long fieldsLength = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = in.getInt();
+            fieldsLength += sizes[i] & 0xFFFFFFFFL;
+        }
+        long bodyLength = in.getLong();
+        long headerLength = V2_HEADER_SIZE + fieldsLength;
+        if (sizes[0] < 0 || sizes[1] < 0 || sizes[2] < 0 || sizes[3] < 0 || headerLength > length ||
+                bodyLength < 0 || headerLength + bodyLength > totalLength) {
+            throw new EOFException("Truncated entry " + id);
+        }
+        
+        if ((flags & FLAG_ENCRYPTED) != 0) {
+            if (cipher == null) {
+                throw new IOException("Entry " + id + " is encrypted; the diary has to be unlocked first");
+            }
+            byte[] fixed = new byte[V2_HEADER_SIZE];
+            System.arraycopy(data, offset, fixed, 0, V2_HEADER_SIZE);
+            byte[] block = cipher.open(data, offset + V2_HEADER_SIZE, sizes[0],
+                                       DiaryCipher.aad(DiaryCipher.Kind.ENTRY_HEADER, id, fixed));
+            in = ByteBuffer.wrap(block);
+            long plainLength = 0;
+            for (int i = 0; i < sizes.length; i++) {
+                sizes[i] = in.getInt();
+                plainLength += sizes[i] & 0xFFFFFFFFL;
+            }
+            if (sizes[0] < 0 || sizes[1] < 0 || sizes[2] < 0 || sizes[3] < 0 || plainLength > in.remaining()) {
+                throw new IOException("Damaged header in entry " + id);
+            }
+            data = block;
+        }
+        
+        String[] fields = new String[sizes.length];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = new String(data, in.position(), sizes[i], StandardCharsets.UTF_8);
+            in.position(in.position() + sizes[i]);
+        }
+        return new EntryCatalog.Record(id, fields[0], fields[1], fields[2], fields[3],
+                                       baseOffset + headerLength, bodyLength, stamp);
+    }
+    
+    // Version 1 only: parses the header lines from a stream
+    private static EntryCatalog.Record readHeader(String id, InputStream in, long baseOffset, long totalLength,
+                                                  long stamp) throws IOException {
+        CountingInputStream counted = new CountingInputStream(in);
+        String[] header = readHeaderLines(counted);
+        long headerLength = counted.count;
+        
+        return new EntryCatalog.Record(id,
+                                       field(header[0], "Title: "),
+                                       field(header[1], "Category: "),
+                                       field(header[2], "Mood: "),
+                                       field(header[3], "Date: "),
+                                       baseOffset + headerLength, Math.max(0, totalLength - headerLength), stamp);
+    }
+    
+    // length bytes at position, for header reads
+    static byte[] readAt(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of entry data");
+            }
+        }
+        return buffer.array();
+    }
+    
+    // Streams a stored body of the entry straight from disk, decompressing it if needed
+    static Reader openBody(String id, File file, long offset, long length, DiaryCipher cipher) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            channel.position(offset);
+            InputStream stored = new BoundedInputStream(Channels.newInputStream(channel), length);
+            return new InputStreamReader(BodyCodec.open(id, new BufferedInputStream(stored, 8192), cipher),
+                                         StandardCharsets.UTF_8);
+        } catch (IOException | RuntimeException e) {
+            // Nothing owns the channel until the reader is returned
+            channel.close();
+            throw e;
+        }
+    }
+    
+    // The whole body of one entry, as decode() would return it
+    static String readBody(String id, File file, long offset, long length, DiaryCipher cipher) throws IOException {
+        StringBuilder body = new StringBuilder((int) Math.min(length, Integer.MAX_VALUE - 8));
+        char[] buffer = new char[8192];
+        try (Reader in = openBody(id, file, offset, length, cipher)) {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                body.append(buffer, 0, n);
+            }
+        }
+        int end = body.length();
+        if (end > 0 && body.charAt(end - 1) == '\n') {
+            end -= end > 1 && body.charAt(end - 2) == '\r' ? 2 : 1;
+        }
+        return body.substring(0, end);
+    }
+    
+    // Same text the original full-file search matched against
+    static String searchText(DiaryEntry entry) {
+        return "Title: " + entry.title + " Category: " + entry.category + " Mood: " + entry.mood +
+               " Date: " + entry.date + "  " + entry.body;
+    }
+    
+    // The header part of searchText, for when the body is streamed separately
+    static String headerText(EntryCatalog.Record record) {
+        return "Title: " + record.title + " Category: " + record.category + " Mood: " + record.mood +
+               " Date: " + record.date;
+    }
+    
+    private static String[] readHeaderLines(InputStream in) throws IOException {
+        String[] header = new String[HEADER_LINES];
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int lineNo = 0;
+        int b;
+        
+        while (lineNo < HEADER_LINES && (b = in.read()) != -1) {
+            if (b == '\n') {
+                header[lineNo++] = decodeLine(line);
+                line.reset();
+            } else {
+                line.write(b);
+            }
+        }
+        if (lineNo < HEADER_LINES && line.size() > 0) {
+            header[lineNo] = decodeLine(line);
+        }
+        return header;
+    }
+    
+    private static String decodeLine(ByteArrayOutputStream line) {
+        String text = new String(line.toByteArray(), StandardCharsets.UTF_8);
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+    
+    private static String field(String line, String prefix) {
+        if (line == null) {
+            return "";
+        }
+        return line.startsWith(prefix) ? line.substring(prefix.length()) : line;
+    }
+    
+    // Stops at the end of the body, and fails if the file ends first: a short body is damage, not text
+    private static final class BoundedInputStream extends FilterInputStream {
+        private long remaining;
+        
+        BoundedInputStream(InputStream in, long remaining) {
+            super(in);
+            this.remaining = remaining;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = super.read();
+            if (b == -1) {
+                throw truncated();
+            }
+            remaining--;
+            return b;
+        }
+        
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = super.read(buffer, offset, (int) Math.min(length, remaining));
+            if (n == -1) {
+                throw truncated();
+            }
+            remaining -= n;
+            return n;
+        }
+        
+        private EOFException truncated() {
+            return new EOFException("Entry body ends " + remaining + " bytes short");
+        }
+    }
+    
+    private static final class CountingInputStream extends FilterInputStream {
+        long count;
+        
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+        
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package diarymanagergui.core;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Version history of edited entries: one append-only file per entry under
+ * .history, holding every version from the first one replaced up to the
+ * current one. A version is stored as a {@link BinaryDelta} against the
+ * version before it, except every SNAPSHOT_INTERVAL-th, which is stored whole,
+ * so rebuilding any version replays fewer than SNAPSHOT_INTERVAL deltas.
+ * Versions are kept in the uncompressed v2 entry layout. A record header
+ * holds the kind, number, time, CRC of the version and payload length. In an
+ * encrypted diary the kind says the record is sealed, the time and CRC fields
+ * are zero, and the payload is two sealed blocks, the time and CRC and then
+ * the version itself, each bound to its entry, version number and kind, so
+ * nothing about the content can be checked without the key. A history begun
+ * before encryption was turned on is sealed whole before anything is appended
+ * to it (or by {@link #upgrade}), so encrypted versions are never followed by
+ * plaintext ones; a file where they are is refused. Entries that were never
+ * edited have no history file.
+ */
+public class EntryHistory {
+    
+    private static final int SNAPSHOT_INTERVAL = 8;
+    private static final byte SNAPSHOT = 1;
+    private static final byte DELTA = 2;
+    private static final byte SEALED = 0x10; // or'ed into the kind
+    private static final int RECORD_HEADER = 1 + 4 + 8 + 4 + 4;
+    private static final int SEALED_META = 8 + 4 + DiaryCipher.SEAL_OVERHEAD; // time and CRC, sealed
+    private static final byte META_BLOCK = 1;
+    private static final byte DATA_BLOCK = 2;
+    
+    public static final class Version {
+        public final int number;
+        public final long savedAt;
+        public final boolean snapshot;
+        public final int storedBytes;
+        final boolean sealed;
+        final int crc;
+        final long offset; // of the payload in the history file; past the sealed time and CRC when sealed
+        
+        Version(int number, long savedAt, boolean snapshot, boolean sealed, int storedBytes, int crc, long offset) {
+            this.number = number;
+            this.savedAt = savedAt;
+            this.snapshot = snapshot;
+            this.sealed = sealed;
+            this.storedBytes = storedBytes;
+            this.crc = crc;
+            this.offset = offset;
+        }
+    }
+    
+    private final Path directory;
+    private final DiaryCipher cipher;
+    
+    EntryHistory(Path directory, DiaryCipher cipher) {
+        this.directory = directory;
+        this.cipher = cipher;
+    }
+    
+    private Path fileFor(String id) {
+        return directory.resolve(id + ".hist");
+    }
+    
+    /**
+     * Records that the entry changes from previous (as stored now) to
+     * current. The first edit also records previous, dated by the entry, and
+     * so does an edit after which the stored entry no longer matches the
+     * newest version (changed by another program, or a crash between this
+     * write and the store's), dated when that was noticed.
+     */
+    synchronized void record(DiaryEntry previous, DiaryEntry current) throws IOException {
+        List<Version> versions = versions(previous.id);
+        if (upgrade(previous.id)) {
+            versions = versions(previous.id);
+        }
+        Version last = versions.isEmpty() ? null : versions.get(versions.size() - 1);
+        byte[] before = revision(previous);
+        
+        Files.createDirectories(directory);
+        try (FileChannel channel = FileChannel.open(fileFor(previous.id), StandardOpenOption.CREATE,
+                                                    StandardOpenOption.WRITE)) {
+            // Drops a torn record a crash may have left after the last intact one
+            long end = last == null ? 0 : last.offset + last.storedBytes;
+            channel.truncate(end);
+            channel.position(end);
+            
+            int number = last == null ? 0 : last.number;
+            if (last == null || last.crc != crc(before)) {
+                append(channel, previous.id, ++number, last == null ? dateOf(previous) : System.currentTimeMillis(),
+                       null, before);
+            }
+            append(channel, previous.id, ++number, System.currentTimeMillis(), before, revision(current));
+            channel.force(false);
+        }
+    }
+    
+    // base is the version before, or null when this one has to be a snapshot
+    private void append(FileChannel channel, String id, int number, long savedAt, byte[] base, byte[] revision)
+            throws IOException {
+        boolean snapshot = base == null || (number - 1) % SNAPSHOT_INTERVAL == 0;
+        byte[] data = snapshot ? revision : BinaryDelta.diff(base, revision);
+        if (!snapshot && data.length >= revision.length) {
+            // Rewritten rather than edited; the delta would save nothing
+            snapshot = true;
+            data = revision;
+        }
+        write(channel, id, number, savedAt, snapshot, crc(revision), data);
+    }
+    
+    // Seals the time, CRC and data in an encrypted diary
+    private void write(FileChannel channel, String id, int number, long savedAt, boolean snapshot, int crc,
+                       byte[] data) throws IOException {
+        byte kind = snapshot ? SNAPSHOT : DELTA;
+        ByteBuffer record;
+        if (cipher != null) {
+            byte[] meta = ByteBuffer.allocate(8 + 4).putLong(savedAt).putInt(crc).array();
+            byte[] sealedMeta = cipher.seal(meta, aad(id, number, META_BLOCK, kind));
+            byte[] sealedData = cipher.seal(data, aad(id, number, DATA_BLOCK, kind));
+            record = ByteBuffer.allocate(RECORD_HEADER + sealedMeta.length + sealedData.length);
+            record.put((byte) (kind | SEALED));
+            record.putInt(number);
+            record.putLong(0);
+            record.putInt(0);
+            record.putInt(sealedMeta.length + sealedData.length);
+            record.put(sealedMeta);
+            record.put(sealedData);
+        } else {
+            record = ByteBuffer.allocate(RECORD_HEADER + data.length);
+            record.put(kind);
+            record.putInt(number);
+            record.putLong(savedAt);
+            record.putInt(crc);
+            record.putInt(data.length);
+            record.put(data);
+        }
+        record.flip();
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+    }
+    
+    // Oldest first, the last being the current version; empty for an entry that was never edited
+    synchronized List<Version> versions(String id) throws IOException {
+        Path file = fileFor(id);
+        if (!Files.exists(file)) {
+            return Collections.emptyList();
+        }
+        
+        List<Version> versions = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            while (position + RECORD_HEADER <= size) {
+                ByteBuffer header = ByteBuffer.wrap(EntryFormat.readAt(channel, position, RECORD_HEADER));
+                byte kind = header.get();
+                boolean sealed = (kind & SEALED) != 0;
+                kind &= ~SEALED;
+                int number = header.getInt();
+                long savedAt = header.getLong();
+                int crc = header.getInt();
+                int length = header.getInt();
+                long payload = position + RECORD_HEADER;
+                if ((kind != SNAPSHOT && kind != DELTA) || length < 0 || payload + length > size) {
+                    break; // torn write from a crash
+                }
+                if (!sealed && !versions.isEmpty() && versions.get(versions.size() - 1).sealed) {
+                    throw new IOException("History of " + id + " has plaintext versions after encrypted ones");
+                }
+                position = payload + length;
+                if (sealed) {
+                    if (cipher == null) {
+                        throw new IOException("History of " + id + " is encrypted; the diary has to be unlocked first");
+                    }
+                    if (length < SEALED_META) {
+                        throw new IOException("History of " + id + " has a damaged version " + number);
+                    }
+                    ByteBuffer meta = ByteBuffer.wrap(cipher.open(EntryFormat.readAt(channel, payload, SEALED_META), 0,
+                                                                  SEALED_META, aad(id, number, META_BLOCK, kind)));
+                    savedAt = meta.getLong();
+                    crc = meta.getInt();
+                    payload += SEALED_META;
+                    length -= SEALED_META;
+                }
+                versions.add(new Version(number, savedAt, kind == SNAPSHOT, sealed, length, crc, payload));
+            }
+        }
+        return versions;
+    }
+    
+    // The number of the current version; 0 for an entry that was never edited
+    synchronized int currentVersion(String id) throws IOException {
+        List<Version> versions = versions(id);
+        return versions.isEmpty() ? 0 : versions.get(versions.size() - 1).number;
+    }
+    
+    // The entry as it was at that version, or null when there is no such version
+    synchronized DiaryEntry read(String id, int number) throws IOException {
+        List<Version> versions = versions(id);
+        int target = versions.size() - 1;
+        while (target >= 0 && versions.get(target).number != number) {
+            target--;
+        }
+        if (target < 0) {
+            return null;
+        }
+        int from = target;
+        while (from >= 0 && !versions.get(from).snapshot) {
+            from--;
+        }
+        if (from < 0) {
+            throw new IOException("History of " + id + " has no snapshot before version " + number);
+        }
+        
+        // The nearest snapshot, then the deltas after it
+        byte[] revision = null;
+        try (FileChannel channel = FileChannel.open(fileFor(id), StandardOpenOption.READ)) {
+            for (int i = from; i <= target; i++) {
+                Version version = versions.get(i);
+                byte[] data = data(channel, id, version);
+                revision = version.snapshot ? data : BinaryDelta.apply(revision, data);
+            }
+        }
+        if (crc(revision) != versions.get(target).crc) {
+            throw new IOException("Version " + number + " of " + id + " is damaged");
+        }
+        return EntryFormat.decode(id, revision, null);
+    }
+    
+    // A version's data as stored, opened if it was sealed (versions() has already refused those without a key)
+    private byte[] data(FileChannel channel, String id, Version version) throws IOException {
+        byte[] payload = EntryFormat.readAt(channel, version.offset, version.storedBytes);
+        if (!version.sealed) {
+            return payload;
+        }
+        return cipher.open(payload, 0, payload.length,
+                           aad(id, version.number, DATA_BLOCK, version.snapshot ? SNAPSHOT : DELTA));
+    }
+    
+    /**
+     * In an encrypted diary, seals a history still (partly) in plaintext from
+     * before encryption was turned on. Returns whether there was anything to
+     * rewrite.
+     */
+    synchronized boolean upgrade(String id) throws IOException {
+        if (cipher == null) {
+            return false;
+        }
+        List<Version> versions = versions(id);
+        if (versions.isEmpty() || versions.get(0).sealed) {
+            return false; // plaintext versions can only come first
+        }
+        seal(id, versions);
+        return true;
+    }
+    
+    // Rewrites every version sealed, numbers and times unchanged, and swaps the file in whole
+    private void seal(String id, List<Version> versions) throws IOException {
+        Path file = fileFor(id);
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Version version : versions) {
+                write(out, id, version.number, version.savedAt, version.snapshot, version.crc,
+                      data(in, id, version));
+            }
+            out.force(false);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    synchronized void delete(String id) throws IOException {
+        Files.deleteIfExists(fileFor(id));
+    }
+    
+    // What a sealed block is bound to, so blocks cannot be swapped between entries, versions, places or kinds
+    private static byte[] aad(String id, int number, byte block, byte kind) {
+        return DiaryCipher.aad(DiaryCipher.Kind.HISTORY, id + "#" + number, new byte[] {block, kind});
+    }
+    
+    private static byte[] revision(DiaryEntry entry) throws IOException {
+        return EntryFormat.encode(entry, Compression.NONE, EntryFormat.V2, null);
+    }
+    
+    private static int crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+    
+    private static long dateOf(DiaryEntry entry) {
+        try {
+            return LocalDateTime.parse(entry.date).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package diarymanagergui.core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Storage backend for diary entries. Every entry has a stable id; stamps change
+ * whenever the stored bytes of an entry move or change, which is what the
+ * catalog reconciles against.
+ */
+interface EntryStore extends Closeable {
+    
+    // Stores a new entry under a fresh unique id and returns that id
+    String create(DiaryEntry entry) throws IOException;
+    
+    // Stores the entry under its own id, replacing any previous version
+    void put(DiaryEntry entry) throws IOException;
+    
+    // Returns null when no entry with that id exists
+    DiaryEntry read(String id) throws IOException;
+    
+    EntryCatalog.Record readHeader(String id) throws IOException;
+    
+    // Whether the entry is stored in an older layout (or unencrypted in an encrypted store) than new writes use
+    boolean needsUpgrade(String id) throws IOException;
+    
+    // Needed to read bodies located by header records; null when entries are stored in plaintext
+    DiaryCipher cipher();
+    
+    // The file holding the entry's bytes; header record offsets are relative to it
+    File fileOf(String id) throws IOException;
+    
+    boolean delete(String id) throws IOException;
+    
+    // id -> change stamp for every live entry
+    Map<String, Long> stamps() throws IOException;
+    
+    // Changes whenever any entry is added, removed or moved
+    long stamp();
+    
+    // Called on the writing thread with the ids of entries whose bytes the store moved on its own (e.g. by
+    // compaction), so anything holding their offsets reads the headers again before using them
+    void setRelocationListener(Consumer<Collection<String>> listener);
+    
+    /**
+     * Keeps the files fileOf() returned so far on disk (compaction would
+     * otherwise delete them) until the pin is closed. Taken where entries are
+     * located, by readers that open the files later on other threads.
+     */
+    Pin pin();
+    
+    interface Pin extends Closeable {
+        @Override
+        void close();
+    }
+    
+    // Stores many entries (ids already set) as one group commit
+    void putAll(Collection<DiaryEntry> entries) throws IOException;
+    
+    // Makes every write so far durable; the group commit point for batched durability
+    void flush() throws IOException;
+    
+    @Override
+    void close() throws IOException;
+}
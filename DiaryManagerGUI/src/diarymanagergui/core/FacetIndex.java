@@ -0,0 +1,201 @@
+package diarymanagergui.core;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+
+/**
+ * Bitmap indexes over category, mood and day. Every entry gets a small
+ * ordinal; each facet value keeps a BitSet of the ordinals that have it, so a
+ * combined filter is a few ANDs and a count is a cardinality.
+ */
+public class FacetIndex {
+    
+    // The date ranges offered as filters, in days back from today
+    public static final int[] DATE_RANGES = {7, 30, 90, 365};
+    
+    public static final class Result {
+        public final List<String> ids; // newest first
+        public final Map<String, Integer> categoryCounts;
+        public final Map<String, Integer> moodCounts;
+        public final Map<Integer, Integer> dateCounts; // keyed by DATE_RANGES, plus 0 for any time
+        
+        Result(List<String> ids, Map<String, Integer> categoryCounts, Map<String, Integer> moodCounts,
+               Map<Integer, Integer> dateCounts) {
+            this.ids = ids;
+            this.categoryCounts = categoryCounts;
+            this.moodCounts = moodCounts;
+            this.dateCounts = dateCounts;
+        }
+    }
+    
+    private final Map<String, Integer> ordinals = new HashMap<>();
+    private final List<EntryCatalog.Record> byOrdinal = new ArrayList<>();
+    private final ArrayDeque<Integer> freeOrdinals = new ArrayDeque<>();
+    private final BitSet live = new BitSet();
+    private final Map<String, BitSet> byCategory = new HashMap<>();
+    private final Map<String, BitSet> byMood = new HashMap<>();
+    private final TreeMap<LocalDate, BitSet> byDay = new TreeMap<>();
+    
+    synchronized void clear() {
+        ordinals.clear();
+        byOrdinal.clear();
+        freeOrdinals.clear();
+        live.clear();
+        byCategory.clear();
+        byMood.clear();
+        byDay.clear();
+    }
+    
+    synchronized void put(EntryCatalog.Record record) {
+        remove(record.id);
+        
+        // Reuse freed ordinals so the bitmaps stay dense
+        Integer ordinal = freeOrdinals.poll();
+        if (ordinal == null) {
+            ordinal = byOrdinal.size();
+            byOrdinal.add(record);
+        } else {
+            byOrdinal.set(ordinal, record);
+        }
+        ordinals.put(record.id, ordinal);
+        live.set(ordinal);
+        
+        byCategory.computeIfAbsent(record.category, k -> new BitSet()).set(ordinal);
+        byMood.computeIfAbsent(record.mood, k -> new BitSet()).set(ordinal);
+        LocalDate day = dayOf(record);
+        if (day != null) {
+            byDay.computeIfAbsent(day, k -> new BitSet()).set(ordinal);
+        }
+    }
+    
+    synchronized void remove(String id) {
+        Integer ordinal = ordinals.remove(id);
+        if (ordinal == null) {
+            return;
+        }
+        
+        EntryCatalog.Record record = byOrdinal.set(ordinal, null);
+        live.clear(ordinal);
+        clearBit(byCategory, record.category, ordinal);
+        clearBit(byMood, record.mood, ordinal);
+        LocalDate day = dayOf(record);
+        if (day != null) {
+            clearBit(byDay, day, ordinal);
+        }
+        freeOrdinals.push(ordinal);
+    }
+    
+    private static <K> void clearBit(Map<K, BitSet> index, K key, int ordinal) {
+        BitSet bits = index.get(key);
+        if (bits != null) {
+            bits.clear(ordinal);
+            if (bits.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+    
+    /**
+     * Entries matching every given filter (null means any), optionally limited
+     * to a set of ids such as text search matches. Each facet's counts apply
+     * the other two filters, so they say what choosing that value would give.
+     */
+    synchronized Result query(String category, String mood, int lastDays, Collection<String> within) {
+        LocalDate today = LocalDate.now();
+        BitSet base = within == null ? (BitSet) live.clone() : bitsOf(within);
+        BitSet categoryBits = category == null ? null : valueBits(byCategory, category);
+        BitSet moodBits = mood == null ? null : valueBits(byMood, mood);
+        BitSet dateBits = lastDays <= 0 ? null : since(today.minusDays(lastDays - 1));
+        
+        Map<String, Integer> categoryCounts = new HashMap<>();
+        BitSet others = and(base, moodBits, dateBits);
+        for (Map.Entry<String, BitSet> value : byCategory.entrySet()) {
+            categoryCounts.put(value.getKey(), countAnd(others, value.getValue()));
+        }
+        
+        Map<String, Integer> moodCounts = new HashMap<>();
+        others = and(base, categoryBits, dateBits);
+        for (Map.Entry<String, BitSet> value : byMood.entrySet()) {
+            moodCounts.put(value.getKey(), countAnd(others, value.getValue()));
+        }
+        
+        Map<Integer, Integer> dateCounts = new HashMap<>();
+        others = and(base, categoryBits, moodBits);
+        dateCounts.put(0, others.cardinality());
+        for (int days : DATE_RANGES) {
+            dateCounts.put(days, countAnd(others, since(today.minusDays(days - 1))));
+        }
+        
+        BitSet matches = and(others, dateBits, null);
+        List<String> ids = new ArrayList<>(matches.cardinality());
+        for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+            ids.add(byOrdinal.get(i).id);
+        }
+        ids.sort(Comparator.reverseOrder());
+        
+        return new Result(ids, categoryCounts, moodCounts, dateCounts);
+    }
+    
+    private BitSet bitsOf(Collection<String> ids) {
+        BitSet bits = new BitSet(byOrdinal.size());
+        for (String id : ids) {
+            Integer ordinal = ordinals.get(id);
+            if (ordinal != null) {
+                bits.set(ordinal);
+            }
+        }
+        return bits;
+    }
+    
+    private static BitSet valueBits(Map<String, BitSet> index, String value) {
+        BitSet bits = index.get(value);
+        return bits != null ? bits : new BitSet();
+    }
+    
+    private BitSet since(LocalDate first) {
+        BitSet bits = new BitSet(byOrdinal.size());
+        for (BitSet day : byDay.tailMap(first, true).values()) {
+            bits.or(day);
+        }
+        return bits;
+    }
+    
+    private static BitSet and(BitSet base, BitSet first, BitSet second) {
+        BitSet result = (BitSet) base.clone();
+        if (first != null) {
+            result.and(first);
+        }
+        if (second != null) {
+            result.and(second);
+        }
+        return result;
+    }
+    
+    private static int countAnd(BitSet a, BitSet b) {
+        BitSet result = (BitSet) a.clone();
+        result.and(b);
+        return result.cardinality();
+    }
+    
+    // The Date: header holds LocalDateTime.toString(); fall back to the id, which starts with yyyyMMdd
+    static LocalDate dayOf(EntryCatalog.Record record) {
+        try {
+            if (record.date.length() >= 10) {
+                return LocalDate.parse(record.date.substring(0, 10));
+            }
+        } catch (DateTimeParseException e) {
+            // not an ISO date
+        }
+        try {
+            if (record.id.length() >= 8) {
+                return LocalDate.of(Integer.parseInt(record.id.substring(0, 4)),
+                                    Integer.parseInt(record.id.substring(4, 6)),
+                                    Integer.parseInt(record.id.substring(6, 8)));
+            }
+        } catch (RuntimeException e) {
+            // not a dated id either
+        }
+        return null;
+    }
+}
@@ -0,0 +1,169 @@
+package diarymanagergui.core;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * The original layout: one entry_yyyyMMdd_HHmmss.txt file per entry in the
+ * diary directory.
+ */
+class FileEntryStore implements EntryStore {
+    
+    private static final DateTimeFormatter ID_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss");
+    
+    private final File directory;
+    private final DurableWriter writer;
+    private final Compression compression;
+    private final int version;
+    private final DiaryCipher cipher;
+    
+    FileEntryStore(File directory) {
+        this(directory, Durability.SAFE, Compression.NONE, EntryFormat.V2, null);
+    }
+    
+    FileEntryStore(File directory, Durability durability, Compression compression, int version,
+                   DiaryCipher cipher) {
+        this.directory = directory;
+        this.writer = new DurableWriter(durability);
+        this.compression = compression;
+        this.version = version;
+        this.cipher = cipher;
+    }
+    
+    File directory() {
+        return directory;
+    }
+    
+    File fileFor(String id) {
+        return new File(directory, "entry_" + id + ".txt");
+    }
+    
+    static String idOf(File entryFile) {
+        return entryFile.getName().replace("entry_", "").replace(".txt", "");
+    }
+    
+    // Id for a file name in the diary directory, or null when it is not an entry file
+    static String idOfName(String name) {
+        return name.startsWith("entry_") && name.endsWith(".txt") && name.length() > 10
+                ? name.substring(6, name.length() - 4) : null;
+    }
+    
+    @Override
+    public String create(DiaryEntry entry) throws IOException {
+        String base = LocalDateTime.now().format(ID_FORMAT);
+        String id = base;
+        
+        // Suffix the id so two saves in the same second never overwrite each other
+        for (int n = 2; fileFor(id).exists(); n++) {
+            id = base + "_" + n;
+        }
+        writer.write(fileFor(id).toPath(), EntryFormat.encode(entry.withId(id), compression, version, cipher));
+        return id;
+    }
+    
+    @Override
+    public void put(DiaryEntry entry) throws IOException {
+        writer.write(fileFor(entry.id).toPath(), EntryFormat.encode(entry, compression, version, cipher));
+    }
+    
+    @Override
+    public DiaryEntry read(String id) throws IOException {
+        File file = fileFor(id);
+        if (!file.exists()) {
+            return null;
+        }
+        return EntryFormat.decode(id, Files.readAllBytes(file.toPath()), cipher);
+    }
+    
+    @Override
+    public EntryCatalog.Record readHeader(String id) throws IOException {
+        File file = fileFor(id);
+        long stamp = file.lastModified();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long length = channel.size();
+            // One positional read covers the header unless its fields are unusually long
+            byte[] head = EntryFormat.readAt(channel, 0, (int) Math.min(length, EntryFormat.HEADER_PROBE));
+            int needed = EntryFormat.headerLength(head, length);
+            if (needed > head.length) {
+                head = EntryFormat.readAt(channel, 0, (int) Math.min(length, needed));
+            }
+            return EntryFormat.readHeader(id, head, 0, length, stamp, cipher);
+        }
+    }
+    
+    @Override
+    public boolean needsUpgrade(String id) throws IOException {
+        try (FileChannel channel = FileChannel.open(fileFor(id).toPath(), StandardOpenOption.READ)) {
+            byte[] head = EntryFormat.readAt(channel, 0, (int) Math.min(channel.size(), 8));
+            return !EntryFormat.isCurrent(head, version, cipher != null);
+        }
+    }
+    
+    @Override
+    public DiaryCipher cipher() {
+        return cipher;
+    }
+    
+    @Override
+    public File fileOf(String id) {
+        return fileFor(id);
+    }
+    
+    @Override
+    public boolean delete(String id) throws IOException {
+        return writer.delete(fileFor(id).toPath());
+    }
+    
+    @Override
+    public Map<String, Long> stamps() {
+        Map<String, Long> stamps = new HashMap<>();
+        File[] files = directory.listFiles((dir, name) -> name.startsWith("entry_") && name.endsWith(".txt"));
+        
+        if (files != null) {
+            for (File file : files) {
+                stamps.put(idOf(file), file.lastModified());
+            }
+        }
+        return stamps;
+    }
+    
+    @Override
+    public long stamp() {
+        return directory.lastModified();
+    }
+    
+    // Entry files are only ever replaced by writes to them, never moved
+    @Override
+    public void setRelocationListener(Consumer<Collection<String>> listener) {
+    }
+    
+    // Nothing here deletes files behind a reader's back
+    @Override
+    public Pin pin() {
+        return () -> { };
+    }
+    
+    @Override
+    public void putAll(Collection<DiaryEntry> entries) throws IOException {
+        Map<Path, byte[]> files = new LinkedHashMap<>();
+        for (DiaryEntry entry : entries) {
+            files.put(fileFor(entry.id).toPath(), EntryFormat.encode(entry, compression, version, cipher));
+        }
+        writer.writeAll(files);
+    }
+    
+    @Override
+    public void flush() throws IOException {
+        writer.commit();
+    }
+    
+    @Override
+    public void close() throws IOException {
+        writer.commit();
+    }
+}
@@ -0,0 +1,78 @@
+package diarymanagergui.core;
+
+import java.util.concurrent.*;
+
+/**
+ * Runs diary disk work off the caller's (UI) thread. Store and index
+ * operations go through one ordered worker so a save is always visible to the
+ * load that follows it; searches get their own worker and a new search
+ * cancels the one still running. Long bulk jobs (export, import) run on a
+ * third worker and feed the ordered one in batches.
+ */
+final class IoScheduler {
+    
+    private final ExecutorService diskExecutor = Executors.newSingleThreadExecutor(daemon("diary-io"));
+    private final ExecutorService searchExecutor = Executors.newSingleThreadExecutor(daemon("diary-search"));
+    private final ExecutorService transferExecutor = Executors.newSingleThreadExecutor(daemon("diary-transfer"));
+    private CompletableFuture<?> currentSearch;
+    
+    private static ThreadFactory daemon(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+    
+    <T> CompletableFuture<T> submit(Callable<T> task) {
+        return schedule(diskExecutor, task);
+    }
+    
+    <T> CompletableFuture<T> submitTransfer(Callable<T> task) {
+        return schedule(transferExecutor, task);
+    }
+    
+    // Supersedes (and interrupts) the previous search if it has not finished yet
+    synchronized <T> CompletableFuture<T> submitSearch(Callable<T> task) {
+        if (currentSearch != null) {
+            currentSearch.cancel(true);
+        }
+        CompletableFuture<T> search = schedule(searchExecutor, task);
+        currentSearch = search;
+        return search;
+    }
+    
+    private static <T> CompletableFuture<T> schedule(ExecutorService executor, Callable<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Future<?> running = executor.submit(() -> {
+            if (result.isDone()) {
+                return; // cancelled while still queued
+            }
+            try {
+                result.complete(task.call());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        });
+        
+        // Cancelling the returned future also interrupts the worker
+        result.whenComplete((value, error) -> {
+            if (result.isCancelled()) {
+                running.cancel(true);
+            }
+        });
+        return result;
+    }
+    
+    // Lets queued writes finish before the application exits
+    void shutdown(long timeoutSeconds) {
+        searchExecutor.shutdownNow();
+        transferExecutor.shutdownNow();
+        diskExecutor.shutdown();
+        try {
+            diskExecutor.awaitTermination(timeoutSeconds, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
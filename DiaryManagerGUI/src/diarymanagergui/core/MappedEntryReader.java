@@ -0,0 +1,63 @@
+package diarymanagergui.core;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read-only memory mapping of an entry body. Only the requested window is
+ * decoded, so a multi-megabyte entry costs no more heap than what is shown.
+ */
+public class MappedEntryReader implements Closeable {
+    
+    private static final int LINE_SEARCH_LIMIT = 1024;
+    
+    private final FileChannel channel;
+    private final MappedByteBuffer body;
+    
+    MappedEntryReader(File file, long offset, long length) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        long size = Math.min(length, Math.min(Integer.MAX_VALUE, channel.size() - offset));
+        body = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.max(0, size));
+    }
+    
+    public long length() {
+        return body.capacity();
+    }
+    
+    // Decodes up to maxBytes starting at the beginning of the line containing position
+    public String window(long position, int maxBytes) {
+        int length = body.capacity();
+        int start = (int) Math.max(0, Math.min(position, length));
+        
+        int limit = Math.max(0, start - LINE_SEARCH_LIMIT);
+        for (int i = start - 1; i >= limit; i--) {
+            if (body.get(i) == '\n') {
+                start = i + 1;
+                break;
+            }
+        }
+        
+        // Never split a UTF-8 sequence at either end of the window
+        while (start < length && isContinuation(body.get(start))) {
+            start++;
+        }
+        int end = (int) Math.min(length, (long) start + maxBytes);
+        while (end > start && end < length && isContinuation(body.get(end))) {
+            end--;
+        }
+        
+        return StandardCharsets.UTF_8.decode(body.slice(start, end - start)).toString();
+    }
+    
+    private static boolean isContinuation(byte b) {
+        return (b & 0xC0) == 0x80;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,187 @@
+package diarymanagergui.core;
+
+import java.util.*;
+
+/**
+ * Piece-table model of a document being edited. The text is a list of pieces
+ * pointing into the original text or an append-only buffer of inserted text,
+ * so an edit only splits or adds a piece instead of copying the document, and
+ * typing at one spot just grows the last piece. Every edit is also recorded
+ * (adjacent typing and backspacing coalesced) until {@link #takeEdits()}, so
+ * the draft journal can persist the changed spans rather than the whole text.
+ * Not thread-safe; the Write tab uses it on the FX thread.
+ */
+public final class PieceTable {
+    
+    // Past this many pieces, lookups cost more than flattening the text once
+    private static final int MAX_PIECES = 4096;
+    
+    /** Replace removed chars at position with inserted (UTF-16 offsets). */
+    public static final class Edit {
+        public final int position;
+        public final int removed;
+        public final String inserted;
+        
+        public Edit(int position, int removed, String inserted) {
+            this.position = position;
+            this.removed = removed;
+            this.inserted = inserted;
+        }
+    }
+    
+    private static final class Piece {
+        final boolean added;
+        final int start;
+        int length;
+        
+        Piece(boolean added, int start, int length) {
+            this.added = added;
+            this.start = start;
+            this.length = length;
+        }
+    }
+    
+    private String original;
+    private final StringBuilder added = new StringBuilder();
+    private final List<Piece> pieces = new ArrayList<>();
+    private final List<Edit> edits = new ArrayList<>();
+    private int length;
+    private String text; // cached toString(), dropped on every edit
+    
+    public PieceTable() {
+        this("");
+    }
+    
+    public PieceTable(String text) {
+        reset(text);
+    }
+    
+    // Starts over from text; pending edits are dropped, since whoever reset it has the whole text anyway
+    public void reset(String text) {
+        original = text;
+        added.setLength(0);
+        pieces.clear();
+        if (!text.isEmpty()) {
+            pieces.add(new Piece(false, 0, text.length()));
+        }
+        edits.clear();
+        length = text.length();
+        this.text = text;
+    }
+    
+    public int length() {
+        return length;
+    }
+    
+    public boolean isEmpty() {
+        return length == 0;
+    }
+    
+    int pieceCount() {
+        return pieces.size();
+    }
+    
+    // Replaces the chars from start (inclusive) to end (exclusive) with replacement
+    public void replace(int start, int end, String replacement) {
+        if (start < 0 || end < start || end > length) {
+            throw new IndexOutOfBoundsException("Range " + start + "-" + end + " of " + length);
+        }
+        if (start == end && replacement.isEmpty()) {
+            return;
+        }
+        
+        int index = split(start);
+        if (end > start) {
+            pieces.subList(index, split(end)).clear();
+        }
+        if (!replacement.isEmpty()) {
+            Piece before = index > 0 ? pieces.get(index - 1) : null;
+            if (before != null && before.added && before.start + before.length == added.length()) {
+                before.length += replacement.length(); // typing on from the last insert
+            } else {
+                pieces.add(index, new Piece(true, added.length(), replacement.length()));
+            }
+            added.append(replacement);
+        }
+        length += replacement.length() - (end - start);
+        text = null;
+        record(start, end - start, replacement);
+        
+        if (pieces.size() > MAX_PIECES) {
+            flatten();
+        }
+    }
+    
+    public void apply(Edit edit) {
+        replace(edit.position, edit.position + edit.removed, edit.inserted);
+    }
+    
+    // The edits since the last call, in order; applying them to the text as it was then gives the text now
+    public List<Edit> takeEdits() {
+        List<Edit> taken = new ArrayList<>(edits);
+        edits.clear();
+        return taken;
+    }
+    
+    @Override
+    public String toString() {
+        if (text == null) {
+            StringBuilder builder = new StringBuilder(length);
+            for (Piece piece : pieces) {
+                if (piece.added) {
+                    builder.append(added, piece.start, piece.start + piece.length);
+                } else {
+                    builder.append(original, piece.start, piece.start + piece.length);
+                }
+            }
+            text = builder.toString();
+        }
+        return text;
+    }
+    
+    // Makes position a piece boundary; returns the index of the piece starting there
+    private int split(int position) {
+        int offset = 0;
+        for (int i = 0; i < pieces.size(); i++) {
+            Piece piece = pieces.get(i);
+            if (position == offset) {
+                return i;
+            }
+            if (position < offset + piece.length) {
+                int head = position - offset;
+                pieces.add(i + 1, new Piece(piece.added, piece.start + head, piece.length - head));
+                piece.length = head;
+                return i + 1;
+            }
+            offset += piece.length;
+        }
+        return pieces.size();
+    }
+    
+    private void flatten() {
+        String flat = toString();
+        original = flat;
+        added.setLength(0);
+        pieces.clear();
+        pieces.add(new Piece(false, 0, flat.length()));
+    }
+    
+    private void record(int position, int removed, String inserted) {
+        Edit last = edits.isEmpty() ? null : edits.get(edits.size() - 1);
+        if (last != null && last.removed == 0) {
+            int end = last.position + last.inserted.length();
+            if (removed == 0 && position == end) {
+                // Typing on
+                edits.set(edits.size() - 1, new Edit(last.position, 0, last.inserted + inserted));
+                return;
+            }
+            if (inserted.isEmpty() && position >= last.position && position + removed == end) {
+                // Backspacing over what was just typed
+                edits.set(edits.size() - 1, new Edit(last.position, 0,
+                                                     last.inserted.substring(0, position - last.position)));
+                return;
+            }
+        }
+        edits.add(new Edit(position, removed, inserted));
+    }
+}
@@ -0,0 +1,753 @@
+package diarymanagergui.core;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Persistent inverted index (term -> entry ids with term frequencies) for the
+ * diary search. The snapshot file holds the full posting lists; every
+ * add/remove since the last snapshot is appended to a small journal that is
+ * replayed on load and folded back into the snapshot once it grows past a
+ * threshold. Each entry is indexed under the catalog stamp it had, so on load
+ * only entries added, changed or removed while the diary was closed are
+ * indexed again. Frequencies and entry lengths feed BM25 ranking. In an encrypted
+ * diary the snapshot is one encrypted stream and each journal append is a
+ * separately sealed, length-prefixed record. A query word that matches no term
+ * at all falls back to the terms within a few edits of it, found through an
+ * in-memory trigram index over the vocabulary (see {@link TrigramIndex}).
+ */
+class SearchIndex {
+    
+    private static final int MAGIC = 0x44494458; // "DIDX"
+    private static final int VERSION = 3;
+    private static final int COMPACT_THRESHOLD = 256;
+    private static final int MAX_TERM_LENGTH = 64;
+    
+    private static final byte OP_ADD = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final byte OP_STAMP = 3;
+    
+    // BM25 parameters, and the weights of a term that only matches a query token as a prefix or
+    // within a few edits
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    private static final double PREFIX_WEIGHT = 0.5;
+    private static final double FUZZY_WEIGHT = 0.4;
+    
+    private final Path snapshotFile;
+    private final Path journalFile;
+    private final DiaryCipher cipher;
+    
+    // term -> id -> frequency (sorted by term for prefix lookups), plus the forward map so an
+    // entry can be removed without re-reading it
+    private final TreeMap<String, Map<String, Integer>> postings = new TreeMap<>();
+    private final Map<String, Set<String>> entryTerms = new HashMap<>();
+    private final Map<String, Integer> entryLengths = new HashMap<>();
+    private final Map<String, Long> stamps = new HashMap<>(); // the catalog stamp each entry was indexed under
+    private final TrigramIndex vocabulary = new TrigramIndex();
+    private long totalLength;
+    private int journalOps;
+    
+    SearchIndex(Path indexDirectory, DiaryCipher cipher) {
+        this.snapshotFile = indexDirectory.resolve("search.idx");
+        this.journalFile = indexDirectory.resolve("search.journal");
+        this.cipher = cipher;
+    }
+    
+    private InputStream openFile(Path file) throws IOException {
+        InputStream in = Files.newInputStream(file);
+        return cipher != null ? cipher.decrypt(in, DiaryCipher.Kind.SEARCH_INDEX, null) : in;
+    }
+    
+    // Returns false when there is no usable index on disk and the caller has to rebuild it
+    synchronized boolean load() {
+        clear();
+        
+        if (!Files.exists(snapshotFile)) {
+            return false;
+        }
+        
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(openFile(snapshotFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return false;
+            }
+            int termCount = in.readInt();
+            for (int t = 0; t < termCount; t++) {
+                String term = in.readUTF();
+                int idCount = in.readInt();
+                Map<String, Integer> ids = new HashMap<>(idCount * 2);
+                for (int i = 0; i < idCount; i++) {
+                    String id = in.readUTF();
+                    int frequency = in.readInt();
+                    ids.put(id, frequency);
+                    entryTerms.computeIfAbsent(id, k -> new HashSet<>()).add(term);
+                    entryLengths.merge(id, frequency, Integer::sum);
+                    totalLength += frequency;
+                }
+                postings.put(term, ids);
+                vocabulary.add(term);
+            }
+            int stampCount = in.readInt();
+            for (int i = 0; i < stampCount; i++) {
+                stamps.put(in.readUTF(), in.readLong());
+            }
+        } catch (IOException e) {
+            clear();
+            return false;
+        }
+        
+        if (!replayJournal()) {
+            // Whatever the journal held past the damage is lost; its entries keep their old stamps, so
+            // reconcile() indexes them again. Appends must not go after the damage either
+            try {
+                writeSnapshot();
+            } catch (IOException e) {
+                clear();
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    // Returns false when the journal stops short of its end: a torn last record or damage
+    private boolean replayJournal() {
+        if (!Files.exists(journalFile)) {
+            return true;
+        }
+        
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(journalFile)))) {
+            if (cipher == null) {
+                return replayOps(in);
+            }
+            while (true) {
+                in.mark(1);
+                if (in.read() < 0) {
+                    return true;
+                }
+                in.reset();
+                int length = in.readInt();
+                if (length < 0 || length > 64 * 1024 * 1024) {
+                    System.out.println("Error reading search journal: bad record length " + length);
+                    return false;
+                }
+                byte[] sealed = new byte[length];
+                in.readFully(sealed);
+                byte[] ops = cipher.open(sealed, DiaryCipher.Kind.SEARCH_JOURNAL, null);
+                if (!replayOps(new DataInputStream(new ByteArrayInputStream(ops)))) {
+                    return false;
+                }
+            }
+        } catch (EOFException e) {
+            return false; // torn last record from a crash
+        } catch (IOException e) {
+            System.out.println("Error reading search journal: " + e.getMessage());
+            return false;
+        }
+    }
+    
+    // Applies ops until the stream runs out; false when it runs out partway through one
+    private boolean replayOps(DataInputStream in) throws IOException {
+        while (true) {
+            int op = in.read();
+            if (op < 0) {
+                return true;
+            }
+            try {
+                String id = in.readUTF();
+                if (op == OP_ADD) {
+                    long stamp = in.readLong();
+                    int termCount = in.readInt();
+                    Map<String, Integer> terms = new HashMap<>(termCount * 2);
+                    for (int t = 0; t < termCount; t++) {
+                        terms.put(in.readUTF(), in.readInt());
+                    }
+                    drop(id);
+                    put(id, terms, stamp);
+                } else if (op == OP_REMOVE) {
+                    drop(id);
+                } else if (op == OP_STAMP) {
+                    long stamp = in.readLong();
+                    if (entryTerms.containsKey(id)) {
+                        stamps.put(id, stamp);
+                    }
+                } else {
+                    throw new IOException("Unknown search journal op " + op);
+                }
+            } catch (EOFException e) {
+                return false;
+            }
+            journalOps++;
+        }
+    }
+    
+    private void clear() {
+        postings.clear();
+        entryTerms.clear();
+        entryLengths.clear();
+        stamps.clear();
+        vocabulary.clear();
+        totalLength = 0;
+        journalOps = 0;
+    }
+    
+    // Builds the index for every catalog entry, streaming each body through the tokenizer (and
+    // decompressor) rather than materializing whole entries
+    void rebuild(EntryCatalog catalog, EntryStore store) throws IOException {
+        Map<String, Map<String, Integer>> documents = new HashMap<>();
+        Map<String, Long> documentStamps = new HashMap<>();
+        for (EntryCatalog.Record record : catalog.records()) {
+            Map<String, Integer> terms = readTerms(record, store);
+            if (terms != null) {
+                documents.put(record.id, terms);
+                documentStamps.put(record.id, record.modified);
+            }
+        }
+        rebuild(documents, documentStamps);
+    }
+    
+    // Replaces the whole index with the given id -> term counts (see countTerms) and writes a fresh snapshot
+    synchronized void rebuild(Map<String, Map<String, Integer>> documents, Map<String, Long> documentStamps)
+            throws IOException {
+        clear();
+        for (Map.Entry<String, Map<String, Integer>> doc : documents.entrySet()) {
+            put(doc.getKey(), doc.getValue(), documentStamps.get(doc.getKey()));
+        }
+        writeSnapshot();
+    }
+    
+    /**
+     * Brings a loaded index in line with the catalog: entries whose catalog
+     * stamp differs from the one they were indexed under (added or changed
+     * while the diary was closed, or lost with a damaged journal) are indexed
+     * again, and entries the catalog no longer has are dropped. Returns how
+     * many entries that touched.
+     */
+    int reconcile(EntryCatalog catalog, EntryStore store) throws IOException {
+        Map<String, Map<String, Integer>> changed = new LinkedHashMap<>();
+        Map<String, Long> changedStamps = new HashMap<>();
+        Set<String> live = new HashSet<>();
+        for (EntryCatalog.Record record : catalog.records()) {
+            live.add(record.id);
+            synchronized (this) {
+                Long known = stamps.get(record.id);
+                if (known != null && known == record.modified) {
+                    continue;
+                }
+            }
+            Map<String, Integer> terms = readTerms(record, store);
+            if (terms != null) {
+                changed.put(record.id, terms);
+                changedStamps.put(record.id, record.modified);
+            }
+        }
+        
+        synchronized (this) {
+            List<String> removed = new ArrayList<>();
+            for (String id : entryTerms.keySet()) {
+                if (!live.contains(id)) {
+                    removed.add(id);
+                }
+            }
+            for (String id : removed) {
+                drop(id);
+            }
+            if (!changed.isEmpty() || !removed.isEmpty()) {
+                for (Map.Entry<String, Map<String, Integer>> doc : changed.entrySet()) {
+                    drop(doc.getKey());
+                    put(doc.getKey(), doc.getValue(), changedStamps.get(doc.getKey()));
+                }
+                appendJournal(out -> {
+                    for (String id : removed) {
+                        out.writeByte(OP_REMOVE);
+                        out.writeUTF(id);
+                    }
+                    for (Map.Entry<String, Map<String, Integer>> doc : changed.entrySet()) {
+                        writeAdd(out, doc.getKey(), changedStamps.get(doc.getKey()), doc.getValue());
+                    }
+                }, changed.size() + removed.size());
+            }
+            return changed.size() + removed.size();
+        }
+    }
+    
+    // Streams the body through the tokenizer (and decompressor) rather than materializing the whole entry
+    private static Map<String, Integer> readTerms(EntryCatalog.Record record, EntryStore store) {
+        try (Reader body = EntryFormat.openBody(record.id, store.fileOf(record.id), record.bodyOffset,
+                                                record.bodyLength, store.cipher())) {
+            Map<String, Integer> terms = termCounts(EntryFormat.headerText(record));
+            countTerms(body, terms);
+            return terms;
+        } catch (IOException e) {
+            System.out.println("Error indexing entry: " + record.id);
+            return null;
+        }
+    }
+    
+    // stamp is the entry's catalog stamp as of this text
+    synchronized void add(String id, String text, long stamp) throws IOException {
+        Map<String, Integer> terms = termCounts(text);
+        drop(id);
+        put(id, terms, stamp);
+        
+        appendJournal(out -> writeAdd(out, id, stamp, terms));
+    }
+    
+    private static void writeAdd(DataOutputStream out, String id, long stamp, Map<String, Integer> terms)
+            throws IOException {
+        out.writeByte(OP_ADD);
+        out.writeUTF(id);
+        out.writeLong(stamp);
+        out.writeInt(terms.size());
+        for (Map.Entry<String, Integer> term : terms.entrySet()) {
+            out.writeUTF(term.getKey());
+            out.writeInt(term.getValue());
+        }
+    }
+    
+    // Bulk form of add(), with the stamps by id: one journal write for the whole batch
+    synchronized void addAll(Map<String, String> documents, Map<String, Long> documentStamps) throws IOException {
+        Map<String, Map<String, Integer>> batch = new LinkedHashMap<>();
+        for (Map.Entry<String, String> doc : documents.entrySet()) {
+            Map<String, Integer> terms = termCounts(doc.getValue());
+            drop(doc.getKey());
+            put(doc.getKey(), terms, documentStamps.get(doc.getKey()));
+            batch.put(doc.getKey(), terms);
+        }
+        
+        appendJournal(out -> {
+            for (Map.Entry<String, Map<String, Integer>> doc : batch.entrySet()) {
+                writeAdd(out, doc.getKey(), documentStamps.get(doc.getKey()), doc.getValue());
+            }
+        }, batch.size());
+    }
+    
+    // The entry's bytes moved without changing (compaction); keeps it from being indexed again on the next load
+    synchronized void moved(String id, long stamp) throws IOException {
+        Long known = stamps.get(id);
+        if (known == null || known == stamp) {
+            return;
+        }
+        stamps.put(id, stamp);
+        appendJournal(out -> {
+            out.writeByte(OP_STAMP);
+            out.writeUTF(id);
+            out.writeLong(stamp);
+        });
+    }
+    
+    synchronized void remove(String id) throws IOException {
+        if (!entryTerms.containsKey(id)) {
+            return;
+        }
+        drop(id);
+        
+        appendJournal(out -> {
+            out.writeByte(OP_REMOVE);
+            out.writeUTF(id);
+        });
+    }
+    
+    // Every query token must be a prefix of some term in the entry, or close to one when it matches
+    // nothing (AND semantics); the smallest candidate set drives the intersection
+    synchronized Set<String> search(String query) {
+        Set<String> tokens = tokenize(query);
+        if (tokens.isEmpty()) {
+            return Collections.emptySet();
+        }
+        
+        Map<String, Set<String>> similar = similarTerms(tokens);
+        List<Set<String>> lists = new ArrayList<>();
+        for (String token : tokens) {
+            Set<String> ids = similar.containsKey(token) ? termMatches(similar.get(token)) : prefixMatches(token);
+            if (ids.isEmpty()) {
+                return Collections.emptySet();
+            }
+            lists.add(ids);
+        }
+        lists.sort(Comparator.comparingInt(Set::size));
+        
+        Set<String> result = new HashSet<>(lists.get(0));
+        for (int i = 1; i < lists.size() && !result.isEmpty(); i++) {
+            result.retainAll(lists.get(i));
+        }
+        return result;
+    }
+    
+    // Narrows an earlier result set when the new query only extends the old one,
+    // checking each candidate's own terms instead of walking posting lists again. A corrected word can
+    // match terms the old query never reached, so a query that needs correcting starts over
+    synchronized Set<String> refine(Set<String> candidates, String query) {
+        Set<String> tokens = tokenize(query);
+        if (!similarTerms(tokens).isEmpty()) {
+            return search(query);
+        }
+        Set<String> result = new HashSet<>();
+        
+        for (String id : candidates) {
+            Set<String> terms = entryTerms.get(id);
+            if (terms != null && matchesAll(terms, tokens)) {
+                result.add(id);
+            }
+        }
+        return result;
+    }
+    
+    private Set<String> prefixMatches(String prefix) {
+        Map<String, Integer> exact = postings.get(prefix);
+        SortedMap<String, Map<String, Integer>> range = postings.subMap(prefix, prefix + Character.MAX_VALUE);
+        if (range.size() == 1 && exact != null) {
+            return exact.keySet();
+        }
+        
+        Set<String> ids = new HashSet<>();
+        for (Map<String, Integer> posting : range.values()) {
+            ids.addAll(posting.keySet());
+        }
+        return ids;
+    }
+    
+    private Set<String> termMatches(Set<String> terms) {
+        Set<String> ids = new HashSet<>();
+        for (String term : terms) {
+            ids.addAll(postings.get(term).keySet());
+        }
+        return ids;
+    }
+    
+    private boolean hasPrefixMatch(String prefix) {
+        String next = postings.ceilingKey(prefix);
+        return next != null && next.startsWith(prefix);
+    }
+    
+    /**
+     * For each token that is not a prefix of any indexed term, the terms it
+     * is probably a misspelling of: one edit away for words of up to five
+     * characters, two for longer ones. Words shorter than three characters
+     * are too ambiguous to correct and keep matching nothing.
+     */
+    private Map<String, Set<String>> similarTerms(Set<String> tokens) {
+        Map<String, Set<String>> similar = new HashMap<>();
+        for (String token : tokens) {
+            if (!hasPrefixMatch(token)) {
+                int maxEdits = token.length() < 3 ? 0 : token.length() <= 5 ? 1 : 2;
+                similar.put(token, new LinkedHashSet<>(vocabulary.similar(token, maxEdits)));
+            }
+        }
+        return similar;
+    }
+    
+    // The query's tokens plus the terms any of them was corrected to, for highlighting
+    synchronized Set<String> matchedTerms(String query) {
+        Set<String> tokens = tokenize(query);
+        Set<String> terms = new LinkedHashSet<>(tokens);
+        for (Set<String> similar : similarTerms(tokens).values()) {
+            terms.addAll(similar);
+        }
+        return terms;
+    }
+    
+    private static final class Hit {
+        final String id;
+        final double score;
+        
+        Hit(String id, double score) {
+            this.id = id;
+            this.score = score;
+        }
+    }
+    
+    /**
+     * The k best of the given entries for the query by BM25, best first. A
+     * term only counts in full when it equals a query token; terms the token
+     * is merely a prefix of (search as you type) count at PREFIX_WEIGHT, and
+     * the corrections of a misspelled token at FUZZY_WEIGHT. Ties
+     * go to the newer entry. A query with nothing to score by keeps the given
+     * order.
+     *
+     * Entries are scored a document at a time: the query's matching terms are
+     * looked up once in the vocabulary, then each entry gets its whole score
+     * at once and goes straight into a heap of the k best, so nothing is kept
+     * per match. The entries visited are those in the matching postings (or
+     * the candidates, when there are fewer of them), so the cost follows the
+     * postings that match rather than every term of every entry.
+     */
+    synchronized List<String> rank(Collection<String> ids, String query, int k) {
+        if (k <= 0) {
+            return Collections.emptyList();
+        }
+        Set<String> tokens = tokenize(query);
+        if (tokens.isEmpty()) {
+            List<String> first = new ArrayList<>(Math.min(ids.size(), k));
+            for (Iterator<String> it = ids.iterator(); it.hasNext() && first.size() < k; ) {
+                first.add(it.next());
+            }
+            return first;
+        }
+        
+        Set<String> candidates = ids instanceof Set ? (Set<String>) ids : new HashSet<>(ids);
+        List<Map<String, Integer>> matched = new ArrayList<>();
+        List<Double> weights = new ArrayList<>();
+        long matches = 0;
+        for (Map.Entry<String, Double> weighted : termWeights(tokens).entrySet()) {
+            Map<String, Integer> posting = postings.get(weighted.getKey());
+            double idf = Math.log(1 + (entryTerms.size() - posting.size() + 0.5) / (posting.size() + 0.5));
+            matched.add(posting);
+            weights.add(weighted.getValue() * idf);
+            matches += posting.size();
+        }
+        
+        Comparator<Hit> worstFirst = Comparator.comparingDouble((Hit hit) -> hit.score).thenComparing(hit -> hit.id);
+        PriorityQueue<Hit> best = new PriorityQueue<>(k + 1, worstFirst);
+        double averageLength = entryLengths.isEmpty() ? 1 : (double) totalLength / entryLengths.size();
+        if (matches <= candidates.size()) {
+            for (int t = 0; t < matched.size(); t++) {
+                for (String id : matched.get(t).keySet()) {
+                    if (candidates.contains(id) && !inEarlier(matched, t, id)) {
+                        offer(best, k, worstFirst, new Hit(id, score(id, matched, weights, averageLength)));
+                    }
+                }
+            }
+            if (best.size() < k) {
+                // Too few matches; entries without any still fill the page, after them
+                for (String id : ids) {
+                    if (entryTerms.containsKey(id) && !inEarlier(matched, matched.size(), id)) {
+                        offer(best, k, worstFirst, new Hit(id, 0));
+                    }
+                }
+            }
+        } else {
+            for (String id : ids) {
+                if (entryTerms.containsKey(id)) {
+                    offer(best, k, worstFirst, new Hit(id, score(id, matched, weights, averageLength)));
+                }
+            }
+        }
+        
+        List<String> ranked = new ArrayList<>(best.size());
+        while (!best.isEmpty()) {
+            ranked.add(best.poll().id);
+        }
+        Collections.reverse(ranked);
+        return ranked;
+    }
+    
+    // Every indexed term the query matches, at the weight of its best match with any token
+    private Map<String, Double> termWeights(Set<String> tokens) {
+        Map<String, Set<String>> similar = similarTerms(tokens);
+        Map<String, Double> weights = new HashMap<>();
+        for (String token : tokens) {
+            if (similar.containsKey(token)) {
+                for (String term : similar.get(token)) {
+                    weights.merge(term, FUZZY_WEIGHT, Math::max);
+                }
+                continue;
+            }
+            for (String term : postings.subMap(token, token + Character.MAX_VALUE).keySet()) {
+                weights.merge(term, term.equals(token) ? 1 : PREFIX_WEIGHT, Math::max);
+            }
+        }
+        return weights;
+    }
+    
+    // BM25 of one entry over the matching terms' postings
+    private double score(String id, List<Map<String, Integer>> matched, List<Double> weights,
+                         double averageLength) {
+        double lengthNorm = K1 * (1 - B + B * entryLengths.get(id) / averageLength);
+        double score = 0;
+        for (int t = 0; t < matched.size(); t++) {
+            Integer frequency = matched.get(t).get(id);
+            if (frequency != null) {
+                score += weights.get(t) * frequency * (K1 + 1) / (frequency + lengthNorm);
+            }
+        }
+        return score;
+    }
+    
+    // Whether one of the first count postings has the entry, which was then scored already
+    private static boolean inEarlier(List<Map<String, Integer>> matched, int count, String id) {
+        for (int t = 0; t < count; t++) {
+            if (matched.get(t).containsKey(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private static void offer(PriorityQueue<Hit> best, int k, Comparator<Hit> worstFirst, Hit hit) {
+        if (best.size() < k) {
+            best.add(hit);
+        } else if (worstFirst.compare(hit, best.peek()) > 0) {
+            best.poll();
+            best.add(hit);
+        }
+    }
+    
+    private static boolean matchesAll(Set<String> terms, Set<String> tokens) {
+        for (String token : tokens) {
+            if (terms.contains(token)) {
+                continue;
+            }
+            boolean found = false;
+            for (String term : terms) {
+                if (term.startsWith(token)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    synchronized int size() {
+        return entryTerms.size();
+    }
+    
+    // The distinct terms of a query, in order
+    static Set<String> tokenize(String text) {
+        return termCounts(text).keySet();
+    }
+    
+    static Map<String, Integer> termCounts(String text) {
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        try {
+            countTerms(new StringReader(text), counts);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return counts;
+    }
+    
+    // Adds the text's term frequencies to counts, reading incrementally so large bodies are never held whole
+    static void countTerms(Reader text, Map<String, Integer> counts) throws IOException {
+        StringBuilder current = new StringBuilder();
+        char[] buffer = new char[4096];
+        char pendingHigh = 0;
+        
+        int n;
+        while ((n = text.read(buffer)) != -1) {
+            for (int i = 0; i < n; i++) {
+                char c = buffer[i];
+                if (Character.isHighSurrogate(c)) {
+                    pendingHigh = c; // a pair may straddle two reads
+                    continue;
+                }
+                int cp = pendingHigh != 0 && Character.isLowSurrogate(c) ? Character.toCodePoint(pendingHigh, c) : c;
+                pendingHigh = 0;
+                
+                if (Character.isLetterOrDigit(cp)) {
+                    current.appendCodePoint(Character.toLowerCase(cp));
+                } else {
+                    addTerm(counts, current);
+                }
+            }
+        }
+        addTerm(counts, current);
+    }
+    
+    private static void addTerm(Map<String, Integer> counts, StringBuilder current) {
+        if (current.length() > 0 && current.length() <= MAX_TERM_LENGTH) {
+            counts.merge(current.toString(), 1, Integer::sum);
+        }
+        current.setLength(0);
+    }
+    
+    private void put(String id, Map<String, Integer> terms, long stamp) {
+        entryTerms.put(id, new HashSet<>(terms.keySet()));
+        stamps.put(id, stamp);
+        int length = 0;
+        for (Map.Entry<String, Integer> term : terms.entrySet()) {
+            Map<String, Integer> ids = postings.get(term.getKey());
+            if (ids == null) {
+                ids = new HashMap<>();
+                postings.put(term.getKey(), ids);
+                vocabulary.add(term.getKey());
+            }
+            ids.put(id, term.getValue());
+            length += term.getValue();
+        }
+        entryLengths.put(id, length);
+        totalLength += length;
+    }
+    
+    private void drop(String id) {
+        Set<String> terms = entryTerms.remove(id);
+        if (terms == null) {
+            return;
+        }
+        totalLength -= entryLengths.remove(id);
+        stamps.remove(id);
+        for (String term : terms) {
+            Map<String, Integer> ids = postings.get(term);
+            if (ids != null) {
+                ids.remove(id);
+                if (ids.isEmpty()) {
+                    postings.remove(term);
+                    vocabulary.remove(term);
+                }
+            }
+        }
+    }
+    
+    private interface JournalWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+    
+    private void appendJournal(JournalWriter writer) throws IOException {
+        appendJournal(writer, 1);
+    }
+    
+    private void appendJournal(JournalWriter writer, int ops) throws IOException {
+        Files.createDirectories(journalFile.getParent());
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(journalFile, StandardOpenOption.CREATE, StandardOpenOption.APPEND)))) {
+            if (cipher == null) {
+                writer.write(out);
+            } else {
+                ByteArrayOutputStream record = new ByteArrayOutputStream();
+                writer.write(new DataOutputStream(record));
+                byte[] sealed = cipher.seal(record.toByteArray(), DiaryCipher.Kind.SEARCH_JOURNAL, null);
+                out.writeInt(sealed.length);
+                out.write(sealed);
+            }
+        }
+        
+        journalOps += ops;
+        if (journalOps >= COMPACT_THRESHOLD) {
+            writeSnapshot();
+        }
+    }
+    
+    private void writeSnapshot() throws IOException {
+        Files.createDirectories(snapshotFile.getParent());
+        Path temp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        
+        OutputStream file = Files.newOutputStream(temp);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                cipher != null ? cipher.encrypt(file, DiaryCipher.Kind.SEARCH_INDEX, null) : file))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(postings.size());
+            for (Map.Entry<String, Map<String, Integer>> entry : postings.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().size());
+                for (Map.Entry<String, Integer> id : entry.getValue().entrySet()) {
+                    out.writeUTF(id.getKey());
+                    out.writeInt(id.getValue());
+                }
+            }
+            out.writeInt(stamps.size());
+            for (Map.Entry<String, Long> stamp : stamps.entrySet()) {
+                out.writeUTF(stamp.getKey());
+                out.writeLong(stamp.getValue());
+            }
+        }
+        
+        Files.move(temp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(journalFile);
+        journalOps = 0;
+    }
+}
@@ -0,0 +1,591 @@
+package diarymanagergui.core;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log storage: entries are written as records into numbered
+ * segment files, deletes append a tombstone. An in-memory id -> location map
+ * is rebuilt on open from per-segment hint files (id and offsets only, no
+ * entry bytes), so only the active segment has to be scanned. Compaction
+ * rewrites live records into fresh segments once dead bytes dominate, and
+ * tells the relocation listener which entries it moved. The segments it
+ * replaces stay on disk while any reader holds a {@link #pin()}; the floor
+ * file marks them as replaced, so open() deletes any a crash leaves behind.
+ *
+ * Record layout: crc32, type, id length, id, payload length, payload.
+ */
+class SegmentLogStore implements EntryStore {
+    
+    private static final DateTimeFormatter ID_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss");
+    
+    private static final long MAX_SEGMENT_SIZE = 16L * 1024 * 1024;
+    private static final long COMPACT_MIN_DEAD_BYTES = 1024L * 1024;
+    private static final int RECORD_OVERHEAD = 4 + 1 + 2 + 4;
+    private static final int BATCH_SIZE = 64;
+    
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_DELETE = 2;
+    
+    static final class Location {
+        final int segment;
+        final long offset;
+        final int length;
+        final long payloadOffset;
+        final int payloadLength;
+        
+        Location(int segment, long offset, int length, long payloadOffset, int payloadLength) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.payloadOffset = payloadOffset;
+            this.payloadLength = payloadLength;
+        }
+    }
+    
+    private static final class Hint {
+        final byte type;
+        final String id;
+        final Location location;
+        
+        Hint(byte type, String id, Location location) {
+            this.type = type;
+            this.id = id;
+            this.location = location;
+        }
+    }
+    
+    private final File directory;
+    private final Durability durability;
+    private final Compression compression;
+    private final int version;
+    private final DiaryCipher cipher;
+    private final Map<String, Location> keydir = new HashMap<>();
+    private final TreeMap<Integer, FileChannel> segments = new TreeMap<>();
+    private final List<Hint> activeHints = new ArrayList<>();
+    private final List<Integer> retired = new ArrayList<>(); // compacted away, deleted once unpinned
+    private int pins;
+    private Consumer<Collection<String>> relocated = ids -> { };
+    
+    private int activeSegment;
+    private FileChannel activeChannel;
+    private long activeSize;
+    private long liveBytes;
+    private long deadBytes;
+    private int unsyncedAppends;
+    
+    SegmentLogStore(File directory) throws IOException {
+        this(directory, Durability.SAFE, Compression.NONE, EntryFormat.V2, null);
+    }
+    
+    SegmentLogStore(File directory, Durability durability, Compression compression, int version,
+                    DiaryCipher cipher) throws IOException {
+        this.directory = directory;
+        this.durability = durability;
+        this.compression = compression;
+        this.version = version;
+        this.cipher = cipher;
+        Files.createDirectories(directory.toPath());
+        open();
+    }
+    
+    File directory() {
+        return directory;
+    }
+    
+    private void open() throws IOException {
+        List<Integer> numbers = new ArrayList<>();
+        File[] files = directory.listFiles((dir, name) -> name.matches("segment_\\d+\\.log"));
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                numbers.add(Integer.parseInt(name.substring(8, name.length() - 4)));
+            }
+        }
+        Collections.sort(numbers);
+        
+        // Segments compaction replaced but a reader still held, or a crash kept from being deleted
+        int floor = readFloor();
+        while (!numbers.isEmpty() && numbers.get(0) < floor) {
+            deleteSegment(numbers.remove(0));
+        }
+        
+        // Sealed segments replay from their hint files; the newest one is the active segment
+        for (int i = 0; i < numbers.size() - 1; i++) {
+            int number = numbers.get(i);
+            segments.put(number, FileChannel.open(segmentFile(number).toPath(), StandardOpenOption.READ));
+            List<Hint> hints = readHints(number);
+            if (hints == null) {
+                hints = scan(number);
+                writeHints(number, hints);
+            }
+            for (Hint hint : hints) {
+                apply(hint);
+            }
+        }
+        
+        if (numbers.isEmpty()) {
+            openActive(1);
+        } else {
+            int last = numbers.get(numbers.size() - 1);
+            openActive(last);
+            activeHints.addAll(scan(last));
+            for (Hint hint : activeHints) {
+                apply(hint);
+            }
+            if (activeChannel.size() > activeSize) {
+                // Torn write at the tail from a crash: drop it
+                activeChannel.truncate(activeSize);
+            }
+        }
+        
+        maybeCompact();
+    }
+    
+    private File segmentFile(int number) {
+        return new File(directory, String.format("segment_%06d.log", number));
+    }
+    
+    private File hintFile(int number) {
+        return new File(directory, String.format("segment_%06d.hint", number));
+    }
+    
+    // The lowest segment still in use; those below it were replaced by compaction
+    private File floorFile() {
+        return new File(directory, "segments.floor");
+    }
+    
+    private int readFloor() {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(floorFile()))) {
+            return in.readInt();
+        } catch (IOException e) {
+            return 0; // never compacted
+        }
+    }
+    
+    private void writeFloor(int floor) throws IOException {
+        File temp = new File(directory, floorFile().getName() + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temp);
+             DataOutputStream out = new DataOutputStream(file)) {
+            out.writeInt(floor);
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(temp.toPath(), floorFile().toPath(), StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    private void deleteSegment(int number) throws IOException {
+        Files.deleteIfExists(segmentFile(number).toPath());
+        Files.deleteIfExists(hintFile(number).toPath());
+    }
+    
+    private void openActive(int number) throws IOException {
+        activeSegment = number;
+        activeChannel = FileChannel.open(segmentFile(number).toPath(),
+                                         StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        activeSize = 0;
+        activeHints.clear();
+        segments.put(number, activeChannel);
+    }
+    
+    // Sequential scan with CRC verification; stops at the first damaged record
+    private List<Hint> scan(int number) throws IOException {
+        List<Hint> hints = new ArrayList<>();
+        long position = 0;
+        
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(segmentFile(number)), 64 * 1024))) {
+            while (true) {
+                int crc;
+                try {
+                    crc = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                byte type = in.readByte();
+                byte[] id = new byte[in.readUnsignedShort()];
+                in.readFully(id);
+                int payloadLength = in.readInt();
+                if (payloadLength < 0 || (type != TYPE_PUT && type != TYPE_DELETE)) {
+                    break;
+                }
+                byte[] payload = new byte[payloadLength];
+                in.readFully(payload);
+                
+                if (crc != checksum(type, id, payload)) {
+                    break;
+                }
+                
+                int length = RECORD_OVERHEAD + id.length + payloadLength;
+                long payloadOffset = position + RECORD_OVERHEAD + id.length;
+                hints.add(new Hint(type, new String(id, StandardCharsets.UTF_8),
+                                   new Location(number, position, length, payloadOffset, payloadLength)));
+                position += length;
+            }
+        } catch (EOFException e) {
+            // Truncated record at the end of the segment
+        }
+        
+        if (number == activeSegment) {
+            activeSize = position;
+        }
+        return hints;
+    }
+    
+    private List<Hint> readHints(int number) {
+        File file = hintFile(number);
+        if (!file.exists()) {
+            return null;
+        }
+        
+        List<Hint> hints = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                byte type = in.readByte();
+                String id = in.readUTF();
+                long offset = in.readLong();
+                int length = in.readInt();
+                long payloadOffset = in.readLong();
+                int payloadLength = in.readInt();
+                hints.add(new Hint(type, id, new Location(number, offset, length, payloadOffset, payloadLength)));
+            }
+            return hints;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+    
+    private void writeHints(int number, List<Hint> hints) throws IOException {
+        File file = hintFile(number);
+        File temp = new File(directory, file.getName() + ".tmp");
+        
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(hints.size());
+            for (Hint hint : hints) {
+                out.writeByte(hint.type);
+                out.writeUTF(hint.id);
+                out.writeLong(hint.location.offset);
+                out.writeInt(hint.location.length);
+                out.writeLong(hint.location.payloadOffset);
+                out.writeInt(hint.location.payloadLength);
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    private void apply(Hint hint) {
+        Location previous = keydir.remove(hint.id);
+        if (previous != null) {
+            liveBytes -= previous.length;
+            deadBytes += previous.length;
+        }
+        
+        if (hint.type == TYPE_PUT) {
+            keydir.put(hint.id, hint.location);
+            liveBytes += hint.location.length;
+        } else {
+            deadBytes += hint.location.length;
+        }
+    }
+    
+    private static int checksum(byte type, byte[] id, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(id.length >>> 8);
+        crc.update(id.length);
+        crc.update(id);
+        crc.update(ByteBuffer.allocate(4).putInt(payload.length).array());
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+    
+    private Hint append(byte type, String id, byte[] payload) throws IOException {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        int length = RECORD_OVERHEAD + idBytes.length + payload.length;
+        
+        if (activeSize > 0 && activeSize + length > MAX_SEGMENT_SIZE) {
+            roll();
+        }
+        
+        ByteBuffer record = ByteBuffer.allocate(length);
+        record.putInt(checksum(type, idBytes, payload));
+        record.put(type);
+        record.putShort((short) idBytes.length);
+        record.put(idBytes);
+        record.putInt(payload.length);
+        record.put(payload);
+        record.flip();
+        
+        long position = activeSize;
+        while (record.hasRemaining()) {
+            activeChannel.write(record, position + record.position());
+        }
+        activeSize += length;
+        
+        Hint hint = new Hint(type, id, new Location(activeSegment, position, length,
+                                                    position + RECORD_OVERHEAD + idBytes.length, payload.length));
+        activeHints.add(hint);
+        return hint;
+    }
+    
+    private void roll() throws IOException {
+        sealActive();
+        openActive(activeSegment + 1);
+    }
+    
+    private void sealActive() throws IOException {
+        activeChannel.force(false);
+        writeHints(activeSegment, new ArrayList<>(activeHints));
+    }
+    
+    private byte[] readPayload(Location location, int limit) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Math.min(limit, location.payloadLength));
+        FileChannel channel = segments.get(location.segment);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, location.payloadOffset + buffer.position()) < 0) {
+                throw new EOFException("Segment " + location.segment + " is truncated");
+            }
+        }
+        return buffer.array();
+    }
+    
+    @Override
+    public synchronized String create(DiaryEntry entry) throws IOException {
+        String base = LocalDateTime.now().format(ID_FORMAT);
+        String id = base;
+        for (int n = 2; keydir.containsKey(id); n++) {
+            id = base + "_" + n;
+        }
+        put(entry.withId(id));
+        return id;
+    }
+    
+    @Override
+    public synchronized void put(DiaryEntry entry) throws IOException {
+        apply(append(TYPE_PUT, entry.id, EntryFormat.encode(entry, compression, version, cipher)));
+        appended();
+        maybeCompact();
+    }
+    
+    @Override
+    public synchronized void putAll(Collection<DiaryEntry> entries) throws IOException {
+        for (DiaryEntry entry : entries) {
+            apply(append(TYPE_PUT, entry.id, EntryFormat.encode(entry, compression, version, cipher)));
+        }
+        // One force for the whole batch
+        if (durability == Durability.SAFE) {
+            activeChannel.force(false);
+        } else if (durability == Durability.BATCHED) {
+            unsyncedAppends += entries.size();
+            if (unsyncedAppends >= BATCH_SIZE) {
+                flush();
+            }
+        }
+        maybeCompact();
+    }
+    
+    private void appended() throws IOException {
+        if (durability == Durability.SAFE) {
+            activeChannel.force(false);
+        } else if (durability == Durability.BATCHED && ++unsyncedAppends >= BATCH_SIZE) {
+            flush();
+        }
+    }
+    
+    @Override
+    public synchronized void flush() throws IOException {
+        if (durability != Durability.FAST) {
+            activeChannel.force(false);
+        }
+        unsyncedAppends = 0;
+    }
+    
+    @Override
+    public synchronized DiaryEntry read(String id) throws IOException {
+        Location location = keydir.get(id);
+        if (location == null) {
+            return null;
+        }
+        return EntryFormat.decode(id, readPayload(location, Integer.MAX_VALUE), cipher);
+    }
+    
+    @Override
+    public synchronized EntryCatalog.Record readHeader(String id) throws IOException {
+        Location location = keydir.get(id);
+        if (location == null) {
+            throw new FileNotFoundException("No entry " + id);
+        }
+        
+        // The header nearly always fits in the first KB of the payload
+        byte[] head = readPayload(location, EntryFormat.HEADER_PROBE);
+        int needed = EntryFormat.headerLength(head, location.payloadLength);
+        if (needed > head.length) {
+            head = readPayload(location, needed);
+        }
+        return EntryFormat.readHeader(id, head, location.payloadOffset, location.payloadLength, stampOf(location),
+                                      cipher);
+    }
+    
+    @Override
+    public synchronized boolean needsUpgrade(String id) throws IOException {
+        Location location = keydir.get(id);
+        if (location == null) {
+            throw new FileNotFoundException("No entry " + id);
+        }
+        return !EntryFormat.isCurrent(readPayload(location, 8), version, cipher != null);
+    }
+    
+    @Override
+    public DiaryCipher cipher() {
+        return cipher;
+    }
+    
+    @Override
+    public synchronized File fileOf(String id) throws IOException {
+        Location location = keydir.get(id);
+        if (location == null) {
+            throw new FileNotFoundException("No entry " + id);
+        }
+        return segmentFile(location.segment);
+    }
+    
+    @Override
+    public synchronized boolean delete(String id) throws IOException {
+        if (!keydir.containsKey(id)) {
+            return false;
+        }
+        apply(append(TYPE_DELETE, id, new byte[0]));
+        appended();
+        maybeCompact();
+        return true;
+    }
+    
+    @Override
+    public synchronized Map<String, Long> stamps() {
+        Map<String, Long> stamps = new HashMap<>(keydir.size() * 2);
+        for (Map.Entry<String, Location> entry : keydir.entrySet()) {
+            stamps.put(entry.getKey(), stampOf(entry.getValue()));
+        }
+        return stamps;
+    }
+    
+    @Override
+    public synchronized long stamp() {
+        return ((long) activeSegment << 40) | activeSize;
+    }
+    
+    private static long stampOf(Location location) {
+        return ((long) location.segment << 40) | location.offset;
+    }
+    
+    @Override
+    public synchronized void setRelocationListener(Consumer<Collection<String>> listener) {
+        relocated = listener;
+    }
+    
+    @Override
+    public synchronized Pin pin() {
+        pins++;
+        AtomicBoolean released = new AtomicBoolean();
+        return () -> {
+            if (released.compareAndSet(false, true)) {
+                unpin();
+            }
+        };
+    }
+    
+    private synchronized void unpin() {
+        if (--pins == 0) {
+            deleteRetired();
+        }
+    }
+    
+    private void deleteRetired() {
+        for (Iterator<Integer> numbers = retired.iterator(); numbers.hasNext(); ) {
+            int number = numbers.next();
+            try {
+                deleteSegment(number);
+                numbers.remove();
+            } catch (IOException e) {
+                // Still below the floor, so the next open deletes it
+                System.out.println("Error deleting segment " + number + ": " + e.getMessage());
+            }
+        }
+    }
+    
+    synchronized int retiredSegments() {
+        return retired.size();
+    }
+    
+    synchronized int size() {
+        return keydir.size();
+    }
+    
+    synchronized long deadBytes() {
+        return deadBytes;
+    }
+    
+    private void maybeCompact() throws IOException {
+        if (deadBytes > COMPACT_MIN_DEAD_BYTES && deadBytes > liveBytes) {
+            compact();
+        }
+    }
+    
+    // Rewrites every live record into new segments numbered after the old ones, then drops the old ones.
+    // A crash before the floor moves leaves both sets on disk; replay order still yields the same live set.
+    // Old segments a reader has pinned are deleted when the last pin goes. Every live entry moves, so the
+    // relocation listener hears about all of them.
+    synchronized void compact() throws IOException {
+        sealActive();
+        List<Integer> old = new ArrayList<>(segments.keySet());
+        int floor = activeSegment + 1;
+        
+        openActive(floor);
+        Map<String, Location> moved = new HashMap<>(keydir.size() * 2);
+        for (String id : new TreeSet<>(keydir.keySet())) {
+            byte[] payload = readPayload(keydir.get(id), Integer.MAX_VALUE);
+            moved.put(id, append(TYPE_PUT, id, payload).location);
+        }
+        sealActive();
+        
+        keydir.clear();
+        keydir.putAll(moved);
+        liveBytes = 0;
+        for (Location location : moved.values()) {
+            liveBytes += location.length;
+        }
+        deadBytes = 0;
+        
+        writeFloor(floor);
+        for (int number : old) {
+            segments.remove(number).close();
+            retired.add(number);
+        }
+        if (pins == 0) {
+            deleteRetired();
+        }
+        
+        openActive(activeSegment + 1);
+        relocated.accept(Collections.unmodifiableSet(moved.keySet()));
+    }
+    
+    @Override
+    public synchronized void close() throws IOException {
+        activeChannel.force(false);
+        for (FileChannel channel : segments.values()) {
+            channel.close();
+        }
+        segments.clear();
+    }
+}
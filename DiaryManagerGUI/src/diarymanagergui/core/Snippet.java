@@ -0,0 +1,84 @@
+package diarymanagergui.core;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * A short excerpt of an entry body around the first match of a query, with
+ * the character ranges of every match inside it so the results list can
+ * highlight them. Only the start of a body is ever read.
+ */
+public final class Snippet {
+    
+    // How much of a body is searched for a match, and how much context is kept either side of it
+    private static final int MAX_SCAN_CHARS = 64 * 1024;
+    private static final int CONTEXT_CHARS = 60;
+    
+    public final String text;
+    public final int[] highlights; // start/end pairs into text
+    
+    private Snippet(String text, int[] highlights) {
+        this.text = text;
+        this.highlights = highlights;
+    }
+    
+    // Matches whole words that start with one of the query tokens, the way the index matches them
+    static Pattern highlighter(Collection<String> tokens) {
+        StringJoiner alternatives = new StringJoiner("|", "(?<![\\p{L}\\p{N}])(?:", ")[\\p{L}\\p{N}]*");
+        for (String token : tokens) {
+            alternatives.add(Pattern.quote(token));
+        }
+        return Pattern.compile(alternatives.toString(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+    }
+    
+    static Snippet extract(Reader body, Pattern pattern) throws IOException {
+        StringBuilder text = new StringBuilder();
+        char[] buffer = new char[8192];
+        int n;
+        while (text.length() < MAX_SCAN_CHARS && (n = body.read(buffer)) != -1) {
+            text.append(buffer, 0, n);
+        }
+        
+        Matcher matcher = pattern.matcher(text);
+        int from = 0;
+        int to = Math.min(text.length(), 2 * CONTEXT_CHARS);
+        if (matcher.find()) {
+            from = Math.max(0, matcher.start() - CONTEXT_CHARS);
+            to = Math.min(text.length(), Math.max(matcher.end(), matcher.start() + CONTEXT_CHARS));
+        }
+        
+        // Don't cut words in half at either edge
+        while (from > 0 && Character.isLetterOrDigit(text.charAt(from - 1))) {
+            from--;
+        }
+        while (to < text.length() && Character.isLetterOrDigit(text.charAt(to))) {
+            to++;
+        }
+        
+        String window = text.substring(from, to);
+        List<Integer> ranges = new ArrayList<>();
+        matcher = pattern.matcher(window);
+        while (matcher.find()) {
+            if (matcher.end() > matcher.start()) {
+                ranges.add(matcher.start());
+                ranges.add(matcher.end());
+            }
+        }
+        int[] highlights = new int[ranges.size()];
+        for (int i = 0; i < highlights.length; i++) {
+            highlights[i] = ranges.get(i);
+        }
+        
+        String lead = from > 0 ? "..." : "";
+        String excerpt = window.replaceAll("\\s", " ");
+        return new Snippet(lead + excerpt + (to < text.length() ? "..." : ""), shift(highlights, lead.length()));
+    }
+    
+    private static int[] shift(int[] ranges, int by) {
+        for (int i = 0; i < ranges.length; i++) {
+            ranges[i] += by;
+        }
+        return ranges;
+    }
+}
@@ -0,0 +1,66 @@
+package diarymanagergui.core;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Copies every entry from one store into another, keeping ids. Run it from the
+ * command line to import the classic entry_*.txt files into the segment log:
+ *
+ *   java -cp DiaryManagerGUI.jar diarymanagergui.core.StoreMigration [diary directory] [--remove]
+ *
+ * Afterwards start the application with -Ddiary.store=segments.
+ */
+final class StoreMigration {
+    
+    private StoreMigration() {
+    }
+    
+    static int migrate(EntryStore from, EntryStore to) throws IOException {
+        List<String> ids = new ArrayList<>(from.stamps().keySet());
+        Collections.sort(ids);
+        
+        int copied = 0;
+        for (String id : ids) {
+            DiaryEntry entry = from.read(id);
+            if (entry != null) {
+                to.put(entry);
+                copied++;
+            }
+        }
+        return copied;
+    }
+    
+    public static void main(String[] args) throws IOException {
+        File diaryDirectory = new File(System.getProperty("user.home"), "PersonalDiary");
+        boolean remove = false;
+        
+        for (String arg : args) {
+            if (arg.equals("--remove")) {
+                remove = true;
+            } else {
+                diaryDirectory = new File(arg);
+            }
+        }
+        
+        // A bulk import only needs to be durable once it is complete, so sync in batches
+        int version = EntryFormat.versionFromProperty();
+        FileEntryStore files = new FileEntryStore(diaryDirectory, Durability.BATCHED, Compression.NONE, version,
+                                                  null);
+        try (SegmentLogStore segments = new SegmentLogStore(new File(diaryDirectory, "segments"), Durability.BATCHED,
+                                                            Compression.fromProperty(), version, null)) {
+            int copied = migrate(files, segments);
+            segments.flush();
+            System.out.println("Imported " + copied + " entries into " + segments.directory());
+        }
+        
+        // Only once every record is safely in the log
+        if (remove) {
+            for (String id : files.stamps().keySet()) {
+                files.delete(id);
+            }
+            files.flush();
+            System.out.println("Removed the original entry files");
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package diarymanagergui.core;
+
+import java.util.*;
+
+/**
+ * In-memory trigram index over the search vocabulary, for typo-tolerant
+ * lookups. It holds the distinct terms rather than the entries, so it stays
+ * small (a few MB for a diary of a million entries) and is simply rebuilt
+ * from the vocabulary on load instead of being written to disk.
+ *
+ * A term within d edits of a word shares at least (the word's distinct
+ * trigrams - 3d) of its trigrams, since one edit touches at most three of
+ * them. Only terms passing that count and the length difference are checked
+ * by a Levenshtein automaton, which drops out as soon as no path can stay
+ * within d edits. Not thread-safe; SearchIndex guards it.
+ */
+final class TrigramIndex {
+    
+    // Below this many removed terms the dead ordinals are not worth compacting away
+    private static final int COMPACT_MIN_REMOVED = 1024;
+    
+    private static final class Postings {
+        int[] ordinals = new int[4];
+        int size;
+        
+        void add(int ordinal) {
+            if (size == ordinals.length) {
+                ordinals = Arrays.copyOf(ordinals, size * 2);
+            }
+            ordinals[size++] = ordinal;
+        }
+    }
+    
+    private static final class Match {
+        final String term;
+        final int distance;
+        
+        Match(String term, int distance) {
+            this.term = term;
+            this.distance = distance;
+        }
+    }
+    
+    private final List<String> terms = new ArrayList<>(); // by ordinal; null once removed
+    private final Map<String, Integer> ordinals = new HashMap<>();
+    private final Map<Long, Postings> grams = new HashMap<>();
+    private int[] shared = new int[0]; // per-ordinal counts for similar(), all zero between calls
+    private int removed;
+    
+    void add(String term) {
+        if (ordinals.containsKey(term)) {
+            return;
+        }
+        int ordinal = terms.size();
+        terms.add(term);
+        ordinals.put(term, ordinal);
+        for (long gram : distinctGrams(term)) {
+            grams.computeIfAbsent(gram, g -> new Postings()).add(ordinal);
+        }
+    }
+    
+    // The ordinal stays in the posting lists until enough have died to compact
+    void remove(String term) {
+        Integer ordinal = ordinals.remove(term);
+        if (ordinal == null) {
+            return;
+        }
+        terms.set(ordinal, null);
+        if (++removed >= COMPACT_MIN_REMOVED && removed > ordinals.size()) {
+            compact();
+        }
+    }
+    
+    void clear() {
+        terms.clear();
+        ordinals.clear();
+        grams.clear();
+        shared = new int[0];
+        removed = 0;
+    }
+    
+    int size() {
+        return ordinals.size();
+    }
+    
+    private void compact() {
+        List<String> live = new ArrayList<>(ordinals.keySet());
+        clear();
+        for (String term : live) {
+            add(term);
+        }
+    }
+    
+    /**
+     * The terms within maxEdits edits of word, closest first (then
+     * alphabetically), excluding the word itself. Empty when the word is too
+     * short for its trigrams to narrow anything down at that distance.
+     */
+    List<String> similar(String word, int maxEdits) {
+        long[] wordGrams = distinctGrams(word);
+        int needed = wordGrams.length - 3 * maxEdits;
+        if (maxEdits <= 0 || needed <= 0) {
+            return Collections.emptyList();
+        }
+        
+        // Count shared trigrams per term; only terms sharing at least one are ever touched, and only
+        // their counts are reset afterwards, so a lookup costs what it touches rather than the vocabulary
+        if (shared.length < terms.size()) {
+            shared = new int[Math.max(terms.size(), shared.length * 2)];
+        }
+        Postings touched = new Postings();
+        for (long gram : wordGrams) {
+            Postings postings = grams.get(gram);
+            if (postings == null) {
+                continue;
+            }
+            for (int i = 0; i < postings.size; i++) {
+                int ordinal = postings.ordinals[i];
+                if (shared[ordinal]++ == 0) {
+                    touched.add(ordinal);
+                }
+            }
+        }
+        
+        LevenshteinAutomaton automaton = new LevenshteinAutomaton(word, maxEdits);
+        List<Match> matches = new ArrayList<>();
+        for (int i = 0; i < touched.size; i++) {
+            int ordinal = touched.ordinals[i];
+            int count = shared[ordinal];
+            shared[ordinal] = 0;
+            String term = terms.get(ordinal);
+            if (term == null || count < needed || Math.abs(term.length() - word.length()) > maxEdits ||
+                    term.equals(word)) {
+                continue;
+            }
+            int distance = automaton.distance(term);
+            if (distance <= maxEdits) {
+                matches.add(new Match(term, distance));
+            }
+        }
+        
+        matches.sort(Comparator.comparingInt((Match match) -> match.distance).thenComparing(match -> match.term));
+        List<String> similar = new ArrayList<>(matches.size());
+        for (Match match : matches) {
+            similar.add(match.term);
+        }
+        return similar;
+    }
+    
+    // Padded so the first and last characters get trigrams of their own: "ab" -> "\0\0a", "\0ab", "ab\0"
+    private static long[] distinctGrams(String term) {
+        String padded = "\0\0" + term + "\0";
+        Set<Long> distinct = new LinkedHashSet<>();
+        for (int i = 0; i + 3 <= padded.length(); i++) {
+            distinct.add(((long) padded.charAt(i) << 32) | ((long) padded.charAt(i + 1) << 16) | padded.charAt(i + 2));
+        }
+        long[] grams = new long[distinct.size()];
+        int n = 0;
+        for (long gram : distinct) {
+            grams[n++] = gram;
+        }
+        return grams;
+    }
+    
+    /**
+     * Levenshtein automaton for one word and edit limit, simulated a row of
+     * the edit-distance table at a time. Only the band of cells within
+     * maxEdits of the diagonal can stay under the limit, so only those are
+     * computed, and a term is rejected as soon as its row has no live cell.
+     */
+    static final class LevenshteinAutomaton {
+        private final String word;
+        private final int maxEdits;
+        private final int[] row;
+        private final int[] next;
+        
+        LevenshteinAutomaton(String word, int maxEdits) {
+            this.word = word;
+            this.maxEdits = maxEdits;
+            this.row = new int[word.length() + 1];
+            this.next = new int[word.length() + 1];
+        }
+        
+        // The edit distance to term, or maxEdits + 1 as soon as it is certain to be more than maxEdits
+        int distance(String term) {
+            int n = word.length();
+            int dead = maxEdits + 1;
+            int[] current = row;
+            int[] following = next;
+            for (int i = 0; i <= n; i++) {
+                current[i] = Math.min(i, dead);
+            }
+            
+            for (int j = 1; j <= term.length(); j++) {
+                char c = term.charAt(j - 1);
+                int from = Math.max(1, j - maxEdits);
+                int to = Math.min(n, j + maxEdits);
+                following[0] = Math.min(j, dead);
+                int best = following[0];
+                for (int i = 1; i < from; i++) {
+                    following[i] = dead;
+                }
+                for (int i = from; i <= to; i++) {
+                    int substitute = current[i - 1] + (word.charAt(i - 1) == c ? 0 : 1);
+                    int cell = Math.min(substitute, Math.min(current[i], following[i - 1]) + 1);
+                    following[i] = Math.min(cell, dead);
+                    best = Math.min(best, following[i]);
+                }
+                for (int i = to + 1; i <= n; i++) {
+                    following[i] = dead;
+                }
+                if (best >= dead) {
+                    return dead;
+                }
+                
+                int[] swap = current;
+                current = following;
+                following = swap;
+            }
+            return current[n];
+        }
+    }
+}
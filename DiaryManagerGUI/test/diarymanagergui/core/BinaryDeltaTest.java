@@ -0,0 +1,97 @@
+package diarymanagergui.core;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BinaryDeltaTest {
+    
+    private static byte[] text(int lines, Random random) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            text.append("Line ").append(i).append(": ").append(Long.toHexString(random.nextLong())).append('\n');
+        }
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+    
+    private static byte[] splice(byte[] data, int at, int removed, String inserted) {
+        byte[] insert = inserted.getBytes(StandardCharsets.UTF_8);
+        byte[] result = new byte[data.length - removed + insert.length];
+        System.arraycopy(data, 0, result, 0, at);
+        System.arraycopy(insert, 0, result, at, insert.length);
+        System.arraycopy(data, at + removed, result, at + insert.length, data.length - at - removed);
+        return result;
+    }
+    
+    private static void assertRoundTrip(byte[] base, byte[] target) throws IOException {
+        assertArrayEquals(target, BinaryDelta.apply(base, BinaryDelta.diff(base, target)));
+    }
+    
+    @Test
+    public void smallEditsCostAboutTheirOwnSize() throws IOException {
+        byte[] base = text(2000, new Random(1));
+        byte[] target = splice(splice(base, 100, 10, "an edit near the start"), base.length / 2, 0, "and one later");
+        byte[] delta = BinaryDelta.diff(base, target);
+        assertArrayEquals(target, BinaryDelta.apply(base, delta));
+        assertTrue("Delta of " + delta.length + " bytes", delta.length < 100);
+    }
+    
+    @Test
+    public void anyEditRoundTrips() throws IOException {
+        Random random = new Random(2);
+        byte[] base = text(300, random);
+        for (int i = 0; i < 200; i++) {
+            int at = random.nextInt(base.length);
+            int removed = random.nextInt(Math.min(500, base.length - at) + 1);
+            assertRoundTrip(base, splice(base, at, removed, "x" + random.nextInt()));
+        }
+        byte[] moved = new byte[base.length];
+        System.arraycopy(base, base.length / 2, moved, 0, base.length - base.length / 2);
+        System.arraycopy(base, 0, moved, base.length - base.length / 2, base.length / 2);
+        assertRoundTrip(base, moved);
+    }
+    
+    @Test
+    public void edgeCasesRoundTrip() throws IOException {
+        byte[] base = text(50, new Random(3));
+        byte[] unrelated = text(50, new Random(4));
+        assertRoundTrip(new byte[0], new byte[0]);
+        assertRoundTrip(new byte[0], base);
+        assertRoundTrip(base, new byte[0]);
+        assertRoundTrip(base, base);
+        assertRoundTrip(base, unrelated);
+        assertRoundTrip(Arrays.copyOf(base, 5), Arrays.copyOf(base, 20));
+        
+        byte[] repeated = new byte[4096];
+        Arrays.fill(repeated, (byte) 'a');
+        assertRoundTrip(repeated, Arrays.copyOf(repeated, 5000));
+    }
+    
+    @Test
+    public void malformedDeltasAreRejected() {
+        byte[] base = text(20, new Random(5));
+        byte[] delta = BinaryDelta.diff(base, splice(base, 40, 3, "changed"));
+        byte[][] malformed = {
+            new byte[0],
+            Arrays.copyOf(delta, delta.length - 1),
+            Arrays.copyOf(delta, delta.length + 1),
+            {10, 3, 0},                   // an unknown op
+            {10, 1, 0, 20},               // copies more than its target holds
+            {4, 1, (byte) 0x90, 0x4E, 4}, // copies from offset 10000, past the end of the base
+            {4, 2, 2, 'a', 'b'},          // ends short of its target
+            {2, 2, 5, 'a', 'b'},          // inserts more than its target holds
+            {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 1}
+        };
+        for (byte[] bad : malformed) {
+            try {
+                BinaryDelta.apply(base, bad);
+                fail("Applied a malformed delta " + Arrays.toString(bad));
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+}
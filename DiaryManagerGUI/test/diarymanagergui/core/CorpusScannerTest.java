@@ -0,0 +1,32 @@
+package diarymanagergui.core;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class CorpusScannerTest {
+    
+    private static boolean finds(String query, String text) {
+        return CorpusScanner.parse(query).pattern.matcher(text).find();
+    }
+    
+    @Test
+    public void phrasesMatchWholeWordsOnly() {
+        assertTrue(finds("\"the art\"", "Went to see the   art show"));
+        assertFalse(finds("\"art\"", "a fresh start"));
+        assertFalse(finds("\"art\"", "artist"));
+        assertTrue(finds("\"café\"", "at the Café, early"));
+        assertFalse(finds("\"café\"", "cafés"));
+        
+        // Punctuation at an edge needs no boundary next to it
+        assertTrue(finds("\"#work\"", "tagged#work today"));
+        assertTrue(finds("\"c++\"", "learning c++ again"));
+    }
+    
+    @Test
+    public void blankPhrasesAreNotScannedFor() {
+        assertNull(CorpusScanner.parse("\"   \""));
+        assertNull(CorpusScanner.parse("\"\""));
+        assertNull(CorpusScanner.parse("plain words"));
+        assertEquals("a b", CorpusScanner.parse("\" a b \"").indexTerms);
+    }
+}
@@ -0,0 +1,120 @@
+package diarymanagergui.core;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class DiaryCipherTest {
+    
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+    
+    private static DiaryCipher cipher;
+    
+    @BeforeClass
+    public static void unlock() throws IOException {
+        cipher = DiaryCipher.unlock(folder.getRoot(), "correct horse".toCharArray());
+    }
+    
+    private static DiaryEntry entry(String id, String body) {
+        return new DiaryEntry(id, "Title", "Personal", "Calm", "2024-05-01T10:00", body);
+    }
+    
+    private static void assertRejected(ThrowingRunnable open) {
+        try {
+            open.run();
+            fail("Tampered data was accepted");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+    
+    private interface ThrowingRunnable {
+        void run() throws IOException;
+    }
+    
+    @Test
+    public void wrongPassphraseDoesNotUnlock() throws IOException {
+        assertNull(DiaryCipher.unlock(folder.getRoot(), "wrong".toCharArray()));
+        assertNotNull(DiaryCipher.unlock(folder.getRoot(), "correct horse".toCharArray()));
+    }
+    
+    @Test
+    public void sealedRecordsOnlyOpenAsWhatTheyWereSealedFor() throws IOException {
+        byte[] plain = "the catalog".getBytes("UTF-8");
+        byte[] sealed = cipher.seal(plain, DiaryCipher.Kind.CATALOG, null);
+        assertArrayEquals(plain, cipher.open(sealed, DiaryCipher.Kind.CATALOG, null));
+        
+        assertRejected(() -> cipher.open(sealed, DiaryCipher.Kind.STATISTICS, null));
+        assertRejected(() -> cipher.open(sealed, DiaryCipher.Kind.CATALOG, "20240501_100000"));
+        for (int i = 0; i < sealed.length; i++) {
+            byte[] changed = sealed.clone();
+            changed[i] ^= 1;
+            assertRejected(() -> cipher.open(changed, DiaryCipher.Kind.CATALOG, null));
+        }
+        assertRejected(() -> cipher.open(Arrays.copyOf(sealed, sealed.length - 1), DiaryCipher.Kind.CATALOG, null));
+    }
+    
+    @Test
+    public void streamsSpanningChunksRoundTripAndRejectTruncation() throws IOException {
+        byte[] plain = new byte[DiaryCipher.CHUNK * 2 + 123];
+        new Random(1).nextBytes(plain);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (OutputStream encrypted = cipher.encrypt(out, DiaryCipher.Kind.SEARCH_INDEX, null)) {
+            encrypted.write(plain);
+        }
+        byte[] stream = out.toByteArray();
+        
+        try (InputStream in = cipher.decrypt(new ByteArrayInputStream(stream), DiaryCipher.Kind.SEARCH_INDEX, null)) {
+            assertArrayEquals(plain, in.readAllBytes());
+        }
+        // Cut at a chunk boundary, so every chunk left is intact but the last one is missing
+        int cut = DiaryCipher.STREAM_PREFIX + 2 * (DiaryCipher.CHUNK + DiaryCipher.TAG_LENGTH);
+        assertRejected(() -> cipher.decrypt(new ByteArrayInputStream(stream, 0, cut), DiaryCipher.Kind.SEARCH_INDEX,
+                                            null).readAllBytes());
+        assertRejected(() -> cipher.decrypt(new ByteArrayInputStream(stream), DiaryCipher.Kind.DRAFT, null)
+                                   .readAllBytes());
+    }
+    
+    @Test
+    public void encryptedEntriesRoundTrip() throws IOException {
+        for (Compression compression : Compression.values()) {
+            DiaryEntry entry = entry("20240501_100000", "Dear diary, a secret.");
+            byte[] stored = EntryFormat.encode(entry, compression, EntryFormat.V2, cipher);
+            DiaryEntry read = EntryFormat.decode(entry.id, stored, cipher);
+            assertEquals(entry.title, read.title);
+            assertEquals(entry.body, read.body);
+            assertFalse(new String(stored, "ISO-8859-1").contains("secret"));
+        }
+    }
+    
+    @Test
+    public void entryOnlyOpensUnderItsOwnId() throws IOException {
+        byte[] stored = EntryFormat.encode(entry("20240501_100000", "mine"), Compression.NONE, EntryFormat.V2, cipher);
+        assertRejected(() -> EntryFormat.decode("20240502_100000", stored, cipher));
+    }
+    
+    // A body moved into another entry's file keeps a valid header but must not decrypt there
+    @Test
+    public void bodySwappedBetweenEntriesIsRejected() throws IOException {
+        byte[] first = EntryFormat.encode(entry("20240501_100000", "first body"), Compression.NONE, EntryFormat.V2,
+                                          cipher);
+        byte[] second = EntryFormat.encode(entry("20240502_100000", "other body"), Compression.NONE, EntryFormat.V2,
+                                           cipher);
+        int headerLength = EntryFormat.headerLength(first, first.length);
+        assertEquals(headerLength, EntryFormat.headerLength(second, second.length));
+        
+        byte[] swapped = first.clone();
+        System.arraycopy(second, headerLength, swapped, headerLength, second.length - headerLength);
+        assertRejected(() -> EntryFormat.decode("20240501_100000", swapped, cipher));
+    }
+    
+    @Test
+    public void plainDiaryCannotReadEncryptedEntries() throws IOException {
+        byte[] stored = EntryFormat.encode(entry("20240501_100000", "x"), Compression.NONE, EntryFormat.V2, cipher);
+        assertRejected(() -> EntryFormat.decode("20240501_100000", stored, null));
+    }
+}
@@ -0,0 +1,78 @@
+package diarymanagergui.core;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class DiaryTransferTest {
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private ExecutorService encoders;
+    
+    @Before
+    public void setUp() {
+        encoders = Executors.newFixedThreadPool(2);
+    }
+    
+    @After
+    public void tearDown() {
+        encoders.shutdownNow();
+    }
+    
+    private List<DiaryTransfer.Source> sources(File directory, DiaryEntry... entries) throws IOException {
+        FileEntryStore store = new FileEntryStore(directory);
+        List<DiaryTransfer.Source> sources = new ArrayList<>();
+        for (DiaryEntry entry : entries) {
+            store.put(entry);
+            sources.add(new DiaryTransfer.Source(store.readHeader(entry.id), store.fileOf(entry.id), null));
+        }
+        return sources;
+    }
+    
+    @Test
+    public void exportsAndImportsTheSameEntries() throws Exception {
+        List<DiaryTransfer.Source> sources = sources(folder.newFolder("diary"),
+                new DiaryEntry("20240501_100000", "Walk", "Personal", "Happy", "2024-05-01T10:00", "Line one\nline \"two\""),
+                new DiaryEntry("20240502_100000", "Work", "Work", "Tired", "2024-05-02T10:00", ""));
+        DiaryTransfer transfer = new DiaryTransfer(encoders, 2);
+        
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(2, transfer.export(sources, DiaryTransfer.Format.JSONL, out, (done, total) -> { }));
+        
+        List<DiaryEntry> imported = new ArrayList<>();
+        byte[] exported = out.toByteArray();
+        transfer.importFrom(new ByteArrayInputStream(exported), exported.length, DiaryTransfer.Format.JSONL, batch -> {
+            imported.addAll(batch);
+            return CompletableFuture.completedFuture(null);
+        }, (done, total) -> { });
+        assertEquals(2, imported.size());
+        assertEquals("Line one\nline \"two\"", imported.get(0).body);
+        assertEquals("20240502_100000", imported.get(1).id);
+    }
+    
+    // A body the catalog says is longer than what is on disk must fail the export, not come out empty
+    @Test
+    public void exportFailsOnShortBody() throws Exception {
+        File directory = folder.newFolder("diary");
+        List<DiaryTransfer.Source> sources = sources(directory,
+                new DiaryEntry("20240501_100000", "Walk", "Personal", "Happy", "2024-05-01T10:00", "All of the text"));
+        EntryCatalog.Record record = sources.get(0).record;
+        EntryCatalog.Record stale = new EntryCatalog.Record(record.id, record.title, record.category, record.mood,
+                                                           record.date, record.bodyOffset + 1000, record.bodyLength,
+                                                           record.modified);
+        DiaryTransfer.Source source = new DiaryTransfer.Source(stale, sources.get(0).file, null);
+        
+        try {
+            new DiaryTransfer(encoders, 2).export(Collections.singletonList(source), DiaryTransfer.Format.JSONL,
+                                                  new ByteArrayOutputStream(), (done, total) -> { });
+            fail("Exported an entry whose body could not be read");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains(record.id));
+        }
+    }
+}
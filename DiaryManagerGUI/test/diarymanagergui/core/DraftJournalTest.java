@@ -0,0 +1,116 @@
+package diarymanagergui.core;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class DraftJournalTest {
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private Path file;
+    
+    @Before
+    public void setUp() throws IOException {
+        file = folder.newFolder("diary").toPath().resolve(".draft").resolve("draft.journal");
+    }
+    
+    private static DraftJournal.Draft snapshot(String content) {
+        return new DraftJournal.Draft("Title", "Personal", "Calm", content, "20240501_100000", 3, 1000);
+    }
+    
+    private static DraftJournal.Draft edits(long savedAt, PieceTable.Edit... edits) {
+        return new DraftJournal.Draft("Title", "Personal", "Calm", Arrays.asList(edits), "20240501_100000", 3,
+                                      savedAt);
+    }
+    
+    @Test
+    public void editsAreReplayedAfterReopening() throws IOException {
+        try (DraftJournal journal = new DraftJournal(file, null)) {
+            assertTrue(journal.append(snapshot("Dear diary")));
+            assertTrue(journal.append(edits(2000, new PieceTable.Edit(10, 0, ", today"))));
+            assertTrue(journal.append(edits(3000, new PieceTable.Edit(0, 4, "Hello"))));
+        }
+        
+        DraftJournal.Draft draft = new DraftJournal(file, null).recover();
+        assertEquals("Hello diary, today", draft.content);
+        assertNull(draft.edits);
+        assertEquals("Title", draft.title);
+        assertEquals("20240501_100000", draft.editingId);
+        assertEquals(3, draft.baseVersion);
+        assertEquals(3000, draft.savedAt);
+    }
+    
+    @Test
+    public void editsWithoutASnapshotAreRefused() throws IOException {
+        try (DraftJournal journal = new DraftJournal(file, null)) {
+            assertFalse(journal.append(edits(2000, new PieceTable.Edit(0, 0, "x"))));
+            assertTrue(journal.append(snapshot("abc")));
+            assertFalse(journal.append(edits(2000, new PieceTable.Edit(5, 0, "x")))); // past the end
+            assertFalse(journal.append(edits(3000, new PieceTable.Edit(0, 0, "x")))); // until the next snapshot
+        }
+        assertEquals("abc", new DraftJournal(file, null).recover().content);
+    }
+    
+    @Test
+    public void tornTailKeepsTheRecordsBeforeIt() throws IOException {
+        try (DraftJournal journal = new DraftJournal(file, null)) {
+            journal.append(snapshot("Dear diary"));
+            journal.append(edits(2000, new PieceTable.Edit(10, 0, ", today")));
+            journal.append(edits(3000, new PieceTable.Edit(17, 0, " it rained")));
+        }
+        
+        // A crash partway through writing the last record
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 4));
+        
+        DraftJournal.Draft draft = new DraftJournal(file, null).recover();
+        assertEquals("Dear diary, today", draft.content);
+        assertEquals(2000, draft.savedAt);
+    }
+    
+    @Test
+    public void largeJournalIsCompactedToASnapshot() throws IOException {
+        char[] filler = new char[1100 * 1024];
+        Arrays.fill(filler, 'a');
+        try (DraftJournal journal = new DraftJournal(file, null)) {
+            journal.append(snapshot(new String(filler)));
+            assertTrue(Files.size(file) > 1024 * 1024);
+            
+            // The next record starts the journal over with the whole draft rather than adding the edit
+            journal.append(edits(2000, new PieceTable.Edit(5, filler.length - 5, " short")));
+            assertTrue(Files.size(file) < 1024);
+            journal.append(edits(3000, new PieceTable.Edit(11, 0, " one")));
+        }
+        
+        DraftJournal.Draft draft = new DraftJournal(file, null).recover();
+        assertEquals("aaaaa short one", draft.content);
+        assertEquals(3000, draft.savedAt);
+    }
+    
+    @Test
+    public void sealedJournalIsRecovered() throws IOException {
+        DiaryCipher cipher = DiaryCipher.unlock(folder.newFolder("key"), "correct horse".toCharArray());
+        try (DraftJournal journal = new DraftJournal(file, cipher)) {
+            journal.append(snapshot("secret words"));
+            journal.append(edits(2000, new PieceTable.Edit(0, 6, "hidden")));
+        }
+        assertFalse(new String(Files.readAllBytes(file), "UTF-8").contains("words"));
+        assertEquals("hidden words", new DraftJournal(file, cipher).recover().content);
+    }
+    
+    @Test
+    public void emptyDraftClearsTheJournal() throws IOException {
+        try (DraftJournal journal = new DraftJournal(file, null)) {
+            journal.append(snapshot("abc"));
+            assertTrue(Files.exists(file));
+            journal.append(new DraftJournal.Draft("", "Personal", "Calm", "", null, 0, 2000));
+            assertFalse(Files.exists(file));
+        }
+        assertNull(new DraftJournal(file, null).recover());
+    }
+}
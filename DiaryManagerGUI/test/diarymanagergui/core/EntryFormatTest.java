@@ -0,0 +1,133 @@
+package diarymanagergui.core;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class EntryFormatTest {
+    
+    private static final String ID = "20240501_100000";
+    private static final DiaryEntry ENTRY = new DiaryEntry(ID, "Walk – by the lake", "Personal", "😊 Happy",
+                                                           "2024-05-01T10:00", "First line\nsecond line\n\nlast");
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private static void assertSameEntry(DiaryEntry expected, DiaryEntry actual) {
+        assertEquals(expected.title, actual.title);
+        assertEquals(expected.category, actual.category);
+        assertEquals(expected.mood, actual.mood);
+        assertEquals(expected.date, actual.date);
+        assertEquals(expected.body, actual.body);
+    }
+    
+    @Test
+    public void bothVersionsRoundTrip() throws IOException {
+        for (Compression compression : Compression.values()) {
+            byte[] text = EntryFormat.encode(ENTRY, compression, EntryFormat.V1, null);
+            byte[] binary = EntryFormat.encode(ENTRY, compression, EntryFormat.V2, null);
+            assertEquals(EntryFormat.V1, EntryFormat.version(text, 0, text.length));
+            assertEquals(EntryFormat.V2, EntryFormat.version(binary, 0, binary.length));
+            assertSameEntry(ENTRY, EntryFormat.decode(ID, text, null));
+            assertSameEntry(ENTRY, EntryFormat.decode(ID, binary, null));
+        }
+        assertTrue(new String(EntryFormat.encode(ENTRY), StandardCharsets.UTF_8).startsWith("Title: Walk"));
+    }
+    
+    // Entry files written before the binary format have no version marker and must still read as they did
+    @Test
+    public void legacyTextFilesStillRead() throws IOException {
+        String nl = System.lineSeparator();
+        byte[] legacy = ("Title: Old" + nl + "Category: Work" + nl + "Mood: Calm" + nl + "Date: 2020-01-01T09:00" + nl +
+                         nl + "Body text" + nl).getBytes(StandardCharsets.UTF_8);
+        DiaryEntry entry = EntryFormat.decode(ID, legacy, null);
+        assertEquals("Old", entry.title);
+        assertEquals("2020-01-01T09:00", entry.date);
+        assertEquals("Body text", entry.body);
+        
+        // Too short to have a body; read with what it has rather than skipped
+        byte[] cut = ("Title: Cut" + nl + "Category: Work").getBytes(StandardCharsets.UTF_8);
+        entry = EntryFormat.decode(ID, cut, null);
+        assertEquals("Cut", entry.title);
+        assertEquals("Work", entry.category);
+        assertEquals("", entry.mood);
+        assertEquals("", entry.body);
+    }
+    
+    @Test
+    public void headersReadFromTheLeadingBytesLocateTheBody() throws IOException {
+        for (int version : new int[] {EntryFormat.V1, EntryFormat.V2}) {
+            for (Compression compression : Compression.values()) {
+                byte[] stored = EntryFormat.encode(ENTRY, compression, version, null);
+                byte[] probe = Arrays.copyOf(stored, Math.min(stored.length, EntryFormat.HEADER_PROBE));
+                int headerLength = EntryFormat.headerLength(probe, stored.length);
+                assertTrue(headerLength <= probe.length);
+                
+                // As if the entry sat 100 bytes into a larger file
+                File file = folder.newFile();
+                byte[] padded = new byte[100 + stored.length];
+                System.arraycopy(stored, 0, padded, 100, stored.length);
+                Files.write(file.toPath(), padded);
+                
+                EntryCatalog.Record header = EntryFormat.readHeader(ID, Arrays.copyOf(probe, headerLength), 100,
+                                                                    stored.length, 7, null);
+                assertEquals(ENTRY.title, header.title);
+                assertEquals(ENTRY.mood, header.mood);
+                assertEquals(ENTRY.date, header.date);
+                assertEquals(7, header.modified);
+                assertEquals(100 + stored.length, header.bodyOffset + header.bodyLength);
+                assertEquals(ENTRY.body, EntryFormat.readBody(ID, file, header.bodyOffset, header.bodyLength, null));
+            }
+        }
+    }
+    
+    @Test
+    public void onlyEntriesInTheWriteLayoutAreCurrent() throws IOException {
+        byte[] text = EntryFormat.encode(ENTRY, Compression.NONE, EntryFormat.V1, null);
+        byte[] binary = EntryFormat.encode(ENTRY, Compression.NONE, EntryFormat.V2, null);
+        assertFalse(EntryFormat.isCurrent(text, EntryFormat.V2, false));
+        assertTrue(EntryFormat.isCurrent(text, EntryFormat.V1, false));
+        assertTrue(EntryFormat.isCurrent(binary, EntryFormat.V2, false));
+        assertFalse(EntryFormat.isCurrent(binary, EntryFormat.V2, true));
+        assertFalse(EntryFormat.isCurrent(text, EntryFormat.V2, true));
+    }
+    
+    @Test
+    public void truncatedBinaryEntryIsRejected() throws IOException {
+        byte[] binary = EntryFormat.encode(ENTRY, Compression.NONE, EntryFormat.V2, null);
+        for (int length : new int[] {EntryFormat.V2_HEADER_SIZE - 1, EntryFormat.V2_HEADER_SIZE + 3,
+                                     binary.length - 1}) {
+            try {
+                EntryFormat.decode(ID, Arrays.copyOf(binary, length), null);
+                fail("Decoded an entry cut to " + length + " bytes");
+            } catch (EOFException e) {
+                // expected
+            }
+        }
+    }
+    
+    @Test
+    public void upgraderRewritesTextEntriesAsBinary() throws Exception {
+        File directory = folder.newFolder("diary");
+        FileEntryStore legacy = new FileEntryStore(directory, Durability.SAFE, Compression.NONE, EntryFormat.V1, null);
+        legacy.put(ENTRY);
+        legacy.put(new DiaryEntry("20240502_100000", "Second", "Work", "Tired", "2024-05-02T10:00", "Body"));
+        
+        DiaryService service = new DiaryService(directory, changes -> { });
+        try {
+            service.open().get();
+            assertEquals(2, (int) service.upgradeEntries().get());
+            assertEquals(0, (int) service.upgradeEntries().get());
+            
+            byte[] stored = Files.readAllBytes(legacy.fileOf(ID).toPath());
+            assertEquals(EntryFormat.V2, EntryFormat.version(stored, 0, stored.length));
+            assertSameEntry(ENTRY, service.read(ID).get());
+        } finally {
+            service.close(10);
+        }
+    }
+}
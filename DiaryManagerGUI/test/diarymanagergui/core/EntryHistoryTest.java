@@ -0,0 +1,145 @@
+package diarymanagergui.core;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.List;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class EntryHistoryTest {
+    
+    private static final String ID = "20240501_100000";
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private DiaryCipher cipher;
+    private Path directory;
+    
+    @Before
+    public void setUp() throws IOException {
+        cipher = DiaryCipher.unlock(folder.newFolder("key"), "correct horse".toCharArray());
+        directory = folder.newFolder("history").toPath();
+    }
+    
+    private static DiaryEntry version(int n) {
+        StringBuilder body = new StringBuilder();
+        for (int line = 0; line < 40; line++) {
+            body.append(line == n ? "secret line " + n : "line " + line).append('\n');
+        }
+        return new DiaryEntry(ID, "Title", "Personal", "Calm", "2024-05-01T10:00", body.toString());
+    }
+    
+    // Edits the entry from version(from) to version(to), one version at a time
+    private static void edit(EntryHistory history, int from, int to) throws IOException {
+        for (int n = from; n < to; n++) {
+            history.record(version(n), version(n + 1));
+        }
+    }
+    
+    private static void assertAllVersions(EntryHistory history, int edits) throws IOException {
+        List<EntryHistory.Version> versions = history.versions(ID);
+        assertEquals(edits + 1, versions.size());
+        for (int n = 0; n <= edits; n++) {
+            assertEquals(version(n).body, history.read(ID, versions.get(n).number).body);
+        }
+    }
+    
+    private String historyFile() throws IOException {
+        return new String(Files.readAllBytes(directory.resolve(ID + ".hist")), StandardCharsets.ISO_8859_1);
+    }
+    
+    @Test
+    public void everyVersionReadsBack() throws IOException {
+        EntryHistory history = new EntryHistory(directory, null);
+        edit(history, 0, 20);
+        assertAllVersions(history, 20);
+        assertEquals(21, history.currentVersion(ID));
+        assertEquals(0, history.currentVersion("20240502_100000"));
+    }
+    
+    @Test
+    public void encryptedVersionsReadBackOnlyWithTheKey() throws IOException {
+        EntryHistory history = new EntryHistory(directory, cipher);
+        edit(history, 0, 10);
+        assertAllVersions(history, 10);
+        assertFalse(historyFile().contains("secret"));
+        
+        EntryHistory locked = new EntryHistory(directory, null);
+        try {
+            locked.read(ID, 1);
+            fail("Read an encrypted history without the key");
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            locked.record(version(10), version(11));
+            fail("Appended plaintext to an encrypted history");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+    
+    // A plaintext CRC or time next to a sealed version would let a guess at its content be checked offline
+    @Test
+    public void sealedVersionsKeepTimeAndChecksumInside() throws IOException {
+        EntryHistory history = new EntryHistory(directory, cipher);
+        edit(history, 0, 1);
+        byte[] file = Files.readAllBytes(directory.resolve(ID + ".hist"));
+        for (int i = 1 + 4; i < 1 + 4 + 8 + 4; i++) {
+            assertEquals(0, file[i]);
+        }
+        assertNotEquals(0, history.versions(ID).get(0).savedAt);
+        
+        // A snapshot relabelled as a delta no longer opens
+        file[0] ^= 3;
+        Files.write(directory.resolve(ID + ".hist"), file);
+        try {
+            history.read(ID, 1);
+            fail("Read a version whose kind was changed");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void plainHistoryIsSealedByTheUpgrade() throws IOException {
+        edit(new EntryHistory(directory, null), 0, 10);
+        assertTrue(historyFile().contains("secret"));
+        
+        EntryHistory history = new EntryHistory(directory, cipher);
+        assertAllVersions(history, 10);
+        assertTrue(history.upgrade(ID));
+        assertFalse(historyFile().contains("secret"));
+        assertAllVersions(history, 10);
+        assertFalse(history.upgrade(ID));
+    }
+    
+    @Test
+    public void editingPlainHistorySealsItFirst() throws IOException {
+        edit(new EntryHistory(directory, null), 0, 3);
+        
+        EntryHistory history = new EntryHistory(directory, cipher);
+        edit(history, 3, 5);
+        assertFalse(historyFile().contains("secret"));
+        assertAllVersions(history, 5);
+    }
+    
+    @Test
+    public void plaintextAfterEncryptedVersionsIsRefused() throws IOException {
+        edit(new EntryHistory(directory, cipher), 0, 2);
+        Path other = folder.newFolder("plain").toPath();
+        edit(new EntryHistory(other, null), 2, 3);
+        
+        Files.write(directory.resolve(ID + ".hist"), Files.readAllBytes(other.resolve(ID + ".hist")),
+                    StandardOpenOption.APPEND);
+        try {
+            new EntryHistory(directory, cipher).versions(ID);
+            fail("Accepted plaintext versions appended to an encrypted history");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package diarymanagergui.core;
+
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class PieceTableTest {
+    
+    private static String word(Random random) {
+        StringBuilder word = new StringBuilder();
+        for (int i = random.nextInt(6); i >= 0; i--) {
+            word.append((char) ('a' + random.nextInt(26)));
+        }
+        return word.toString();
+    }
+    
+    @Test
+    public void randomEditsMatchAStringBuilder() {
+        Random random = new Random(42);
+        StringBuilder oracle = new StringBuilder("The original text of the entry.");
+        PieceTable table = new PieceTable(oracle.toString());
+        String before = oracle.toString();
+        
+        for (int i = 0; i < 5000; i++) {
+            int start = random.nextInt(oracle.length() + 1);
+            int end = random.nextInt(4) == 0 ? Math.min(oracle.length(), start + random.nextInt(8)) : start;
+            String inserted = random.nextInt(3) == 0 ? "" : word(random);
+            oracle.replace(start, end, inserted);
+            table.replace(start, end, inserted);
+            assertEquals(oracle.length(), table.length());
+            
+            if (i % 250 == 0) {
+                assertEquals(oracle.toString(), table.toString());
+                // The recorded edits take the text from where the last call left it to where it is now
+                PieceTable replay = new PieceTable(before);
+                for (PieceTable.Edit edit : table.takeEdits()) {
+                    replay.apply(edit);
+                }
+                assertEquals(oracle.toString(), replay.toString());
+                before = oracle.toString();
+            }
+        }
+        assertEquals(oracle.toString(), table.toString());
+    }
+    
+    @Test
+    public void typingOnCoalescesIntoOneEdit() {
+        PieceTable table = new PieceTable("Dear diary");
+        for (char c : ", today".toCharArray()) {
+            table.replace(table.length(), table.length(), String.valueOf(c));
+        }
+        table.replace(table.length() - 2, table.length(), ""); // backspacing over "ay"
+        assertEquals("Dear diary, tod", table.toString());
+        assertEquals(2, table.pieceCount());
+        
+        List<PieceTable.Edit> edits = table.takeEdits();
+        assertEquals(1, edits.size());
+        assertEquals(10, edits.get(0).position);
+        assertEquals(0, edits.get(0).removed);
+        assertEquals(", tod", edits.get(0).inserted);
+        assertTrue(table.takeEdits().isEmpty());
+    }
+    
+    @Test
+    public void manyScatteredEditsAreFlattened() {
+        StringBuilder oracle = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            oracle.append((char) ('a' + i % 26));
+        }
+        PieceTable table = new PieceTable(oracle.toString());
+        
+        // Each insert lands inside the original text, away from the last one, so it splits a piece
+        int peak = 0;
+        for (int i = 0; i < 5000; i++) {
+            int position = (i * 7919) % oracle.length();
+            oracle.insert(position, "x");
+            table.replace(position, position, "x");
+            peak = Math.max(peak, table.pieceCount());
+        }
+        assertTrue("pieces grew to " + peak, peak <= 4096);
+        assertTrue(table.pieceCount() < 4096);
+        assertEquals(oracle.toString(), table.toString());
+        
+        // Editing goes on as before once the text is flat
+        table.replace(0, 3, "XYZ");
+        oracle.replace(0, 3, "XYZ");
+        assertEquals(oracle.toString(), table.toString());
+    }
+    
+    @Test
+    public void rangesOutsideTheTextAreRefused() {
+        PieceTable table = new PieceTable("abc");
+        try {
+            table.replace(2, 4, "");
+            fail("range past the end");
+        } catch (IndexOutOfBoundsException e) {
+            assertEquals("abc", table.toString());
+        }
+        try {
+            table.replace(2, 1, "x");
+            fail("end before start");
+        } catch (IndexOutOfBoundsException e) {
+            assertEquals("abc", table.toString());
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package diarymanagergui.core;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class SearchIndexTest {
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private File directory;
+    private Path indexDirectory;
+    private FileEntryStore store;
+    
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.newFolder("diary");
+        indexDirectory = new File(directory, ".index").toPath();
+        store = new FileEntryStore(directory);
+    }
+    
+    private static DiaryEntry entry(String id, String body) {
+        return new DiaryEntry(id, "Title", "Personal", "Happy", "2024-05-01T10:00", body);
+    }
+    
+    // What open() does: a fresh catalog brought in line with the entry files
+    private EntryCatalog catalog() throws IOException {
+        EntryCatalog catalog = new EntryCatalog(indexDirectory.resolve("catalog.bin"), null);
+        catalog.reconcile(store);
+        return catalog;
+    }
+    
+    private SearchIndex loaded() {
+        SearchIndex index = new SearchIndex(indexDirectory, null);
+        assertTrue(index.load());
+        return index;
+    }
+    
+    @Test
+    public void entriesChangedWhileClosedAreIndexedAgain() throws IOException {
+        store.put(entry("20240501_100000", "apples"));
+        store.put(entry("20240502_100000", "bananas"));
+        store.put(entry("20240503_100000", "cherries"));
+        new SearchIndex(indexDirectory, null).rebuild(catalog(), store);
+        
+        // A sync tool at work while the diary is closed
+        store.put(entry("20240501_100000", "apricots"));
+        File changed = store.fileOf("20240501_100000");
+        changed.setLastModified(changed.lastModified() + 2000);
+        store.delete("20240502_100000");
+        store.put(entry("20240504_100000", "dates"));
+        
+        SearchIndex index = loaded();
+        assertEquals(3, index.reconcile(catalog(), store));
+        assertEquals(Collections.singleton("20240501_100000"), index.search("apricots"));
+        assertTrue(index.search("apples").isEmpty());
+        assertTrue(index.search("bananas").isEmpty());
+        assertEquals(Collections.singleton("20240504_100000"), index.search("dates"));
+        assertEquals(Collections.singleton("20240503_100000"), index.search("cherries"));
+        
+        // Nothing is left to do once that is journaled
+        assertEquals(0, loaded().reconcile(catalog(), store));
+    }
+    
+    @Test
+    public void tornJournalIsMadeUpFor() throws IOException {
+        new SearchIndex(indexDirectory, null).rebuild(catalog(), store);
+        SearchIndex index = loaded();
+        for (int i = 1; i <= 5; i++) {
+            DiaryEntry entry = entry("2024050" + i + "_100000", "word" + i);
+            store.put(entry);
+            index.add(entry.id, EntryFormat.searchText(entry), store.readHeader(entry.id).modified);
+        }
+        
+        // Cut the journal partway through, as a crash mid-write would, so the later records are lost
+        Path journal = indexDirectory.resolve("search.journal");
+        byte[] bytes = Files.readAllBytes(journal);
+        Files.write(journal, Arrays.copyOf(bytes, bytes.length / 2));
+        
+        index = loaded();
+        assertTrue(index.reconcile(catalog(), store) > 0);
+        for (int i = 1; i <= 5; i++) {
+            assertEquals(Collections.singleton("2024050" + i + "_100000"), index.search("word" + i));
+        }
+        
+        // Appends after that are not lost behind the torn record
+        DiaryEntry entry = entry("20240506_100000", "word6");
+        store.put(entry);
+        index.add(entry.id, EntryFormat.searchText(entry), store.readHeader(entry.id).modified);
+        assertEquals(Collections.singleton("20240506_100000"), loaded().search("word6"));
+        assertEquals(0, loaded().reconcile(catalog(), store));
+    }
+    
+    @Test
+    public void rankingIsTheSameWhicheverSideIsWalked() throws IOException {
+        SearchIndex index = new SearchIndex(indexDirectory, null);
+        index.rebuild(catalog(), store);
+        index.add("20240501_100000", "river river river", 1);
+        index.add("20240502_100000", "river stone", 2);
+        index.add("20240503_100000", "riverside walk", 3);
+        index.add("20240504_100000", "stone wall", 4);
+        index.add("20240505_100000", "quiet day", 5);
+        List<String> all = Arrays.asList("20240505_100000", "20240504_100000", "20240503_100000",
+                                         "20240502_100000", "20240501_100000");
+        
+        // Full matches first, then the prefix match, then entries without any to fill the page
+        assertEquals(Arrays.asList("20240501_100000", "20240502_100000", "20240503_100000", "20240505_100000"),
+                     index.rank(all, "river", 4));
+        assertEquals(Arrays.asList("20240501_100000", "20240502_100000"), index.rank(all, "river", 2));
+        
+        // Fewer candidates than matching postings: the candidates are probed instead
+        List<String> two = Arrays.asList("20240504_100000", "20240502_100000");
+        assertEquals(Arrays.asList("20240502_100000", "20240504_100000"), index.rank(two, "river stone", 5));
+        assertEquals(Collections.singletonList("20240502_100000"), index.rank(two, "river", 1));
+    }
+}
@@ -0,0 +1,155 @@
+package diarymanagergui.core;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class SegmentLogStoreTest {
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private static DiaryEntry entry(String id, String body) {
+        return new DiaryEntry(id, "Title " + id, "Personal", "Happy", "2024-05-01T10:00", body);
+    }
+    
+    private static String text(char c, int length) {
+        char[] chars = new char[length];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+    
+    @Test
+    public void entriesSurviveReopening() throws Exception {
+        File directory = folder.newFolder("segments");
+        try (SegmentLogStore store = new SegmentLogStore(directory)) {
+            store.put(entry("a", "first"));
+            store.put(entry("b", "second"));
+            store.put(entry("a", "first, edited"));
+            assertTrue(store.delete("b"));
+        }
+        
+        try (SegmentLogStore store = new SegmentLogStore(directory)) {
+            assertEquals(1, store.size());
+            assertEquals("first, edited", store.read("a").body);
+            assertNull(store.read("b"));
+        }
+    }
+    
+    @Test
+    public void compactionReportsEveryMovedEntry() throws Exception {
+        try (SegmentLogStore store = new SegmentLogStore(folder.newFolder("segments"))) {
+            List<String> moved = new ArrayList<>();
+            store.setRelocationListener(moved::addAll);
+            store.put(entry("keep", "kept body"));
+            store.put(entry("gone", "short-lived"));
+            store.delete("gone");
+            long stamp = store.stamps().get("keep");
+            
+            store.compact();
+            
+            assertEquals(Collections.singletonList("keep"), moved);
+            assertNotEquals(stamp, (long) store.stamps().get("keep"));
+            EntryCatalog.Record header = store.readHeader("keep");
+            assertEquals("kept body", EntryFormat.readBody("keep", store.fileOf("keep"), header.bodyOffset,
+                                                           header.bodyLength, null));
+        }
+    }
+    
+    // A reader that located an entry before compaction must still find its bytes where it was told
+    @Test
+    public void pinnedSegmentsOutliveCompaction() throws Exception {
+        try (SegmentLogStore store = new SegmentLogStore(folder.newFolder("segments"))) {
+            store.put(entry("gone", text('x', 2 * 1024 * 1024)));
+            store.put(entry("keep", "kept body"));
+            File file = store.fileOf("keep");
+            EntryCatalog.Record header = store.readHeader("keep");
+            
+            EntryStore.Pin pin = store.pin();
+            store.delete("gone");
+            assertNotEquals(file, store.fileOf("keep"));
+            assertEquals(1, store.retiredSegments());
+            assertEquals("kept body", EntryFormat.readBody("keep", file, header.bodyOffset, header.bodyLength, null));
+            
+            pin.close();
+            pin.close();
+            assertEquals(0, store.retiredSegments());
+            assertFalse(file.exists());
+        }
+    }
+    
+    // Segments a reader still held when the diary closed (or crashed) are replaced ones; they must not come back
+    @Test
+    public void segmentsLeftBelowTheFloorAreDroppedOnOpen() throws Exception {
+        File directory = folder.newFolder("segments");
+        File old;
+        try (SegmentLogStore store = new SegmentLogStore(directory)) {
+            store.put(entry("gone", text('x', 2 * 1024 * 1024)));
+            store.put(entry("keep", "kept body"));
+            old = store.fileOf("keep");
+            store.pin();
+            store.delete("gone");
+        }
+        assertTrue(old.exists());
+        
+        try (SegmentLogStore store = new SegmentLogStore(directory)) {
+            assertFalse(old.exists());
+            assertEquals(1, store.size());
+            assertNull(store.read("gone"));
+            assertEquals("kept body", store.read("keep").body);
+        }
+    }
+    
+    // Deleting large entries compacts the log underneath the catalog; readers going by the catalog must still
+    // find the bodies that are left
+    @Test
+    public void catalogFollowsCompaction() throws Exception {
+        File directory = folder.newFolder("diary");
+        String previous = System.setProperty("diary.store", "segments");
+        DiaryService service = new DiaryService(directory, changes -> { });
+        try {
+            service.open().get();
+            service.openSearchIndex().get();
+            List<String> large = new ArrayList<>();
+            for (int i = 0; i < 12; i++) {
+                large.add(service.save(entry(null, text((char) ('a' + i), 200 * 1024))).get());
+            }
+            String keeper = service.save(entry(null, "the keeper mentions a zeppelin")).get();
+            for (String id : large) {
+                assertTrue(service.delete(id).get());
+            }
+            service.save(entry(null, "one more")).get();
+            
+            Map<String, Snippet> snippets = new HashMap<>();
+            int hits = service.search("/zeppel.n/", null, null, 0, 10, new DiaryService.SearchListener() {
+                @Override
+                public void facets(FacetIndex.Result counts) {
+                }
+                
+                @Override
+                public void results(List<String> ids, Map<String, Snippet> found) {
+                    snippets.putAll(found);
+                }
+            }).get();
+            assertEquals(1, hits);
+            assertNotNull(snippets.get(keeper));
+            
+            File backup = new File(folder.getRoot(), "backup.jsonl");
+            assertEquals(2L, (long) service.export(backup, DiaryTransfer.Format.JSONL, (done, total) -> { }).get());
+            String exported = new String(Files.readAllBytes(backup.toPath()), StandardCharsets.UTF_8);
+            assertTrue(exported.contains("the keeper mentions a zeppelin"));
+        } finally {
+            service.close(10);
+            if (previous == null) {
+                System.clearProperty("diary.store");
+            } else {
+                System.setProperty("diary.store", previous);
+            }
+        }
+    }
+}
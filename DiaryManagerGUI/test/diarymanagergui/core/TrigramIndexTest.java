@@ -0,0 +1,114 @@
+package diarymanagergui.core;
+
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class TrigramIndexTest {
+    
+    // Small alphabet, so words repeat trigrams ("abab") and have many near neighbours
+    private static String word(Random random, int maxLength) {
+        StringBuilder word = new StringBuilder();
+        for (int i = 1 + random.nextInt(maxLength); i > 0; i--) {
+            word.append((char) ('a' + random.nextInt(4)));
+        }
+        return word.toString();
+    }
+    
+    private static int levenshtein(String a, String b) {
+        int[][] d = new int[a.length() + 1][b.length() + 1];
+        for (int i = 0; i <= a.length(); i++) {
+            for (int j = 0; j <= b.length(); j++) {
+                d[i][j] = i == 0 ? j : j == 0 ? i
+                        : Math.min(d[i - 1][j - 1] + (a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1),
+                                   Math.min(d[i - 1][j], d[i][j - 1]) + 1);
+            }
+        }
+        return d[a.length()][b.length()];
+    }
+    
+    // What similar() promises, by checking every term
+    private static List<String> bruteForce(Collection<String> vocabulary, String word, int maxEdits) {
+        List<String> similar = new ArrayList<>();
+        for (String term : vocabulary) {
+            if (!term.equals(word) && levenshtein(word, term) <= maxEdits) {
+                similar.add(term);
+            }
+        }
+        similar.sort(Comparator.comparingInt((String term) -> levenshtein(word, term))
+                               .thenComparing(Comparator.naturalOrder()));
+        return similar;
+    }
+    
+    // Distinct trigrams of the padded word, as similar() counts them
+    private static int distinctGrams(String word) {
+        String padded = "\0\0" + word + "\0";
+        Set<String> grams = new HashSet<>();
+        for (int i = 0; i + 3 <= padded.length(); i++) {
+            grams.add(padded.substring(i, i + 3));
+        }
+        return grams.size();
+    }
+    
+    @Test
+    public void similarMatchesBruteForce() {
+        Random random = new Random(7);
+        Set<String> vocabulary = new TreeSet<>();
+        TrigramIndex index = new TrigramIndex();
+        for (int i = 0; i < 2000; i++) {
+            String term = word(random, 10);
+            vocabulary.add(term);
+            index.add(term);
+        }
+        // Removed terms stay in the posting lists but must never come back
+        for (Iterator<String> it = vocabulary.iterator(); it.hasNext(); ) {
+            String term = it.next();
+            if (random.nextInt(5) == 0) {
+                it.remove();
+                index.remove(term);
+            }
+        }
+        assertEquals(vocabulary.size(), index.size());
+        
+        int checked = 0;
+        for (int i = 0; i < 400; i++) {
+            String word = word(random, 10);
+            for (int maxEdits = 1; maxEdits <= 2; maxEdits++) {
+                List<String> found = index.similar(word, maxEdits);
+                if (distinctGrams(word) - 3 * maxEdits <= 0) {
+                    // Too short for the trigrams to narrow anything down
+                    assertTrue(word, found.isEmpty());
+                } else {
+                    assertEquals(word + " within " + maxEdits, bruteForce(vocabulary, word, maxEdits), found);
+                    checked++;
+                }
+            }
+        }
+        assertTrue(checked > 300);
+    }
+    
+    @Test
+    public void shortWordsAndTheirPadding() {
+        TrigramIndex index = new TrigramIndex();
+        for (String term : Arrays.asList("cat", "cart", "cast", "at", "scat", "dog")) {
+            index.add(term);
+        }
+        // "cat" has four padded trigrams, enough for one edit but not for two
+        assertEquals(Arrays.asList("at", "cart", "cast", "scat"), index.similar("cat", 1));
+        assertTrue(index.similar("cat", 2).isEmpty());
+        assertTrue(index.similar("ca", 1).isEmpty());
+        assertEquals(Arrays.asList("cart", "cast", "cat"), index.similar("caat", 1));
+    }
+    
+    @Test
+    public void automatonCutsOffAtTheLimit() {
+        Random random = new Random(11);
+        for (int i = 0; i < 3000; i++) {
+            String word = word(random, 9);
+            String term = word(random, 12);
+            int maxEdits = 1 + random.nextInt(3);
+            int distance = new TrigramIndex.LevenshteinAutomaton(word, maxEdits).distance(term);
+            assertEquals(word + " to " + term, Math.min(levenshtein(word, term), maxEdits + 1), distance);
+        }
+    }
+}